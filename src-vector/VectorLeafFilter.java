@@ -0,0 +1,98 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The VectorLeafFilter class is the SIMD version of LeafFilter, built on the JDK's incubating Vector API (jdk.incubator.vector).
+ * It loads a whole register of packed records at a time, unpacks XLOC, YLOC, and time in every lane with a shift and a mask,
+ * and evaluates the whole predicate as lane masks, so there is no branch per record. The indices of the lanes that match are then read off the mask bits.
+ *
+ * The box test is one unsigned comparison per dimension: v - min, taken as unsigned, is at most max - min exactly when min <= v <= max.
+ * The triangle test evaluates the three edge equations of the triangle (see Triangle.intEdges) in int lanes.
+ * Triangles whose equations don't fit in ints, and degenerate ones, are left to the scalar filter, as are the records after the last full vector.
+ *
+ * This class is compiled separately from the rest of the project, with --add-modules jdk.incubator.vector, and is only ever used through LeafFilter.getInstance.
+ */
+public class VectorLeafFilter extends LeafFilter {
+
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+	/**
+	 * Constructor, called reflectively by LeafFilter
+	 *
+	 */
+	public VectorLeafFilter() {
+	}
+
+	@Override
+	public boolean isVectorized() {
+		return true;
+	}
+
+	@Override
+	public int box(int[] cells, int from, int to, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax, int[] out) {
+		int xRange = xMax - xMin;
+		int yRange = yMax - yMin;
+		int timeRange = timeMax - timeMin;
+		int count = 0;
+		int i = from;
+
+		for (int upper = from + SPECIES.loopBound(to - from); i < upper; i += SPECIES.length()) {
+			IntVector v = IntVector.fromArray(SPECIES, cells, i);
+			IntVector xloc = v.and(MASK);
+			IntVector yloc = v.lanewise(VectorOperators.LSHR, BITS).and(MASK);
+			IntVector time = v.lanewise(VectorOperators.LSHR, 2 * BITS);
+
+			VectorMask<Integer> match = xloc.sub(xMin).compare(VectorOperators.UNSIGNED_LE, xRange)
+					.and(yloc.sub(yMin).compare(VectorOperators.UNSIGNED_LE, yRange))
+					.and(time.sub(timeMin).compare(VectorOperators.UNSIGNED_LE, timeRange));
+
+			count = indices(match, i, out, count);
+		}
+
+		return scalarBox(cells, i, to, xMin, xMax, yMin, yMax, timeMin, timeMax, out, count);
+	}
+
+	@Override
+	public int triangle(int[] cells, int from, int to, Triangle tri, int timeMin, int timeMax, int[] out) {
+		int[] edges = tri.intEdges();
+		if (edges == null)
+			return scalarTriangle(cells, from, to, tri, timeMin, timeMax, out, 0);
+
+		int timeRange = timeMax - timeMin;
+		int count = 0;
+		int i = from;
+
+		for (int upper = from + SPECIES.loopBound(to - from); i < upper; i += SPECIES.length()) {
+			IntVector v = IntVector.fromArray(SPECIES, cells, i);
+			IntVector xloc = v.and(MASK);
+			IntVector yloc = v.lanewise(VectorOperators.LSHR, BITS).and(MASK);
+			IntVector time = v.lanewise(VectorOperators.LSHR, 2 * BITS);
+
+			VectorMask<Integer> match = time.sub(timeMin).compare(VectorOperators.UNSIGNED_LE, timeRange);
+			// inside the triangle exactly when a * x + b * y + c >= 0 for all three edges
+			for (int edge = 0; edge < 9; edge += 3) {
+				IntVector side = xloc.mul(edges[edge]).add(yloc.mul(edges[edge + 1])).add(edges[edge + 2]);
+				match = match.and(side.compare(VectorOperators.GE, 0));
+			}
+
+			count = indices(match, i, out, count);
+		}
+
+		return scalarTriangle(cells, i, to, tri, timeMin, timeMax, out, count);
+	}
+
+	/**
+	 * Appends the indices of the set lanes of a mask to out
+	 *
+	 * @param base	 the index of lane 0
+	 * @return the number of indices in out afterwards
+	 */
+	private static int indices(VectorMask<Integer> match, int base, int[] out, int count) {
+		for (long bits = match.toLong(); bits != 0; bits &= bits - 1)
+			out[count++] = base + Long.numberOfTrailingZeros(bits);
+
+		return count;
+	}
+}
@@ -0,0 +1,191 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The BatchQueryExecutor class runs a whole file of queries against a built KDTree, or any other SpatialIndex, on a pool of threads.
+ * Queries only read the engine (see SpatialIndex.prepareForQueries), so they are independent of each other and can run in any order;
+ * the results still come back in the order of the lines of the query file, the same as KDTree's process*Queries methods.
+ *
+ * The queries are split into chunks of consecutive lines, and each chunk is one task, so a task is big enough
+ * that handing it to a thread costs little next to running it. Each task writes its results into its own range of the output list,
+ * and the list is returned only after every task's Future has completed.
+ *
+ * The pool is either a fixed pool of platform threads or, on a JVM that has them, one virtual thread per task.
+ * After each batch, getQueryCount, getElapsedNanos, and getQueriesPerSecond report how long it took.
+ */
+public class BatchQueryExecutor {
+
+	// number of consecutive queries in one task
+	private static final int CHUNK_SIZE = 256;
+
+	private final SpatialIndex index;
+	private final int threads;
+	private final boolean virtualThreads;
+
+	// statistics of the last batch
+	private int queryCount;
+	private long elapsedNanos;
+
+	/**
+	 * Constructor
+	 *
+	 * @param index				the engine to run the queries against, which must not be modified while a batch is running
+	 * @param threads			the number of platform threads in the pool (ignored when virtual threads are used)
+	 * @param virtualThreads	true to run each task on its own virtual thread if the JVM supports them, false to use platform threads
+	 */
+	public BatchQueryExecutor(SpatialIndex index, int threads, boolean virtualThreads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be at least 1: " + threads);
+
+		this.index = index;
+		this.threads = threads;
+		this.virtualThreads = virtualThreads;
+		queryCount = 0;
+		elapsedNanos = 0;
+	}
+
+	/**
+	 * Constructor, with one platform thread per available processor
+	 *
+	 * @param index	  the engine to run the queries against, which must not be modified while a batch is running
+	 */
+	public BatchQueryExecutor(SpatialIndex index) {
+		this(index, Runtime.getRuntime().availableProcessors(), false);
+	}
+
+	/**
+	 * The parallel version of KDTree.processTriangleQueries
+	 *
+	 * @param triangleFile	  the file of triangle queries, one "time, x1, y1, x2, y2, x3, y3" per line
+	 * @return the mobileIDs in each triangle query region, in the order of the lines of the file
+	 */
+	public ArrayList<List<Long>> processTriangleQueries(String triangleFile) {
+		return run(KDTree.TRIANGLE_QUERY, triangleFile);
+	}
+
+	/**
+	 * The parallel version of KDTree.processTimeIntQueries
+	 *
+	 * @param timeIntFile	 the file of timeInt queries, one "start, end, x1, y1, x2, y2" per line
+	 * @return the mobileIDs in each rectangle query region at some time point in [start, end], in the order of the lines of the file
+	 */
+	public ArrayList<List<Long>> processTimeIntQueries(String timeIntFile) {
+		return run(KDTree.TIME_INT_QUERY, timeIntFile);
+	}
+
+	/**
+	 * The parallel version of KDTree.processTimeAllIntQueries
+	 *
+	 * @param timeIntFile	 the file of timeAllInt queries, one "start, end, x1, y1, x2, y2" per line
+	 * @return the mobileIDs in each rectangle query region at every time point in [start, end], in the order of the lines of the file
+	 */
+	public ArrayList<List<Long>> processTimeAllIntQueries(String timeIntFile) {
+		return run(KDTree.TIME_ALL_INT_QUERY, timeIntFile);
+	}
+
+	/**
+	 * @return the number of queries in the last batch
+	 */
+	public int getQueryCount() {
+		return queryCount;
+	}
+
+	/**
+	 * @return the wall-clock time the last batch took to run, in nanoseconds, not counting reading the query file
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return the throughput of the last batch, in queries per second
+	 */
+	public double getQueriesPerSecond() {
+		return elapsedNanos == 0 ? 0 : queryCount * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * Runs a file of queries on the pool and waits for all of them
+	 *
+	 * @param type		   KDTree.TRIANGLE_QUERY, TIME_INT_QUERY, or TIME_ALL_INT_QUERY
+	 * @param queryFile	   the file of queries
+	 * @return the results of the queries, in file order
+	 */
+	private ArrayList<List<Long>> run(final int type, String queryFile) {
+		final int[] queries = KDTree.readQueries(queryFile, type);
+		final int fields = KDTree.queryFields(type);
+		final int n = queries.length / fields;
+		// filled in place by the tasks; set doesn't change the list's structure, so tasks writing different indices don't interfere
+		final ArrayList<List<Long>> outputLines = new ArrayList<List<Long>>(Collections.nCopies(n, (List<Long>) null));
+
+		index.prepareForQueries();
+		long startTime = System.nanoTime();
+
+		ExecutorService pool = newPool();
+		try {
+			List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+
+			for (int from = 0; from < n; from += CHUNK_SIZE) {
+				final int chunkFrom = from;
+				final int chunkTo = Math.min(n, from + CHUNK_SIZE);
+
+				tasks.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = chunkFrom; i < chunkTo; i++)
+							outputLines.set(i, runQuery(type, queries, i * fields));
+						return null;
+					}
+				}));
+			}
+
+			// Future.get makes each task's writes to outputLines visible here
+			for (Future<Void> task : tasks)
+				task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while running a query batch", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		elapsedNanos = System.nanoTime() - startTime;
+		queryCount = n;
+
+		return outputLines;
+	}
+
+	private List<Long> runQuery(int type, int[] queries, int i) {
+		LongList mobileIDs = new LongList();
+		KDTree.runQuery(index, type, queries, i, mobileIDs);
+		return mobileIDs.toList();
+	}
+
+	/**
+	 * Creates the pool for one batch. Virtual threads are looked up reflectively, so this class still compiles and runs
+	 * on JVMs without them, falling back to platform threads.
+	 */
+	private ExecutorService newPool() {
+		if (virtualThreads) {
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				// no virtual threads on this JVM
+			}
+		}
+
+		return Executors.newFixedThreadPool(threads);
+	}
+}
@@ -0,0 +1,647 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * The BucketKDTree class is a bucketed variant of KDTree. In KDTree every record is a node of the tree, so the tree has n nodes
+ * and a query pays a branch and a pointer dereference for every record it looks at. Here the internal nodes only split space,
+ * and the records are kept in the leaves, in pages of up to leafSize records: a mobile ID array and an array of the XLOC, YLOC, and time packed into one int.
+ * A tree of n records has about 2n / leafSize nodes and is about log2(leafSize) levels shallower than KDTree,
+ * and once a query gets down to a leaf it switches to a tight linear scan of the leaf's two arrays.
+ *
+ * An internal node splits its cell on one dimension at a value: records less than the value go left and the rest go right, the same as KDTree.
+ * A leaf that overflows is split at the median of the dimension in which its records are most spread out, so the tree adapts to the data
+ * whatever order the records come in. A leaf whose records are all at the same point can't be split, and just grows.
+ * insertFile into an empty tree builds it in balanced form all at once, the same way, instead of splitting leaf after leaf.
+ *
+ * The leaf size is a trade-off between the cost of descending (small leaves) and of scanning records outside the query region (big leaves);
+ * DEFAULT_LEAF_SIZE works well for the project's queries, and sizes from 32 to 256 are all reasonable.
+ */
+public class BucketKDTree implements SpatialIndex, RecordIndex {
+
+	private static final int BITS = 10;
+	private static final int MASK = (1 << BITS) - 1;
+
+	public static final int DEFAULT_LEAF_SIZE = 64;
+	public static final int MIN_LEAF_SIZE = 2;
+
+	// dimension values of an internal node, the same as a recordNode's discriminator
+	private static final int XLOC = 0;
+	private static final int YLOC = 1;
+	private static final int TIME = 2;
+
+	// xMin, xMax, yMin, yMax, timeMin, timeMax, inside
+	private static final int STATE = 7;
+
+	/**
+	 * A node of the tree: an internal node, which only has a split, or a leaf, which only has a page of records
+	 */
+	private static class Node {
+		int dimension;
+		int split;
+		Node left;
+		Node right;
+
+		long[] phoneIDs;
+		int[] cells;
+		int count;
+
+		boolean isLeaf() {
+			return phoneIDs != null;
+		}
+	}
+
+	private final int leafSize;
+	private Node root;
+	private int size;
+
+	/**
+	 * Constructor, with leaves of DEFAULT_LEAF_SIZE records
+	 *
+	 */
+	public BucketKDTree() {
+		this(DEFAULT_LEAF_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param leafSize	 the most records a leaf holds before it is split, at least MIN_LEAF_SIZE
+	 */
+	public BucketKDTree(int leafSize) {
+		if (leafSize < MIN_LEAF_SIZE)
+			throw new IllegalArgumentException("leaf size must be at least " + MIN_LEAF_SIZE + ": " + leafSize);
+
+		this.leafSize = leafSize;
+		root = newLeaf(new long[leafSize + 1], new int[leafSize + 1], 0);
+		size = 0;
+	}
+
+	private static Node newLeaf(long[] phoneIDs, int[] cells, int count) {
+		Node leaf = new Node();
+		leaf.phoneIDs = phoneIDs;
+		leaf.cells = cells;
+		leaf.count = count;
+		return leaf;
+	}
+
+	private static int pack(int xloc, int yloc, int time) {
+		return xloc | (yloc << BITS) | (time << (2 * BITS));
+	}
+
+	private static int value(int cell, int dimension) {
+		return (cell >>> (BITS * dimension)) & MASK;
+	}
+
+	/**
+	 * Adds a record. Only its values are copied, so the recordNode can be used again afterwards.
+	 *
+	 * @param r	  the record
+	 */
+	@Override
+	public void insert(recordNode r) {
+		add(r.getPhoneID(), r.getXloc(), r.getYloc(), r.getTime());
+	}
+
+	/**
+	 * Adds a record to the leaf whose cell it is in, and splits the leaf if that makes it overflow
+	 *
+	 * @param phoneID	the mobile ID of the record
+	 * @param xloc		the x-coordinate of the record
+	 * @param yloc		the y-coordinate of the record
+	 * @param time		the hour of the record
+	 */
+	@Override
+	public void add(long phoneID, int xloc, int yloc, int time) {
+		if ((xloc | yloc | time) < 0 || xloc > MASK || yloc > MASK || time > MASK)
+			throw new IllegalArgumentException("record (" + xloc + ", " + yloc + ", " + time + ") is outside [0," + MASK + "]");
+
+		int cell = pack(xloc, yloc, time);
+		Node node = root;
+		while (!node.isLeaf())
+			node = value(cell, node.dimension) < node.split ? node.left : node.right;
+
+		if (node.count == node.phoneIDs.length) {
+			node.phoneIDs = Arrays.copyOf(node.phoneIDs, 2 * node.count);
+			node.cells = Arrays.copyOf(node.cells, 2 * node.count);
+		}
+
+		node.phoneIDs[node.count] = phoneID;
+		node.cells[node.count] = cell;
+		node.count++;
+		size++;
+
+		// a leaf of records all at one point can't be split, so it is only tried again once its page fills up, which keeps adding to it linear
+		if (node.count > leafSize && node.count == node.phoneIDs.length)
+			splitLeaf(node);
+	}
+
+	/**
+	 * Turns an overflowing leaf into an internal node with two leaves, unless all of its records are at the same point
+	 */
+	private void splitLeaf(Node leaf) {
+		int dimension = widestDimension(leaf.cells, 0, leaf.count);
+		if (dimension < 0)
+			return;
+
+		int mid = partition(leaf.phoneIDs, leaf.cells, 0, leaf.count, dimension);
+
+		leaf.dimension = dimension;
+		leaf.split = value(leaf.cells[mid], dimension);
+		leaf.left = newLeaf(copyPage(leaf.phoneIDs, 0, mid), copyPage(leaf.cells, 0, mid), mid);
+		leaf.right = newLeaf(copyPage(leaf.phoneIDs, mid, leaf.count), copyPage(leaf.cells, mid, leaf.count), leaf.count - mid);
+		leaf.phoneIDs = null;
+		leaf.cells = null;
+		leaf.count = 0;
+	}
+
+	private long[] copyPage(long[] values, int from, int to) {
+		long[] page = new long[Math.max(to - from, leafSize) + 1];
+		System.arraycopy(values, from, page, 0, to - from);
+		return page;
+	}
+
+	private int[] copyPage(int[] values, int from, int to) {
+		int[] page = new int[Math.max(to - from, leafSize) + 1];
+		System.arraycopy(values, from, page, 0, to - from);
+		return page;
+	}
+
+	/**
+	 * @return the dimension in which the records in [from, to) are most spread out, or -1 if they are all at the same point
+	 */
+	private static int widestDimension(int[] cells, int from, int to) {
+		int widest = -1;
+		int widestSpread = 0;
+
+		for (int dimension = XLOC; dimension <= TIME; dimension++) {
+			int min = MASK;
+			int max = 0;
+			for (int i = from; i < to; i++) {
+				int v = value(cells[i], dimension);
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+
+			if (max - min > widestSpread) {
+				widest = dimension;
+				widestSpread = max - min;
+			}
+		}
+
+		return widest;
+	}
+
+	/**
+	 * Splits the records in [from, to), which must not all have the same value in the dimension, at about their median in it:
+	 * every record before the returned index is less than the split value, and every record from it on is greater than or equal to it.
+	 *
+	 * @return the index of the first record of the right half, strictly between from and to; its value in the dimension is the split value
+	 */
+	private static int partition(long[] phoneIDs, int[] cells, int from, int to, int dimension) {
+		int[] values = new int[to - from];
+		for (int i = from; i < to; i++)
+			values[i - from] = value(cells[i], dimension);
+		int split = select(values, values.length / 2);
+
+		// with many records at the median, the records less than it could be none; split above the smallest value then
+		int smallest = MASK;
+		int above = MASK + 1;
+		for (int v : values)
+			smallest = Math.min(smallest, v);
+		if (split == smallest) {
+			for (int v : values) {
+				if (v > smallest)
+					above = Math.min(above, v);
+			}
+			split = above;
+		}
+
+		int mid = from;
+		for (int i = from; i < to; i++) {
+			if (value(cells[i], dimension) < split) {
+				long phoneID = phoneIDs[i];
+				int cell = cells[i];
+				phoneIDs[i] = phoneIDs[mid];
+				cells[i] = cells[mid];
+				phoneIDs[mid] = phoneID;
+				cells[mid] = cell;
+				mid++;
+			}
+		}
+
+		// move a record with the split value itself to the front of the right half, so the caller can read the split there
+		for (int i = mid; i < to; i++) {
+			if (value(cells[i], dimension) == split) {
+				long phoneID = phoneIDs[i];
+				int cell = cells[i];
+				phoneIDs[i] = phoneIDs[mid];
+				cells[i] = cells[mid];
+				phoneIDs[mid] = phoneID;
+				cells[mid] = cell;
+				break;
+			}
+		}
+
+		return mid;
+	}
+
+	/**
+	 * Quickselect: reorders values so that the k-th smallest is at index k, and returns it
+	 */
+	private static int select(int[] values, int k) {
+		int lo = 0;
+		int hi = values.length - 1;
+
+		while (lo < hi) {
+			int pivot = values[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+
+			while (i <= j) {
+				while (values[i] < pivot)
+					i++;
+				while (values[j] > pivot)
+					j--;
+				if (i <= j) {
+					int v = values[i];
+					values[i] = values[j];
+					values[j] = v;
+					i++;
+					j--;
+				}
+			}
+
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				break;
+		}
+
+		return values[k];
+	}
+
+	/**
+	 * Adds every record of a file in the same format as KDTree.insertFile reads.
+	 * If the tree is empty, it is built in balanced form out of the whole file at once.
+	 *
+	 * @param filePath	 the input file
+	 */
+	@Override
+	public void insertFile(String filePath) {
+		try {
+			long[] data = MappedParser.parse(filePath, 4);
+
+			if (size > 0) {
+				for (int i = 0; i < data.length; i += 4)
+					add(data[i], (int) data[i + 1], (int) data[i + 2], (int) data[i + 3]);
+				return;
+			}
+
+			int n = data.length / 4;
+			long[] phoneIDs = new long[n];
+			int[] cells = new int[n];
+			for (int i = 0; i < n; i++) {
+				int xloc = (int) data[4 * i + 1];
+				int yloc = (int) data[4 * i + 2];
+				int time = (int) data[4 * i + 3];
+				if ((xloc | yloc | time) < 0 || xloc > MASK || yloc > MASK || time > MASK)
+					throw new IllegalArgumentException("record (" + xloc + ", " + yloc + ", " + time + ") is outside [0," + MASK + "]");
+
+				phoneIDs[i] = data[4 * i];
+				cells[i] = pack(xloc, yloc, time);
+			}
+
+			build(phoneIDs, cells);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Replaces the (empty) tree with a balanced tree of the given records, splitting every range of more than leafSize records
+	 * at its median in its widest dimension. Uses an explicit stack of ranges rather than recursion.
+	 */
+	private void build(long[] phoneIDs, int[] cells) {
+		root = new Node();
+		size = phoneIDs.length;
+
+		Node[] nodes = new Node[64];
+		int[] ranges = new int[128];
+		int top = 0;
+		nodes[top] = root;
+		ranges[0] = 0;
+		ranges[1] = phoneIDs.length;
+		top++;
+
+		while (top > 0) {
+			top--;
+			Node node = nodes[top];
+			int from = ranges[2 * top];
+			int to = ranges[2 * top + 1];
+			nodes[top] = null;
+
+			int dimension = to - from > leafSize ? widestDimension(cells, from, to) : -1;
+			if (dimension < 0) {
+				node.phoneIDs = copyPage(phoneIDs, from, to);
+				node.cells = copyPage(cells, from, to);
+				node.count = to - from;
+				continue;
+			}
+
+			int mid = partition(phoneIDs, cells, from, to, dimension);
+			node.dimension = dimension;
+			node.split = value(cells[mid], dimension);
+			node.left = new Node();
+			node.right = new Node();
+
+			if (top + 2 > nodes.length) {
+				nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+				ranges = Arrays.copyOf(ranges, 2 * ranges.length);
+			}
+			nodes[top] = node.right;
+			ranges[2 * top] = mid;
+			ranges[2 * top + 1] = to;
+			top++;
+			nodes[top] = node.left;
+			ranges[2 * top] = from;
+			ranges[2 * top + 1] = mid;
+			top++;
+		}
+	}
+
+	/**
+	 * Nothing is put off until the next query, so this only exists for SpatialIndex
+	 */
+	@Override
+	public void prepareForQueries() {
+	}
+
+	/**
+	 * @return the number of records in the tree
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the leaf size the tree was created with
+	 */
+	public int getLeafSize() {
+		return leafSize;
+	}
+
+	/**
+	 * @return the number of levels from the root down to the deepest leaf (1 for a tree that is a single leaf)
+	 */
+	public int getHeight() {
+		return (int) walk()[0];
+	}
+
+	/**
+	 * @return the number of nodes in the tree, internal nodes and leaves
+	 */
+	public int getNodeCount() {
+		return (int) walk()[1];
+	}
+
+	/**
+	 * @return the approximate number of bytes of heap used by the tree, including unused page capacity
+	 */
+	public long getMemoryBytes() {
+		return walk()[2];
+	}
+
+	/**
+	 * Visits every node
+	 *
+	 * @return {the height, the number of nodes, the approximate bytes used}
+	 */
+	private long[] walk() {
+		int height = 0;
+		int count = 0;
+		long bytes = 0;
+
+		Node[] nodes = new Node[64];
+		int[] depths = new int[64];
+		int top = 0;
+		nodes[top] = root;
+		depths[top++] = 1;
+
+		while (top > 0) {
+			Node node = nodes[--top];
+			int depth = depths[top];
+			height = Math.max(height, depth);
+			count++;
+			// the object header and fields of the node
+			bytes += 48;
+
+			if (node.isLeaf()) {
+				bytes += 16 + 8L * node.phoneIDs.length + 16 + 4L * node.cells.length;
+				continue;
+			}
+
+			if (top + 2 > nodes.length) {
+				nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+				depths = Arrays.copyOf(depths, 2 * depths.length);
+			}
+			nodes[top] = node.left;
+			depths[top++] = depth + 1;
+			nodes[top] = node.right;
+			depths[top++] = depth + 1;
+		}
+
+		return new long[] {height, count, bytes};
+	}
+
+	/**
+	 * Searches the tree for the records inside a box (clamped to [0,1023]) that are also inside region.
+	 * Each one is passed to sink, or has its time added under its mobile ID to hm, whichever one is non-null.
+	 * Subtrees whose cells miss the box or region are pruned, and leaves whose cells lie entirely inside both are taken without testing their records.
+	 */
+	private void search(int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax, QueryRegion region, LongConsumer sink, LongBitsetMap hm) {
+		xMin = Math.max(xMin, 0);
+		yMin = Math.max(yMin, 0);
+		timeMin = Math.max(timeMin, 0);
+		xMax = Math.min(xMax, MASK);
+		yMax = Math.min(yMax, MASK);
+		timeMax = Math.min(timeMax, MASK);
+		if (xMin > xMax || yMin > yMax || timeMin > timeMax)
+			return;
+
+		int[] box = {xMin, xMax, yMin, yMax, timeMin, timeMax};
+		int[] cell = new int[STATE];
+		SearchStack stack = new SearchStack();
+		cell[1] = MASK;
+		cell[3] = MASK;
+		cell[5] = MASK;
+		stack.push(root, cell);
+
+		while (stack.pop(cell)) {
+			Node node = stack.node;
+			boolean inside = cell[6] != 0;
+
+			if (node.isLeaf()) {
+				scanLeaf(node, inside, box, region, stack, sink, hm);
+				continue;
+			}
+
+			// the children's cells are the node's cell with one bound moved to the split: [min, split - 1] on the left and [split, max] on the right
+			int low = 2 * node.dimension;
+			int min = cell[low];
+			int max = cell[low + 1];
+
+			if (node.split <= max) {
+				cell[low] = node.split;
+				if (inside || classify(cell, box, region))
+					stack.push(node.right, cell);
+				cell[6] = inside ? 1 : 0;
+				cell[low] = min;
+			}
+			if (node.split > min) {
+				cell[low + 1] = node.split - 1;
+				if (inside || classify(cell, box, region))
+					stack.push(node.left, cell);
+			}
+		}
+	}
+
+	/**
+	 * Checks a cell against the query box and region
+	 *
+	 * @param cell	 the bounds of the cell, whose inside flag (cell[6]) is set to 1 if it lies entirely inside both
+	 * @return false if the cell misses the box or the region
+	 */
+	private static boolean classify(int[] cell, int[] box, QueryRegion region) {
+		for (int i = 0; i < 6; i += 2) {
+			if (cell[i + 1] < box[i] || cell[i] > box[i + 1])
+				return false;
+		}
+
+		int position = region.classify(Math.max(cell[0], box[0]), Math.min(cell[1], box[1]), Math.max(cell[2], box[2]), Math.min(cell[3], box[3]));
+		if (position == QueryRegion.OUTSIDE)
+			return false;
+
+		boolean inside = position == QueryRegion.INSIDE;
+		for (int i = 0; i < 6; i += 2)
+			inside &= box[i] <= cell[i] && cell[i + 1] <= box[i + 1];
+		cell[6] = inside ? 1 : 0;
+
+		return true;
+	}
+
+	/**
+	 * The tight loop at the bottom of a search: goes through a leaf's page in order, taking every record if the leaf's cell is inside the query,
+	 * and otherwise testing the whole page against the box and region at once with the LeafFilter (region is a Triangle or the Rectangle of the box)
+	 */
+	private static void scanLeaf(Node leaf, boolean inside, int[] box, QueryRegion region, SearchStack stack, LongConsumer sink, LongBitsetMap hm) {
+		long[] phoneIDs = leaf.phoneIDs;
+		int[] cells = leaf.cells;
+		int count = leaf.count;
+
+		if (inside) {
+			for (int i = 0; i < count; i++) {
+				if (sink != null)
+					sink.accept(phoneIDs[i]);
+				else
+					hm.set(phoneIDs[i], value(cells[i], TIME));
+			}
+			return;
+		}
+
+		int[] matches = stack.matches(count);
+		int found = region instanceof Triangle
+				? LeafFilter.getInstance().triangle(cells, 0, count, (Triangle) region, box[4], box[5], matches)
+				: LeafFilter.getInstance().box(cells, 0, count, box[0], box[1], box[2], box[3], box[4], box[5], matches);
+
+		for (int j = 0; j < found; j++) {
+			int i = matches[j];
+			if (sink != null)
+				sink.accept(phoneIDs[i]);
+			else
+				hm.set(phoneIDs[i], value(cells[i], TIME));
+		}
+	}
+
+	/**
+	 * The explicit stack of a search: nodes with the bounds of their cells and whether the cell is already known to be inside the query
+	 */
+	private static class SearchStack {
+		private Node[] nodes = new Node[64];
+		private int[] state = new int[64 * STATE];
+		private int size = 0;
+		// the indices of the records of a leaf that match the query
+		private int[] matches = new int[64];
+
+		// the node popped last
+		Node node;
+
+		void push(Node node, int[] cell) {
+			if (size == nodes.length) {
+				nodes = Arrays.copyOf(nodes, 2 * size);
+				state = Arrays.copyOf(state, 2 * state.length);
+			}
+
+			System.arraycopy(cell, 0, state, size * STATE, STATE);
+			nodes[size++] = node;
+		}
+
+		/**
+		 * @return the array for the matches of a leaf, with room for at least count of them
+		 */
+		int[] matches(int count) {
+			if (matches.length < count)
+				matches = new int[Math.max(count, 2 * matches.length)];
+			return matches;
+		}
+
+		/**
+		 * Pops the top node into node and its state into cell
+		 *
+		 * @return false if the stack was empty
+		 */
+		boolean pop(int[] cell) {
+			if (size == 0)
+				return false;
+
+			size--;
+			node = nodes[size];
+			nodes[size] = null;
+			System.arraycopy(state, size * STATE, cell, 0, STATE);
+			return true;
+		}
+	}
+
+	/**
+	 * Passes the mobile IDs of the records inside the rectangle query region at some time in [start, end] to sink.
+	 * Finds the same records as KDTree.timeInt.
+	 */
+	@Override
+	public void timeInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink) {
+		search(Math.min(x1, x2), Math.max(x1, x2), Math.min(y1, y2), Math.max(y1, y2), start, end, new Rectangle(x1, y1, x2, y2), sink, null);
+	}
+
+	/**
+	 * Passes the mobile IDs of the records inside the triangle query region at the given time to sink.
+	 * Finds the same records as KDTree.triangle.
+	 */
+	@Override
+	public void triangle(int time, int x1, int y1, int x2, int y2, int x3, int y3, LongConsumer sink) {
+		search(Math.min(x1, Math.min(x2, x3)), Math.max(x1, Math.max(x2, x3)), Math.min(y1, Math.min(y2, y3)), Math.max(y1, Math.max(y2, y3)), time, time,
+				new Triangle(x1, y1, x2, y2, x3, y3), sink, null);
+	}
+
+	/**
+	 * Passes the mobile IDs that are inside the rectangle query region at every hour in [start, end] to sink.
+	 * Finds the same mobile IDs as KDTree.timeAllInt.
+	 */
+	@Override
+	public void timeAllInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink) {
+		LongBitsetMap times = new LongBitsetMap(64);
+		search(Math.min(x1, x2), Math.max(x1, x2), Math.min(y1, y2), Math.max(y1, y2), start, end, new Rectangle(x1, y1, x2, y2), null, times);
+
+		SpatialIndex.acceptAllHours(times, start, end, sink);
+	}
+}
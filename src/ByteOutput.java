@@ -0,0 +1,112 @@
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The ByteOutput class is the shared output path of the tree dump and the query result files.
+ * Longs are formatted digit by digit straight into one reusable direct ByteBuffer, and the buffer is drained through a FileChannel
+ * whenever it fills up, so writing a result costs no Strings, no boxing, and no char-to-byte encoding.
+ *
+ * It only writes ASCII. beginLine keeps count of the lines written so far,
+ * for formats that put a newline between lines but not after the last one.
+ */
+public class ByteOutput implements Closeable {
+
+	private static final int BUFFER_BYTES = 1 << 16;
+	// the longest a long can be: 19 digits and a sign
+	private static final int MAX_LONG_BYTES = 20;
+
+	private final FileOutputStream stream;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final byte[] digits;
+	private long lines;
+
+	/**
+	 * Constructor, which creates the file or empties it if it already exists
+	 *
+	 * @param filePath	 the file to write to
+	 */
+	public ByteOutput(String filePath) throws IOException {
+		stream = new FileOutputStream(filePath);
+		channel = stream.getChannel();
+		buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+		digits = new byte[MAX_LONG_BYTES];
+		lines = 0;
+	}
+
+	/**
+	 * Writes one ASCII character
+	 *
+	 * @param c	  the character
+	 */
+	public void write(char c) throws IOException {
+		if (!buffer.hasRemaining())
+			flush();
+
+		buffer.put((byte) c);
+	}
+
+	/**
+	 * Writes a string of ASCII characters
+	 *
+	 * @param s	  the string
+	 */
+	public void write(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++)
+			write(s.charAt(i));
+	}
+
+	/**
+	 * Writes a long in decimal, the same as Long.toString would
+	 *
+	 * @param value	  the long
+	 */
+	public void writeLong(long value) throws IOException {
+		if (buffer.remaining() < MAX_LONG_BYTES)
+			flush();
+
+		// work with the negative of value, since every long has a negative but Long.MIN_VALUE has no positive
+		long n = value < 0 ? value : -value;
+		int pos = MAX_LONG_BYTES;
+
+		do {
+			digits[--pos] = (byte) ('0' - (n % 10));
+			n /= 10;
+		} while (n != 0);
+
+		if (value < 0)
+			digits[--pos] = '-';
+
+		buffer.put(digits, pos, MAX_LONG_BYTES - pos);
+	}
+
+	/**
+	 * Starts a new line for formats that separate lines with newlines: writes a newline unless this is the first line
+	 */
+	public void beginLine() throws IOException {
+		if (lines++ > 0)
+			write('\n');
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Writes out whatever is left in the buffer and closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			stream.close();
+		}
+	}
+}
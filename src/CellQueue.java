@@ -0,0 +1,182 @@
+import java.util.Arrays;
+
+/**
+ * The CellQueue class is the priority queue of a best-first search such as KDTree.nearest: subtrees waiting to be searched,
+ * each with the bounds of its region (XLOC, YLOC, and time) and a priority, the smallest possible distance from the query point to the region,
+ * so the closest region always comes out first.
+ *
+ * An entry is either a recordNode of the pointer tree, or a subtree [lo, hi) of a PackedKDTree, for which the node is null.
+ * Like TraversalStack, the state of every entry is kept in primitive arrays, and pop loads the entry with the smallest priority into fields
+ * read with the getters. The heap itself only moves int slot numbers around; an entry's state stays in its slot.
+ */
+public class CellQueue {
+
+	// lo, hi, xMin, xMax, yMin, yMax, timeMin, timeMax
+	private static final int FIELDS = 8;
+
+	private recordNode[] nodes;
+	private int[] state;
+	private long[] priorities;
+	// the number of slots used so far; slots are not reused
+	private int slots;
+
+	// a binary min-heap of slot numbers, by priority
+	private int[] heap;
+	private int size;
+
+	// the entry popped last
+	private recordNode node;
+	private long priority;
+	private int lo;
+	private int hi;
+	private int xMin;
+	private int xMax;
+	private int yMin;
+	private int yMax;
+	private int timeMin;
+	private int timeMax;
+
+	/**
+	 * Constructor
+	 *
+	 */
+	public CellQueue() {
+		nodes = new recordNode[64];
+		state = new int[64 * FIELDS];
+		priorities = new long[64];
+		heap = new int[64];
+		slots = 0;
+		size = 0;
+	}
+
+	/**
+	 * Adds a subtree
+	 *
+	 * @param priority	the smallest possible distance from the query point to the region
+	 * @param node		the root of a pointer subtree, or null for a packed subtree
+	 * @param lo		the first index of a packed subtree
+	 * @param hi		one past the last index of a packed subtree
+	 * @param xMin		the minimum possible x value of the region
+	 * @param xMax		the maximum possible x value of the region
+	 * @param yMin		the minimum possible y value of the region
+	 * @param yMax		the maximum possible y value of the region
+	 * @param timeMin	the minimum possible time value of the region
+	 * @param timeMax	the maximum possible time value of the region
+	 */
+	public void push(long priority, recordNode node, int lo, int hi, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		if (slots == nodes.length) {
+			nodes = Arrays.copyOf(nodes, 2 * slots);
+			state = Arrays.copyOf(state, 2 * state.length);
+			priorities = Arrays.copyOf(priorities, 2 * slots);
+		}
+		if (size == heap.length)
+			heap = Arrays.copyOf(heap, 2 * size);
+
+		int slot = slots++;
+		int base = slot * FIELDS;
+		nodes[slot] = node;
+		priorities[slot] = priority;
+		state[base] = lo;
+		state[base + 1] = hi;
+		state[base + 2] = xMin;
+		state[base + 3] = xMax;
+		state[base + 4] = yMin;
+		state[base + 5] = yMax;
+		state[base + 6] = timeMin;
+		state[base + 7] = timeMax;
+
+		// sift the new slot up
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (priorities[heap[parent]] <= priority)
+				break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = slot;
+	}
+
+	/**
+	 * Pops the entry with the smallest priority and loads it into the getters
+	 *
+	 * @return false if the queue was empty
+	 */
+	public boolean pop() {
+		if (size == 0)
+			return false;
+
+		int slot = heap[0];
+		int last = heap[--size];
+
+		// sift the last slot down from the root
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && priorities[heap[child + 1]] < priorities[heap[child]])
+				child++;
+			if (priorities[last] <= priorities[heap[child]])
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = last;
+
+		int base = slot * FIELDS;
+		node = nodes[slot];
+		nodes[slot] = null;
+		priority = priorities[slot];
+		lo = state[base];
+		hi = state[base + 1];
+		xMin = state[base + 2];
+		xMax = state[base + 3];
+		yMin = state[base + 4];
+		yMax = state[base + 5];
+		timeMin = state[base + 6];
+		timeMax = state[base + 7];
+
+		return true;
+	}
+
+	public recordNode getNode() {
+		return node;
+	}
+
+	public long getPriority() {
+		return priority;
+	}
+
+	public int getLo() {
+		return lo;
+	}
+
+	public int getHi() {
+		return hi;
+	}
+
+	public int getXMin() {
+		return xMin;
+	}
+
+	public int getXMax() {
+		return xMax;
+	}
+
+	public int getYMin() {
+		return yMin;
+	}
+
+	public int getYMax() {
+		return yMax;
+	}
+
+	public int getTimeMin() {
+		return timeMin;
+	}
+
+	public int getTimeMax() {
+		return timeMax;
+	}
+}
@@ -0,0 +1,100 @@
+import java.util.function.LongConsumer;
+
+/**
+ * The DistinctSketch class estimates the number of distinct mobile IDs it has been given, in a fixed 1KB no matter how many there are.
+ * It is a HyperLogLog sketch: every mobile ID is hashed, the first PRECISION bits of the hash pick one of 2^PRECISION registers,
+ * and the register keeps the longest run of leading zeros seen in the rest of the hash. Adding the same mobile ID again never changes anything,
+ * and the estimate has a relative standard error of about 1.04 / sqrt(2^PRECISION), a little over 3%.
+ *
+ * Two sketches merge by taking the larger of each pair of registers, which gives exactly the sketch of the union of their mobile IDs.
+ * That is what lets PackedKDTree keep a sketch on each of its large subtrees and answer a distinct-phones count by merging a few of them.
+ * A sketch can't forget a mobile ID, so a sketch of records that have since been deleted can't be used any more.
+ */
+public class DistinctSketch implements LongConsumer {
+
+	private static final int PRECISION = 10;
+	private static final int REGISTERS = 1 << PRECISION;
+
+	private final byte[] registers;
+
+	/**
+	 * Constructor
+	 * Makes an empty sketch.
+	 *
+	 */
+	public DistinctSketch() {
+		registers = new byte[REGISTERS];
+	}
+
+	/**
+	 * Adds a mobile ID to the sketch
+	 *
+	 * @param phoneID	the mobile ID
+	 */
+	@Override
+	public void accept(long phoneID) {
+		long hash = hash(phoneID);
+		int register = (int) (hash >>> (64 - PRECISION));
+		// the position of the first 1 bit after the register bits, capped by a sentinel bit so that it is at most 64 - PRECISION + 1
+		byte rank = (byte) (Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+
+		if (rank > registers[register])
+			registers[register] = rank;
+	}
+
+	/**
+	 * Merges another sketch into this one, so that this one estimates the mobile IDs of both
+	 *
+	 * @param other		the sketch to merge in, which is not changed
+	 */
+	public void merge(DistinctSketch other) {
+		for (int i = 0; i < REGISTERS; i++) {
+			if (other.registers[i] > registers[i])
+				registers[i] = other.registers[i];
+		}
+	}
+
+	/**
+	 * @return the estimated number of distinct mobile IDs added to this sketch or to the sketches merged into it
+	 */
+	public long estimate() {
+		double sum = 0;
+		int zeros = 0;
+
+		for (int i = 0; i < REGISTERS; i++) {
+			sum += 1.0 / (1L << registers[i]);
+			if (registers[i] == 0)
+				zeros++;
+		}
+
+		double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+		double estimate = alpha * REGISTERS * REGISTERS / sum;
+
+		// with few mobile IDs many registers are still empty, and counting them (linear counting) is more accurate
+		if (estimate <= 2.5 * REGISTERS && zeros > 0)
+			estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+
+		return Math.round(estimate);
+	}
+
+	/**
+	 * @return the number of bytes of heap used by a sketch
+	 */
+	public static long memoryBytes() {
+		// the object and the array header
+		return 16 + 16 + REGISTERS;
+	}
+
+	/**
+	 * Mixes the bits of a mobile ID so that nearby IDs get unrelated hashes (the finalizer of the 64-bit MurmurHash3)
+	 */
+	private static long hash(long phoneID) {
+		long h = phoneID;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
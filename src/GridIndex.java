@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * The GridIndex class is a query engine that buckets the records into a uniform 3-D grid over the bounded domain
+ * (XLOC, YLOC, and time are all in [0,1023]), as an alternative to KDTree for dense data and small query boxes.
+ * Each bucket covers cellSize x cellSize locations and cellHours hours, so a query only looks at the buckets its box overlaps:
+ * the records of a bucket that lies entirely inside the query region are taken without testing them, and only the records of the buckets
+ * on the boundary of the region are tested one by one. There is nothing to descend, so a small query costs a few array reads.
+ *
+ * The records are kept in two primitive arrays, the mobile IDs and the XLOC, YLOC, and time packed into one int, sorted by bucket
+ * (time cell first, then y cell, then x cell), with the start of every bucket in a third array, so each row of buckets along x is one contiguous run.
+ * New records are appended, and the arrays are re-sorted (a linear counting sort) before the next query.
+ *
+ * The index also keeps a summed-volume table of the bucket counts, so the number of records in any box of buckets is known in constant time.
+ * QueryPlanner uses it to estimate what a query will cost each engine.
+ */
+public class GridIndex implements SpatialIndex, RecordIndex {
+
+	private static final int BITS = 10;
+	private static final int MASK = (1 << BITS) - 1;
+	private static final int SIDE = 1 << BITS;
+	private static final int INITIAL_CAPACITY = 16;
+	// the most buckets a grid may have, so that the bucket starts and the summed-volume table stay within a few tens of megabytes
+	private static final long MAX_BUCKETS = 1 << 22;
+
+	public static final int DEFAULT_CELL_SIZE = 32;
+	public static final int DEFAULT_CELL_HOURS = 8;
+
+	// log2 of the bucket size in XLOC and YLOC, and in time
+	private final int cellBits;
+	private final int hourBits;
+	// the number of buckets along x (and y), and along time
+	private final int cells;
+	private final int hourCells;
+
+	private long[] phoneIDs;
+	private int[] records;
+	private int size;
+
+	// bucketStart[b] is the index of the first record of bucket b, and bucketStart[b + 1] is one past its last
+	private int[] bucketStart;
+	// volume[satIndex(t, y, x)] is the number of records in the buckets below time cell t, y cell y, and x cell x
+	private int[] volume;
+	// false if records have been added since the arrays were last sorted; volatile so that queries can check it without locking
+	private volatile boolean built;
+
+	/**
+	 * Constructor, with DEFAULT_CELL_SIZE x DEFAULT_CELL_SIZE x DEFAULT_CELL_HOURS buckets
+	 *
+	 */
+	public GridIndex() {
+		this(DEFAULT_CELL_SIZE, DEFAULT_CELL_HOURS);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param cellSize	  the width and height of a bucket, a power of two in [1, 1024]
+	 * @param cellHours	  the number of hours a bucket covers, a power of two in [1, 1024]; the grid can have at most MAX_BUCKETS buckets in all
+	 */
+	public GridIndex(int cellSize, int cellHours) {
+		if (cellSize < 1 || cellSize > SIDE || Integer.bitCount(cellSize) != 1)
+			throw new IllegalArgumentException("cell size must be a power of two in [1, " + SIDE + "]: " + cellSize);
+		if (cellHours < 1 || cellHours > SIDE || Integer.bitCount(cellHours) != 1)
+			throw new IllegalArgumentException("cell hours must be a power of two in [1, " + SIDE + "]: " + cellHours);
+
+		if ((long) (SIDE / cellSize) * (SIDE / cellSize) * (SIDE / cellHours) > MAX_BUCKETS)
+			throw new IllegalArgumentException("a grid of " + cellSize + " x " + cellSize + " x " + cellHours + " buckets has more than " + MAX_BUCKETS + " of them");
+
+		cellBits = Integer.numberOfTrailingZeros(cellSize);
+		hourBits = Integer.numberOfTrailingZeros(cellHours);
+		cells = SIDE >> cellBits;
+		hourCells = SIDE >> hourBits;
+
+		phoneIDs = new long[INITIAL_CAPACITY];
+		records = new int[INITIAL_CAPACITY];
+		size = 0;
+		built = false;
+	}
+
+	@Override
+	public void add(long phoneID, int xloc, int yloc, int time) {
+		if ((xloc | yloc | time) < 0 || xloc > MASK || yloc > MASK || time > MASK)
+			throw new IllegalArgumentException("record (" + xloc + ", " + yloc + ", " + time + ") is outside the grid");
+
+		if (size == phoneIDs.length) {
+			phoneIDs = Arrays.copyOf(phoneIDs, 2 * size);
+			records = Arrays.copyOf(records, 2 * size);
+		}
+
+		phoneIDs[size] = phoneID;
+		records[size] = xloc | (yloc << BITS) | (time << (2 * BITS));
+		size++;
+		built = false;
+	}
+
+	/**
+	 * Adds a record. Only its values are copied, so the recordNode can be used again afterwards.
+	 *
+	 * @param r	  the record
+	 */
+	@Override
+	public void insert(recordNode r) {
+		add(r.getPhoneID(), r.getXloc(), r.getYloc(), r.getTime());
+	}
+
+	/**
+	 * Adds every record of a file in the same format as KDTree.insertFile reads
+	 *
+	 * @param filePath	 the input file
+	 */
+	@Override
+	public void insertFile(String filePath) {
+		try {
+			long[] data = MappedParser.parse(filePath, 4);
+
+			if (size + data.length / 4 > phoneIDs.length) {
+				phoneIDs = Arrays.copyOf(phoneIDs, size + data.length / 4);
+				records = Arrays.copyOf(records, size + data.length / 4);
+			}
+
+			for (int i = 0; i < data.length; i += 4)
+				add(data[i], (int) data[i + 1], (int) data[i + 2], (int) data[i + 3]);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sorts the records into their buckets if any have been added since they were last sorted, so that later queries only read the index
+	 */
+	@Override
+	public void prepareForQueries() {
+		ensureBuilt();
+	}
+
+	/**
+	 * @return the number of records in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the approximate number of bytes of heap used by the index, including unused array capacity
+	 */
+	public long memoryBytes() {
+		long bytes = 16 + 8L * phoneIDs.length + 16 + 4L * records.length;
+		if (bucketStart != null)
+			bytes += 16 + 4L * bucketStart.length + 16 + 4L * volume.length;
+		return bytes;
+	}
+
+	private int bucket(int xCell, int yCell, int timeCell) {
+		return (timeCell * cells + yCell) * cells + xCell;
+	}
+
+	private int satIndex(int timeCell, int yCell, int xCell) {
+		return (timeCell * (cells + 1) + yCell) * (cells + 1) + xCell;
+	}
+
+	/**
+	 * Sorts the records into their buckets if that hasn't been done since the last add. Once the index is built, this is one volatile read,
+	 * so queries running in parallel (see BatchQueryExecutor) don't contend for a lock.
+	 */
+	private void ensureBuilt() {
+		if (!built)
+			build();
+	}
+
+	/**
+	 * Synchronized so that concurrent queries never see the arrays half sorted. The arrays are all set before built,
+	 * so a query that sees built set also sees them.
+	 */
+	private synchronized void build() {
+		if (built)
+			return;
+
+		int buckets = cells * cells * hourCells;
+		int[] start = new int[buckets + 1];
+		for (int i = 0; i < size; i++)
+			start[bucketOf(records[i]) + 1]++;
+		for (int b = 0; b < buckets; b++)
+			start[b + 1] += start[b];
+
+		// a stable counting sort, so the records of a bucket stay in the order they were added
+		long[] sortedIDs = new long[Math.max(size, INITIAL_CAPACITY)];
+		int[] sortedRecords = new int[sortedIDs.length];
+		int[] next = Arrays.copyOf(start, buckets);
+		for (int i = 0; i < size; i++) {
+			int to = next[bucketOf(records[i])]++;
+			sortedIDs[to] = phoneIDs[i];
+			sortedRecords[to] = records[i];
+		}
+
+		int[] sat = new int[(hourCells + 1) * (cells + 1) * (cells + 1)];
+		for (int t = 1; t <= hourCells; t++) {
+			for (int y = 1; y <= cells; y++) {
+				for (int x = 1; x <= cells; x++) {
+					int b = bucket(x - 1, y - 1, t - 1);
+					sat[satIndex(t, y, x)] = start[b + 1] - start[b]
+							+ sat[satIndex(t - 1, y, x)] + sat[satIndex(t, y - 1, x)] + sat[satIndex(t, y, x - 1)]
+							- sat[satIndex(t - 1, y - 1, x)] - sat[satIndex(t - 1, y, x - 1)] - sat[satIndex(t, y - 1, x - 1)]
+							+ sat[satIndex(t - 1, y - 1, x - 1)];
+				}
+			}
+		}
+
+		phoneIDs = sortedIDs;
+		records = sortedRecords;
+		bucketStart = start;
+		volume = sat;
+		built = true;
+	}
+
+	private int bucketOf(int record) {
+		return bucket((record & MASK) >> cellBits, ((record >> BITS) & MASK) >> cellBits, (record >>> (2 * BITS)) >> hourBits);
+	}
+
+	/**
+	 * Clamps a box to the grid
+	 *
+	 * @return {xMin, xMax, yMin, yMax, timeMin, timeMax} clamped to [0,1023], or null if nothing of the box is left
+	 */
+	private static int[] clamp(int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		xMin = Math.max(xMin, 0);
+		yMin = Math.max(yMin, 0);
+		timeMin = Math.max(timeMin, 0);
+		xMax = Math.min(xMax, MASK);
+		yMax = Math.min(yMax, MASK);
+		timeMax = Math.min(timeMax, MASK);
+		if (xMin > xMax || yMin > yMax || timeMin > timeMax)
+			return null;
+
+		return new int[] {xMin, xMax, yMin, yMax, timeMin, timeMax};
+	}
+
+	/**
+	 * @return the number of buckets that a box overlaps
+	 */
+	long bucketsInBox(int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		int[] box = clamp(xMin, xMax, yMin, yMax, timeMin, timeMax);
+		if (box == null)
+			return 0;
+
+		return (long) ((box[1] >> cellBits) - (box[0] >> cellBits) + 1) * ((box[3] >> cellBits) - (box[2] >> cellBits) + 1)
+				* ((box[5] >> hourBits) - (box[4] >> hourBits) + 1);
+	}
+
+	/**
+	 * @return the number of records in the buckets that a box overlaps, which are the records a query over the box has to look at
+	 */
+	int recordsInBox(int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		int[] box = clamp(xMin, xMax, yMin, yMax, timeMin, timeMax);
+		if (box == null)
+			return 0;
+
+		ensureBuilt();
+		int x0 = box[0] >> cellBits;
+		int x1 = (box[1] >> cellBits) + 1;
+		int y0 = box[2] >> cellBits;
+		int y1 = (box[3] >> cellBits) + 1;
+		int t0 = box[4] >> hourBits;
+		int t1 = (box[5] >> hourBits) + 1;
+
+		return volume[satIndex(t1, y1, x1)] - volume[satIndex(t0, y1, x1)] - volume[satIndex(t1, y0, x1)] - volume[satIndex(t1, y1, x0)]
+				+ volume[satIndex(t0, y0, x1)] + volume[satIndex(t0, y1, x0)] + volume[satIndex(t1, y0, x0)]
+				- volume[satIndex(t0, y0, x0)];
+	}
+
+	/**
+	 * @return the volume (locations x hours) of the buckets that a box overlaps
+	 */
+	long bucketVolumeInBox(int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		return bucketsInBox(xMin, xMax, yMin, yMax, timeMin, timeMax) << (2 * cellBits + hourBits);
+	}
+
+	/**
+	 * Visits the buckets that a box (clamped to the grid) overlaps. Each record inside the box that is also inside region
+	 * is passed to sink, or has its time added under its mobile ID to hm, whichever one is non-null.
+	 * Buckets that region classifies as OUTSIDE are skipped, and the records of buckets entirely inside both the box and region aren't tested.
+	 * The records of the other buckets are tested a bucket at a time by the LeafFilter, so region must be a Triangle or the Rectangle of the box.
+	 */
+	private void scan(int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax, QueryRegion region, LongConsumer sink, LongBitsetMap hm) {
+		int[] box = clamp(xMin, xMax, yMin, yMax, timeMin, timeMax);
+		if (box == null)
+			return;
+
+		xMin = box[0];
+		xMax = box[1];
+		yMin = box[2];
+		yMax = box[3];
+		timeMin = box[4];
+		timeMax = box[5];
+
+		ensureBuilt();
+		LeafFilter filter = LeafFilter.getInstance();
+		int[] matches = new int[64];
+		int cellMask = (1 << cellBits) - 1;
+		int hourMask = (1 << hourBits) - 1;
+
+		for (int t = timeMin >> hourBits; t <= timeMax >> hourBits; t++) {
+			int cellTimeMin = t << hourBits;
+			boolean timeInside = timeMin <= cellTimeMin && cellTimeMin + hourMask <= timeMax;
+
+			for (int y = yMin >> cellBits; y <= yMax >> cellBits; y++) {
+				int cellYMin = y << cellBits;
+				int cellYMax = cellYMin + cellMask;
+
+				for (int x = xMin >> cellBits; x <= xMax >> cellBits; x++) {
+					int cellXMin = x << cellBits;
+					int cellXMax = cellXMin + cellMask;
+
+					int b = bucket(x, y, t);
+					int from = bucketStart[b];
+					int to = bucketStart[b + 1];
+					if (from == to)
+						continue;
+
+					// the part of the bucket inside the box, classified against the region
+					int position = region.classify(Math.max(cellXMin, xMin), Math.min(cellXMax, xMax), Math.max(cellYMin, yMin), Math.min(cellYMax, yMax));
+					if (position == QueryRegion.OUTSIDE)
+						continue;
+
+					boolean inside = timeInside && position == QueryRegion.INSIDE
+							&& xMin <= cellXMin && cellXMax <= xMax && yMin <= cellYMin && cellYMax <= yMax;
+
+					if (inside) {
+						for (int i = from; i < to; i++)
+							emit(i, sink, hm);
+						continue;
+					}
+
+					if (matches.length < to - from)
+						matches = new int[Math.max(to - from, 2 * matches.length)];
+					int count = region instanceof Triangle
+							? filter.triangle(records, from, to, (Triangle) region, timeMin, timeMax, matches)
+							: filter.box(records, from, to, xMin, xMax, yMin, yMax, timeMin, timeMax, matches);
+
+					for (int j = 0; j < count; j++)
+						emit(matches[j], sink, hm);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Passes the mobile ID of record i to sink, or adds its time under its mobile ID to hm, whichever one is non-null
+	 */
+	private void emit(int i, LongConsumer sink, LongBitsetMap hm) {
+		if (sink != null)
+			sink.accept(phoneIDs[i]);
+		else
+			hm.set(phoneIDs[i], records[i] >>> (2 * BITS));
+	}
+
+	/**
+	 * Passes the mobile IDs of the records inside the rectangle query region at some time in [start, end] to sink, bucket by bucket.
+	 * Finds the same records as KDTree.timeInt.
+	 */
+	@Override
+	public void timeInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink) {
+		scan(Math.min(x1, x2), Math.max(x1, x2), Math.min(y1, y2), Math.max(y1, y2), start, end, new Rectangle(x1, y1, x2, y2), sink, null);
+	}
+
+	/**
+	 * Passes the mobile IDs of the records inside the triangle query region at the given time to sink.
+	 * Only the buckets of that hour that overlap the triangle are visited, and only the records of the buckets crossed by its edges are tested against it.
+	 */
+	@Override
+	public void triangle(int time, int x1, int y1, int x2, int y2, int x3, int y3, LongConsumer sink) {
+		scan(Math.min(x1, Math.min(x2, x3)), Math.max(x1, Math.max(x2, x3)), Math.min(y1, Math.min(y2, y3)), Math.max(y1, Math.max(y2, y3)), time, time,
+				new Triangle(x1, y1, x2, y2, x3, y3), sink, null);
+	}
+
+	/**
+	 * Passes the mobile IDs that are inside the rectangle query region at every hour in [start, end] to sink.
+	 * Finds the same mobile IDs as KDTree.timeAllInt.
+	 */
+	@Override
+	public void timeAllInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink) {
+		LongBitsetMap times = new LongBitsetMap(64);
+		scan(Math.min(x1, x2), Math.max(x1, x2), Math.min(y1, y2), Math.max(y1, y2), start, end, new Rectangle(x1, y1, x2, y2), null, times);
+
+		SpatialIndex.acceptAllHours(times, start, end, sink);
+	}
+}
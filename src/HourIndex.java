@@ -0,0 +1,313 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.LongConsumer;
+
+/**
+ * The HourIndex class is a secondary layout for exact-time triangle queries: one small 2-D tree (on XLOC and YLOC only) for every hour.
+ * A triangle query at hour t only ever matches records with that time, so it only has to look at hour t's tree
+ * instead of descending through the x and y splits of every other hour in the 3-D tree first.
+ *
+ * Each hour's records are kept in two primitive arrays, the mobile IDs and the XLOC and YLOC packed into one int,
+ * laid out as an implicit tree the same way as in PackedKDTree: the root of [lo, hi) is the middle record, splitting on XLOC at even depths and YLOC at odd depths.
+ * New records are appended to the end of their hour's arrays, and the hour's tree is rebuilt the next time that hour is queried.
+ */
+public class HourIndex implements RecordIndex {
+
+	private static final int HOURS = 1024;
+	private static final int BITS = 10;
+	private static final int MASK = (1 << BITS) - 1;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static final int XLOC_MIN = 0;
+	private static final int XLOC_MAX = 1023;
+	private static final int YLOC_MIN = 0;
+	private static final int YLOC_MAX = 1023;
+
+	private final long[][] phoneIDs;
+	private final int[][] cells;
+	private final int[] counts;
+	// 0 if records have been added to the hour since its tree was last built, 1 if not;
+	// atomic so that queries can check it without locking, and see the hour's arrays as they were when it was set
+	private final AtomicIntegerArray built;
+	private int size;
+
+	/**
+	 * Constructor
+	 *
+	 */
+	public HourIndex() {
+		phoneIDs = new long[HOURS][];
+		cells = new int[HOURS][];
+		counts = new int[HOURS];
+		built = new AtomicIntegerArray(HOURS);
+		size = 0;
+	}
+
+	/**
+	 * Adds a record to the tree for its hour
+	 *
+	 * @param phoneID	the mobile ID of the record
+	 * @param xloc		the x-coordinate of the record
+	 * @param yloc		the y-coordinate of the record
+	 * @param time		the hour of the record
+	 */
+	@Override
+	public void add(long phoneID, int xloc, int yloc, int time) {
+		if ((xloc | yloc | time) < 0 || xloc > MASK || yloc > MASK || time >= HOURS)
+			throw new IllegalArgumentException("record (" + xloc + ", " + yloc + ", " + time + ") is outside [0," + MASK + "]");
+
+		int count = counts[time];
+
+		if (phoneIDs[time] == null) {
+			phoneIDs[time] = new long[INITIAL_CAPACITY];
+			cells[time] = new int[INITIAL_CAPACITY];
+		}
+		else if (count == phoneIDs[time].length) {
+			phoneIDs[time] = Arrays.copyOf(phoneIDs[time], 2 * count);
+			cells[time] = Arrays.copyOf(cells[time], 2 * count);
+		}
+
+		phoneIDs[time][count] = phoneID;
+		cells[time][count] = xloc | (yloc << BITS);
+		counts[time] = count + 1;
+		built.set(time, 0);
+		size++;
+	}
+
+	/**
+	 * Removes one record from the tree for its hour, if the index has it.
+	 * The last record of the hour takes its place, and the hour's tree is rebuilt the next time that hour is queried.
+	 *
+	 * @param phoneID	the mobile ID of the record
+	 * @param xloc		the x-coordinate of the record
+	 * @param yloc		the y-coordinate of the record
+	 * @param time		the hour of the record
+	 *
+	 * @return true if the record was found and removed
+	 */
+	public boolean remove(long phoneID, int xloc, int yloc, int time) {
+		if ((xloc | yloc | time) < 0 || xloc > MASK || yloc > MASK || time >= HOURS || counts[time] == 0)
+			return false;
+
+		long[] ids = phoneIDs[time];
+		int[] xy = cells[time];
+		int cell = xloc | (yloc << BITS);
+		int last = counts[time] - 1;
+
+		for (int i = 0; i <= last; i++) {
+			if (ids[i] == phoneID && xy[i] == cell) {
+				ids[i] = ids[last];
+				xy[i] = xy[last];
+				counts[time] = last;
+				built.set(time, 0);
+				size--;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the number of records in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the approximate number of bytes of heap used by the index, including unused array capacity and array headers
+	 */
+	public long memoryBytes() {
+		// 16 bytes for each array header and 4 for each reference in the outer arrays, the counts, and the built flags
+		long bytes = 4 * (16 + 4L * HOURS) + 16;
+
+		for (int hour = 0; hour < HOURS; hour++) {
+			if (phoneIDs[hour] != null)
+				bytes += 2 * 16 + 12L * phoneIDs[hour].length;
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Passes the mobileIDs of the records inside the triangle query region at the given hour to sink.
+	 *
+	 * @param sink	receives the mobileIDs
+	 * @param time	the hour of the query
+	 * @param tri	the triangle query region
+	 */
+	public void triangle(LongConsumer sink, int time, Triangle tri) {
+		if (time < 0 || time >= HOURS || counts[time] == 0)
+			return;
+
+		ensureBuilt(time);
+		triangleHelper(phoneIDs[time], cells[time], 0, counts[time], 0, sink, tri, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX);
+	}
+
+	/**
+	 * Counts the records inside the triangle query region at the given hour. A cell of the hour's tree inside the triangle
+	 * is one contiguous block of records, so it counts at once.
+	 *
+	 * @param time	the hour of the query
+	 * @param tri	the triangle query region
+	 * @return the number of matching records
+	 */
+	public long countTriangle(int time, Triangle tri) {
+		if (time < 0 || time >= HOURS || counts[time] == 0)
+			return 0;
+
+		ensureBuilt(time);
+		return countHelper(cells[time], 0, counts[time], 0, tri, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX);
+	}
+
+	/**
+	 * Builds the tree of every hour that has had records added since it was last built,
+	 * so that later queries only read the index. Called before running queries from several threads at once.
+	 */
+	public void prepare() {
+		for (int hour = 0; hour < HOURS; hour++)
+			ensureBuilt(hour);
+	}
+
+	/**
+	 * Rebuilds the hour's tree if records have been added to it since it was last built.
+	 * Once the hour is built this is one volatile read, so queries running in parallel (see BatchQueryExecutor) don't contend for a lock;
+	 * only the rebuild is synchronized, so that concurrent queries never see an hour half rebuilt. A query that gets past this
+	 * only reads the arrays, which no other query writes.
+	 */
+	private void ensureBuilt(int time) {
+		if (built.get(time) == 0)
+			rebuild(time);
+	}
+
+	private synchronized void rebuild(int time) {
+		if (built.get(time) == 0) {
+			build(phoneIDs[time], cells[time], 0, counts[time], 0);
+			built.set(time, 1);
+		}
+	}
+
+	private void triangleHelper(long[] ids, int[] xy, int lo, int hi, int dimension, LongConsumer sink, Triangle tri,
+			int xMin, int xMax, int yMin, int yMax) {
+		if (lo >= hi)
+			return;
+
+		int classification = tri.classify(xMin, xMax, yMin, yMax);
+
+		if (classification == QueryRegion.OUTSIDE)
+			return; // prune
+
+		// every record in the hour is at the right time, so a cell inside the triangle matches as a whole
+		if (classification == QueryRegion.INSIDE) {
+			for (int i = lo; i < hi; i++)
+				sink.accept(ids[i]);
+			return;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		int xloc = xy[mid] & MASK;
+		int yloc = xy[mid] >>> BITS;
+
+		if (tri.contains(xloc, yloc))
+			sink.accept(ids[mid]);
+
+		if (dimension == 0) {
+			triangleHelper(ids, xy, lo, mid, 1, sink, tri, xMin, xloc, yMin, yMax);
+			triangleHelper(ids, xy, mid + 1, hi, 1, sink, tri, xloc, xMax, yMin, yMax);
+		}
+		else {
+			triangleHelper(ids, xy, lo, mid, 0, sink, tri, xMin, xMax, yMin, yloc);
+			triangleHelper(ids, xy, mid + 1, hi, 0, sink, tri, xMin, xMax, yloc, yMax);
+		}
+	}
+
+	private long countHelper(int[] xy, int lo, int hi, int dimension, Triangle tri, int xMin, int xMax, int yMin, int yMax) {
+		if (lo >= hi)
+			return 0;
+
+		int classification = tri.classify(xMin, xMax, yMin, yMax);
+
+		if (classification == QueryRegion.OUTSIDE)
+			return 0; // prune
+		if (classification == QueryRegion.INSIDE)
+			return hi - lo;
+
+		int mid = (lo + hi) >>> 1;
+		int xloc = xy[mid] & MASK;
+		int yloc = xy[mid] >>> BITS;
+		long count = tri.contains(xloc, yloc) ? 1 : 0;
+
+		if (dimension == 0) {
+			count += countHelper(xy, lo, mid, 1, tri, xMin, xloc, yMin, yMax);
+			count += countHelper(xy, mid + 1, hi, 1, tri, xloc, xMax, yMin, yMax);
+		}
+		else {
+			count += countHelper(xy, lo, mid, 0, tri, xMin, xMax, yMin, yloc);
+			count += countHelper(xy, mid + 1, hi, 0, tri, xMin, xMax, yloc, yMax);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Lays out [from, to) as an implicit 2-D tree, splitting on the given dimension at the root
+	 */
+	private static void build(long[] ids, int[] xy, int from, int to, int dimension) {
+		if (to - from < 2)
+			return;
+
+		int mid = (from + to) >>> 1;
+		select(ids, xy, from, to - 1, mid, dimension);
+
+		build(ids, xy, from, mid, 1 - dimension);
+		build(ids, xy, mid + 1, to, 1 - dimension);
+	}
+
+	/**
+	 * Quickselect on XLOC (dimension 0) or YLOC (dimension 1), the same as in PackedKDTree
+	 */
+	private static void select(long[] ids, int[] xy, int lo, int hi, int k, int dimension) {
+		int shift = dimension * BITS;
+
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (((xy[mid] >>> shift) & MASK) < ((xy[lo] >>> shift) & MASK))
+				swap(ids, xy, lo, mid);
+			if (((xy[hi] >>> shift) & MASK) < ((xy[lo] >>> shift) & MASK))
+				swap(ids, xy, lo, hi);
+			if (((xy[hi] >>> shift) & MASK) < ((xy[mid] >>> shift) & MASK))
+				swap(ids, xy, mid, hi);
+
+			int pivot = (xy[mid] >>> shift) & MASK;
+			int i = lo;
+			int j = hi;
+
+			while (i <= j) {
+				while (((xy[i] >>> shift) & MASK) < pivot)
+					i++;
+				while (((xy[j] >>> shift) & MASK) > pivot)
+					j--;
+				if (i <= j)
+					swap(ids, xy, i++, j--);
+			}
+
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private static void swap(long[] ids, int[] xy, int i, int j) {
+		long id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+
+		int cell = xy[i];
+		xy[i] = xy[j];
+		xy[j] = cell;
+	}
+}
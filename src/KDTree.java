@@ -1,14 +1,11 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.awt.geom.Line2D;
-import java.awt.geom.Line2D.Double;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongConsumer;
 
 /**
  * This is the KDTree class, which will effectively function as a 3D tree for the sake of this project. 
@@ -17,15 +14,53 @@ import java.awt.geom.Line2D.Double;
  * @author Brent Wang
  * @UID	   112860066
  */
-public class KDTree {
+public class KDTree implements SpatialIndex {
 	
 	private recordNode root;
+	// records that have been moved into compact storage by compact(); records inserted after that still go into the pointer tree at root
+	private PackedKDTree packed;
+	// optional per-hour 2-D index used for triangle queries, kept up to date alongside the tree (null if turned off)
+	private HourIndex hourIndex;
+	// optional index from mobile ID to its time-sorted trajectory, kept up to date alongside the tree (null if turned off)
+	private TrajectoryIndex trajectoryIndex;
+	
+	// rough size of one recordNode object on a 64-bit JVM with compressed references, used for memory accounting
+	private static final int RECORD_NODE_BYTES = 48;
 	private static final int XLOC_MIN = 0;
 	private static final int XLOC_MAX = 1023;
 	private static final int YLOC_MIN = 0;
 	private static final int YLOC_MAX = 1023;
 	private static final int TIME_MIN = 0;
 	private static final int TIME_MAX = 1023;
+	// query types for runQuery and streamQueries
+	static final int TRIANGLE_QUERY = 0;
+	static final int TIME_INT_QUERY = 1;
+	static final int TIME_ALL_INT_QUERY = 2;
+	static final int DISTINCT_TIME_INT_QUERY = 3;
+	
+	// parallel queries only split subtrees estimated to hold at least this many records; smaller ones are searched on one thread
+	private static final int PARALLEL_QUERY_THRESHOLD = 8192;
+	// the default fraction of deleted records at which a storage is rebuilt without them
+	private static final double DEFAULT_COMPACTION_THRESHOLD = 0.25;
+	// with self-balancing inserts, a subtree with a child holding more than this fraction of its records is rebuilt
+	private static final double BALANCE_ALPHA = 0.7;
+	
+	// if true, insertFile builds a balanced tree out of the whole file instead of inserting records one at a time
+	private boolean bulkLoad;
+	// if true, balanced builds split on the dimension with the widest spread instead of cycling through x, y, and time
+	private boolean widestSpread;
+	// if true, large timeInt and triangle queries are split into fork-join tasks
+	private boolean parallelQueries;
+	// number of records in the pointer tree at root (deleted ones included), used to estimate subtree sizes for parallel queries
+	private int pointerSize;
+	// number of deleted records still in the pointer tree
+	private int pointerTombstones;
+	// the fraction of deleted records in the pointer tree or compact storage at which it is rebuilt without them
+	private double compactionThreshold;
+	// if true, insert rebuilds the subtree that has become too unbalanced whenever a record lands too deep
+	private boolean selfBalancing;
+	// the nodes on the path of the last insert, reused from one insert to the next
+	private recordNode[] insertPath;
 	
 	/**
 	 * Constructor
@@ -33,130 +68,435 @@ public class KDTree {
 	 */
 	public KDTree() {
 		root = null;
+		packed = null;
+		hourIndex = null;
+		trajectoryIndex = null;
+		bulkLoad = false;
+		widestSpread = false;
+		parallelQueries = false;
+		pointerSize = 0;
+		pointerTombstones = 0;
+		compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+		selfBalancing = false;
+		insertPath = new recordNode[64];
 	}
 	
 	/**
-	 * Calls printHelper, which then prints out the nodes of the tree in preorder traversal
-	 * Mainly used as a personal test method to see if the output is correct
+	 * Turns bulk loading on or off for insertFile.
+	 * When it is on, insertFile reads the whole file first and then rebuilds the tree out of the existing records and the new ones
+	 * by median partitioning, so the tree stays balanced even when the file is sorted by hour or by phone.
 	 * 
+	 * @param bulkLoad	  true to build a balanced tree in insertFile, false to insert records one at a time in file order
 	 */
-	public void printTree() {
-		printHelper(root);
+	public void setBulkLoad(boolean bulkLoad) {
+		this.bulkLoad = bulkLoad;
 	}
 	
 	/**
-	 * The printHelper method recursively prints out the nodes of the tree in preorder traversal
-	 * Printed in the format "[PARENT mobile ID] LCHILD/RCHILD [CHILD mobile ID]" for all children
-	 * If the current node does not have children, then it does not get printed.
-	 * Again, this is mainly used as a personal test method to see if the output is correct
+	 * Turns self-balancing inserts on or off.
+	 * Without it, a tree built by insert keeps whatever shape the arrival order gives it, so records arriving in time order
+	 * make the tree deeper and queries slower hour by hour. With it on, insert works like a scapegoat tree: every node keeps the size of its subtree,
+	 * and when a record lands deeper than log(n) / log(1 / BALANCE_ALPHA), the lowest ancestor with a child holding more than BALANCE_ALPHA of its records
+	 * is rebuilt in balanced form with KDTreeBuilder. That keeps the depth close to logarithmic, at an amortized cost of O(log^2 n) per insert,
+	 * as long as the values the nodes split on are mostly distinct.
+	 * 
+	 * It can't do better than the split rule allows, though: records equal to a node on its splitting dimension always go right,
+	 * so a run of records sharing a value can only be split on the other dimensions, and records equal on all three can't be split at all.
+	 * Data with many repeated values (many records at the same few locations and hours) can still build long chains, and then inserts
+	 * keep triggering rebuilds of the same large subtree, which makes them far slower than without balancing; even on nearly distinct data,
+	 * ties leave the depth somewhat above the log(n) / log(1 / BALANCE_ALPHA) target. For such data, build the tree with buildBalanced or compact it instead.
+	 * 
+	 * @param selfBalancing	  true to rebuild unbalanced subtrees during insert, false to insert without ever rebalancing
+	 */
+	public void setSelfBalancing(boolean selfBalancing) {
+		this.selfBalancing = selfBalancing;
+	}
+	
+	/**
+	 * Moves every record in the pointer tree into compact storage (a PackedKDTree), which keeps the records in two primitive arrays
+	 * laid out as an implicit balanced tree instead of one recordNode per record.
+	 * Records already in compact storage are merged into the new one, and deleted records are dropped. All the public query and output methods keep working
+	 * after this call; records inserted afterwards go into the pointer tree as usual until the next call to compact.
+	 * Compact storage keeps each coordinate in 10 bits, so if the pointer tree holds a record outside [0,1023],
+	 * this throws an IllegalArgumentException and leaves the tree as it was.
+	 */
+	public void compact() {
+		ArrayList<recordNode> records = new ArrayList<recordNode>();
+		collectNodes(root, records);
+		
+		packed = PackedKDTree.merge(packed, records, widestSpread);
+		root = null;
+		pointerSize = 0;
+		pointerTombstones = 0;
+	}
+	
+	/**
+	 * Compacts the tree (see compact) and writes it to a versioned binary snapshot file, which loadSnapshot can open again
+	 * without reparsing the input or rebuilding the tree. Since it compacts the tree, this changes it like any other write.
+	 * 
+	 * @param filePath	 A string containing the file path of the snapshot file, which we are writing to
+	 */
+	public void writeSnapshot(String filePath) {
+		compact();
+		
+		try {
+			packed.writeSnapshot(filePath);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Replaces the contents of this tree with a snapshot written by writeSnapshot.
+	 * The snapshot is memory-mapped, and queries run directly against the mapped file instead of reading it into the heap.
+	 * 
+	 * @param filePath	 A string containing the file path of the snapshot file
+	 */
+	public void loadSnapshot(String filePath) {
+		try {
+			packed = PackedKDTree.map(filePath);
+			root = null;
+			pointerSize = 0;
+			pointerTombstones = 0;
+			
+			if (hourIndex != null) {
+				hourIndex = new HourIndex();
+				addAllRecords(hourIndex);
+			}
+			if (trajectoryIndex != null) {
+				trajectoryIndex = new TrajectoryIndex();
+				addAllRecords(trajectoryIndex);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Turns the per-hour index for triangle queries on or off.
+	 * When it is on, every record is also kept in a small 2-D tree for its hour (see HourIndex), and triangle queries,
+	 * which only match records at one exact time, search just that hour's tree instead of the 3-D tree.
+	 * The index is built from the records already in the tree and kept up to date by insert, insertFile, and loadSnapshot.
+	 * While it is on, insert throws an IllegalArgumentException for a record outside [0,1023], which the index can't hold.
+	 * 
+	 * @param enabled	true to build and use the per-hour index, false to drop it
+	 */
+	public void setHourIndex(boolean enabled) {
+		if (!enabled) {
+			hourIndex = null;
+			return;
+		}
+		
+		// filled before it is turned on, so that a record it rejects leaves the index off
+		if (hourIndex == null) {
+			HourIndex index = new HourIndex();
+			addAllRecords(index);
+			hourIndex = index;
+		}
+	}
+	
+	/**
+	 * Turns the per-phone trajectory index on or off.
+	 * When it is on, every record is also kept in its phone's time-sorted trajectory (see TrajectoryIndex), which trajectory uses to look up a phone directly,
+	 * and which timeAllInt uses to check candidate phones' whole time window at once.
+	 * The index is built from the records already in the tree and kept up to date by insert, insertFile, and loadSnapshot.
+	 * While it is on, insert throws an IllegalArgumentException for a record outside [0,1023], which the index can't hold.
 	 * 
-	 * @param curr	the current recordNode we are at, for the sake of recursion
+	 * @param enabled	true to build and use the trajectory index, false to drop it
 	 */
-	private void printHelper(recordNode curr) {
-		if (curr == null)
+	public void setTrajectoryIndex(boolean enabled) {
+		if (!enabled) {
+			trajectoryIndex = null;
 			return;
+		}
+		
+		// filled before it is turned on, so that a record it rejects leaves the index off
+		if (trajectoryIndex == null) {
+			TrajectoryIndex index = new TrajectoryIndex();
+			addAllRecords(index);
+			trajectoryIndex = index;
+		}
+	}
+	
+	/**
+	 * Finishes any work the secondary indexes put off until their next query (rebuilding an hour's tree, sorting a trajectory).
+	 * 
+	 * The query methods (triangle, timeInt, timeAllInt, trajectory, and the process*Queries methods) only read the tree,
+	 * so any number of threads can run them at once, and so does writeToFile, as long as no thread is changing the tree at the same time:
+	 * insert, insertFile, buildBalanced, delete, deletePhone, move, compact, purgeTombstones, writeSnapshot (which compacts the tree), and loadSnapshot all do.
+	 * To keep querying while records are being loaded, use VersionedKDTree, which applies changes to a copy and swaps it in.
+	 * The lazy work in the indexes is synchronized, so this isn't needed for correctness; it just keeps the threads from waiting on each other.
+	 */
+	public void prepareForQueries() {
+		if (hourIndex != null)
+			hourIndex.prepare();
+		if (trajectoryIndex != null)
+			trajectoryIndex.prepare();
+	}
+	
+	/**
+	 * Makes an independent copy of the tree, with the same settings, that can be changed without affecting this one.
+	 * The recordNodes of the pointer tree are copied, compact storage is shared (only its tombstones are copied, see PackedKDTree.copy),
+	 * and the secondary indexes that are turned on are rebuilt for the copy. So calling compact before copying makes the copy much cheaper.
+	 * 
+	 * @return the copy
+	 */
+	public KDTree copy() {
+		KDTree copy = new KDTree();
+		copy.bulkLoad = bulkLoad;
+		copy.widestSpread = widestSpread;
+		copy.parallelQueries = parallelQueries;
+		copy.selfBalancing = selfBalancing;
+		copy.compactionThreshold = compactionThreshold;
+		copy.pointerSize = pointerSize;
+		copy.pointerTombstones = pointerTombstones;
+		copy.packed = packed == null ? null : packed.copy();
 		
-		if (curr.getLeft() != null) {
-			System.out.print(curr.getPhoneID());
-			System.out.println(" LCHILD "+ curr.getLeft().getPhoneID());
+		if (root != null) {
+			copy.root = copyNode(root);
+			
+			// walk the original and the copy in step
+			TraversalStack originals = new TraversalStack();
+			TraversalStack copies = new TraversalStack();
+			originals.push(root);
+			copies.push(copy.root);
+			
+			while (originals.pop()) {
+				copies.pop();
+				recordNode original = originals.getNode();
+				recordNode node = copies.getNode();
+				
+				if (original.getLeft() != null) {
+					node.setLeft(copyNode(original.getLeft()));
+					originals.push(original.getLeft());
+					copies.push(node.getLeft());
+				}
+				if (original.getRight() != null) {
+					node.setRight(copyNode(original.getRight()));
+					originals.push(original.getRight());
+					copies.push(node.getRight());
+				}
+			}
 		}
 		
-		if (curr.getRight() != null) {
-			System.out.print(curr.getPhoneID());
-			System.out.println(" RCHILD " + curr.getRight().getPhoneID());
+		if (hourIndex != null) {
+			copy.hourIndex = new HourIndex();
+			copy.addAllRecords(copy.hourIndex);
+		}
+		if (trajectoryIndex != null) {
+			copy.trajectoryIndex = new TrajectoryIndex();
+			copy.addAllRecords(copy.trajectoryIndex);
 		}
 		
-		printHelper(curr.getLeft());
-		printHelper(curr.getRight());
+		return copy;
 	}
 	
 	/**
-	 * This private method will be used to help with writing output to the CSV files.
-	 * It will do a preorder traversal of the tree to get all the nodes (and their children), and add them to an ArrayList in the desired format for output.
-	 * That is, each element of the ArrayList will be a String like "[PARENT mobile ID] LCHILD/RCHILD [CHILD mobile ID]".
+	 * @return a new recordNode with the same record, discriminator, tombstone, subtree size, and tombstone count as r, but no children
+	 */
+	private static recordNode copyNode(recordNode r) {
+		recordNode copy = new recordNode(r.getPhoneID(), r.getXloc(), r.getYloc(), r.getTime());
+		copy.setDiscriminator(r.getDiscriminator());
+		copy.setDeleted(r.isDeleted());
+		copy.setSize(r.getSize());
+		copy.setTombstones(r.getTombstones());
+		
+		return copy;
+	}
+	
+	/**
+	 * Decides whether a query should fork at a node of the pointer tree. The tree is roughly balanced (insertion order permitting),
+	 * so a node at the given depth has about pointerSize >> depth records below it.
 	 * 
-	 * @return An ArrayList containing all the nodes in the tree in preorder, according to the desired output format
+	 * @param depth	  the depth of the node, with the root at depth 0
+	 * @return true if the node's children should be searched in parallel
 	 */
-	private ArrayList<String> allNodesPreOrder() {
-		ArrayList<String> allNodes = new ArrayList<String>();
-		allNodesPreOrderHelper(root, allNodes);
+	private boolean forkAt(int depth) {
+		return parallelQueries && depth < 31 && (pointerSize >> depth) >= PARALLEL_QUERY_THRESHOLD;
+	}
+	
+	/**
+	 * Adds every record in the tree that hasn't been deleted, both in the pointer tree and in compact storage, to a secondary index.
+	 * 
+	 * @param index	  the index to fill
+	 */
+	private void addAllRecords(RecordIndex index) {
+		if (packed != null) {
+			for (int i = 0; i < packed.size(); i++) {
+				if (packed.isDeleted(i))
+					continue;
+				int cell = packed.getCell(i);
+				index.add(packed.getPhoneID(i), PackedKDTree.getXloc(cell), PackedKDTree.getYloc(cell), PackedKDTree.getTime(cell));
+			}
+		}
 		
-		return allNodes;
+		ArrayList<recordNode> records = new ArrayList<recordNode>();
+		collectNodes(root, records);
+		for (recordNode r : records)
+			index.add(r.getPhoneID(), r.getXloc(), r.getYloc(), r.getTime());
 	}
 	
 	/**
-	 * Recursive helper method for allNodesPreOrder, which actually does all the necessary work.
+	 * Adds a new record to every secondary index that is turned on
 	 * 
-	 * @param curr      the current recordNode we are at, for the sake of recursion
-	 * @param allNodes  the ArrayList to which we will add all the output strings
+	 * @param r	  the record being added to the tree
 	 */
-	private void allNodesPreOrderHelper(recordNode curr, ArrayList<String> allNodes) {
-		if (curr == null)
-			return;
-		if (curr.getLeft() != null)
-			allNodes.add(curr.getPhoneID() + " LCHILD " + curr.getLeft().getPhoneID());
-		if (curr.getRight() != null)
-			allNodes.add(curr.getPhoneID() + " RCHILD " + curr.getRight().getPhoneID());
+	private void addToIndexes(recordNode r) {
+		if (hourIndex != null)
+			hourIndex.add(r.getPhoneID(), r.getXloc(), r.getYloc(), r.getTime());
+		if (trajectoryIndex != null)
+			trajectoryIndex.add(r.getPhoneID(), r.getXloc(), r.getYloc(), r.getTime());
+	}
+	
+	/**
+	 * Estimates the heap used by the 3-D tree itself: the recordNodes of the pointer tree (deleted ones included) plus the arrays of compact storage.
+	 * Compare with getHourIndexMemoryBytes to judge the cost of the per-hour index.
+	 * 
+	 * @return the approximate number of bytes of heap used by the tree
+	 */
+	public long getMemoryBytes() {
+		return (long) RECORD_NODE_BYTES * pointerSize + (packed == null ? 0 : packed.memoryBytes());
+	}
+	
+	/**
+	 * @return the approximate number of bytes of heap used by the per-hour index, or 0 if it is turned off
+	 */
+	public long getHourIndexMemoryBytes() {
+		return hourIndex == null ? 0 : hourIndex.memoryBytes();
+	}
+	
+	/**
+	 * @return the approximate number of bytes of heap used by the trajectory index, or 0 if it is turned off
+	 */
+	public long getTrajectoryIndexMemoryBytes() {
+		return trajectoryIndex == null ? 0 : trajectoryIndex.memoryBytes();
+	}
+	
+	/**
+	 * Turns intra-query parallelism on or off for timeInt and triangle.
+	 * When it is on, the upper levels of a large query are split into fork-join tasks on the common pool, each collecting its matches in its own list,
+	 * and the lists are concatenated in the same order a sequential search would have found them in.
+	 * Subtrees estimated to hold fewer than PARALLEL_QUERY_THRESHOLD records are always searched sequentially, so small queries don't pay for tasks.
+	 * This helps single big queries; when many queries run at once (see BatchQueryExecutor) the cores are already busy and it is best left off.
+	 * 
+	 * @param parallelQueries	 true to split large queries into fork-join tasks, false to run every query on the calling thread
+	 */
+	public void setParallelQueries(boolean parallelQueries) {
+		this.parallelQueries = parallelQueries;
+	}
+	
+	/**
+	 * Chooses how balanced builds pick the dimension each node splits on.
+	 * 
+	 * @param widestSpread	 true to split on the dimension with the widest spread of values, false to cycle through x, y, and time by level
+	 */
+	public void setWidestSpreadSplits(boolean widestSpread) {
+		this.widestSpread = widestSpread;
+	}
+	
+	/**
+	 * Calls printHelper, which then prints out the nodes of the tree in preorder traversal
+	 * Mainly used as a personal test method to see if the output is correct
+	 * 
+	 */
+	public void printTree() {
+		if (packed != null) {
+			ArrayList<String> packedNodes = new ArrayList<String>();
+			packed.allNodesPreOrder(packedNodes);
+			for (String line : packedNodes)
+				System.out.println(line);
+		}
+		printHelper(root);
+	}
+	
+	/**
+	 * The printHelper method prints out the nodes of the tree in preorder traversal
+	 * Printed in the format "[PARENT mobile ID] LCHILD/RCHILD [CHILD mobile ID]" for all children
+	 * If the current node does not have children, then it does not get printed.
+	 * Again, this is mainly used as a personal test method to see if the output is correct
+	 * 
+	 * @param root	the root of the subtree to print
+	 */
+	private void printHelper(recordNode root) {
+		TraversalStack stack = new TraversalStack();
+		stack.push(root);
 		
-		allNodesPreOrderHelper(curr.getLeft(), allNodes);
-		allNodesPreOrderHelper(curr.getRight(), allNodes);
+		while (stack.pop()) {
+			recordNode curr = stack.getNode();
+			
+			if (curr.getLeft() != null) {
+				System.out.print(curr.getPhoneID());
+				System.out.println(" LCHILD "+ curr.getLeft().getPhoneID());
+			}
+			
+			if (curr.getRight() != null) {
+				System.out.print(curr.getPhoneID());
+				System.out.println(" RCHILD " + curr.getRight().getPhoneID());
+			}
+			
+			// push the right child first so that the left subtree is visited first
+			stack.push(curr.getRight());
+			stack.push(curr.getLeft());
+		}
 	}
 	
 	/**
 	 * This method will write all the nodes of the tree to an output file, according to the format specified in the project description.
 	 * That is, each line will follow the format: "[PARENT mobile ID] LCHILD/RCHILD [CHILD mobile ID]" in preorder traversal style.
+	 * If the tree has been compacted, the compact storage is written first, followed by the pointer tree of records inserted since.
+	 * The lines are written as the tree is traversed, without collecting them first.
+	 * This only reads the tree, so it can run alongside queries. Deleted records keep their place in the tree until it is compacted,
+	 * so they are listed too; call purgeTombstones first for a file of live records only.
 	 * 
 	 * @param filePath   A string containing the file path of the output file, which we are writing to
 	 */
 	public void writeToFile(String filePath) {
 		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(filePath));
+			// beginLine makes sure that we don't have an extra newline at the end of the file
+			ByteOutput out = new ByteOutput(filePath);
 			
-			ArrayList<String> allNodesPreOrder = allNodesPreOrder();
+			if (packed != null)
+				packed.writeToFile(out);
+			writeToFileHelper(root, out);
 			
-			for (int i = 0; i < allNodesPreOrder.size(); i++) {
-				writer.append(allNodesPreOrder.get(i));
-				
-				// making sure that we don't have an extra newline at the end of the file
-				if (i < allNodesPreOrder.size() - 1)
-					writer.append("\n");
-			}
-			
-			writer.close();
+			out.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
-//	/**
-//	 * @param curr
-//	 * @param writer
-//	 */
-//	private void writeToFileHelper(recordNode curr, BufferedWriter writer) {
-//		if (curr == null)
-//			return;
-//		
-//		if (curr.getLeft() != null) {
-//			try {
-//				writer.append(curr.getPhoneID() + " LCHILD " + curr.getLeft().getPhoneID());
-//				writer.append("\n");
-//			} catch (IOException e) {
-//				e.printStackTrace();
-//			}
-//		}
-//		
-//		if (curr.getRight() != null) {
-//			try {
-//				writer.append(curr.getPhoneID() + " RCHILD " + curr.getRight().getPhoneID());
-//				writer.append("\n");
-//			} catch (IOException e) {
-//				e.printStackTrace();
-//			}
-//		}
-//		
-//		writeToFileHelper(curr.getLeft(), writer);
-//		writeToFileHelper(curr.getRight(), writer);
-//	}
+	/**
+	 * Helper method for writeToFile, which writes the lines of the subtree rooted at root in preorder as it goes.
+	 * 
+	 * @param root	  the root of the subtree to write
+	 * @param out	  the output file
+	 */
+	private void writeToFileHelper(recordNode root, ByteOutput out) throws IOException {
+		TraversalStack stack = new TraversalStack();
+		stack.push(root);
+		
+		while (stack.pop()) {
+			recordNode curr = stack.getNode();
+			
+			if (curr.getLeft() != null) {
+				out.beginLine();
+				out.writeLong(curr.getPhoneID());
+				out.write(" LCHILD ");
+				out.writeLong(curr.getLeft().getPhoneID());
+			}
+			
+			if (curr.getRight() != null) {
+				out.beginLine();
+				out.writeLong(curr.getPhoneID());
+				out.write(" RCHILD ");
+				out.writeLong(curr.getRight().getPhoneID());
+			}
+			
+			// push the right child first so that the left subtree is written first
+			stack.push(curr.getRight());
+			stack.push(curr.getLeft());
+		}
+	}
 	
 	/**
 	 * Insert function
@@ -166,122 +506,475 @@ public class KDTree {
 	 * @param r		the recordNode that we want to insert into the tree
 	 */
 	public void insert(recordNode r) {
-		if (root == null)
+		addToIndexes(r);
+		pointerSize++;
+		
+		if (root == null) {
+			r.setDiscriminator(0);
 			root = r;
+		}
 		else
 			insertHelper(root, r);
 	}
 	
 	/**
-	 * The insertHelper method recursively inserts recordNode r into the tree
-	 * It discriminates on the XLOC, YLOC, or time variable, depending on the level of the node we are currently at
+	 * Rebuilds the tree out of all the records currently in it (except deleted ones) plus the records in batch, using KDTreeBuilder.
+	 * The result is balanced, and keeps the same left/right ordering rules as insert, so all the query and output methods work on it unchanged.
 	 * 
-	 * @param curr     the current recordNode we are at, for the sake of recursion
+	 * @param batch	  the new records to add to the tree
+	 */
+	public void buildBalanced(List<recordNode> batch) {
+		ArrayList<recordNode> records = new ArrayList<recordNode>();
+		collectNodes(root, records);
+		records.addAll(batch);
+		
+		for (recordNode r : batch)
+			addToIndexes(r);
+		
+		recordNode[] array = records.toArray(new recordNode[records.size()]);
+		root = KDTreeBuilder.build(array, 0, array.length, 0, widestSpread);
+		pointerSize = array.length;
+		pointerTombstones = 0;
+	}
+	
+	/**
+	 * Adds every recordNode in the subtree rooted at root to the list, in preorder, leaving out deleted ones
+	 * 
+	 * @param root		the root of the subtree
+	 * @param records	the list we are adding the recordNodes to
+	 */
+	private void collectNodes(recordNode root, List<recordNode> records) {
+		TraversalStack stack = new TraversalStack();
+		stack.push(root);
+		
+		while (stack.pop()) {
+			recordNode curr = stack.getNode();
+			
+			if (!curr.isDeleted())
+				records.add(curr);
+			stack.push(curr.getRight());
+			stack.push(curr.getLeft());
+		}
+	}
+	
+	/**
+	 * The insertHelper method inserts recordNode r into the tree, walking down from curr until it finds an empty child to attach it to.
+	 * It discriminates on the XLOC, YLOC, or time variable, depending on the discriminator stored in the node we are currently at.
+	 * Each node stores its own discriminator, so an insert only costs as much as the depth of the tree.
+	 * It loops instead of recursing, so it works however deep the tree has grown.
+	 * The size of every node on the way down goes up by one, and with self-balancing on, the path is kept for rebalance.
+	 * 
+	 * @param curr     the recordNode to start at (the root)
 	 * @param r		   the recordNode that we are trying to insert into the tree
 	 */
 	private void insertHelper(recordNode curr, recordNode r) {
-		// since we are making a 3-D tree, the dimension we discriminate on will be determined by 
-		// the following formula: (level of current node) mod 3 
-		int discriminator = getLevel(curr) % 3;
-		
-		// discriminate on X
-		if (discriminator == 0) {
-			if (r.getXloc() < curr.getXloc()) {
-				if (curr.getLeft() == null) {
+		int depth = 0;
+		
+		while (true) {
+			if (depth == insertPath.length)
+				insertPath = Arrays.copyOf(insertPath, 2 * depth);
+			insertPath[depth++] = curr;
+			curr.setSize(curr.getSize() + 1);
+			
+			// since we are making a 3-D tree, a new node discriminates on the dimension after its parent's,
+			// so for trees built by insert alone this is the same as (level of current node) mod 3
+			int discriminator = curr.getDiscriminator();
+			boolean goLeft;
+			
+			// discriminate on X
+			if (discriminator == 0)
+				goLeft = r.getXloc() < curr.getXloc();
+			// discriminate on Y
+			else if (discriminator == 1)
+				goLeft = r.getYloc() < curr.getYloc();
+			// discriminate on Z (time)
+			else
+				goLeft = r.getTime() < curr.getTime();
+			
+			recordNode next = goLeft ? curr.getLeft() : curr.getRight();
+			if (next == null) {
+				r.setDiscriminator((discriminator + 1) % 3);
+				if (goLeft)
 					curr.setLeft(r);
-					return;
-				}
-				else {
-					insertHelper(curr.getLeft(), r);
-				}
-			}
-			else if (r.getXloc() >= curr.getXloc()) {
-				if (curr.getRight() == null) {
+				else
 					curr.setRight(r);
-					return;
-				}
-				else {
-					insertHelper(curr.getRight(), r);
-				}
+				break;
 			}
+			
+			curr = next;
 		}
-		// discriminate on Y
-		else if (discriminator == 1) {
-			if (r.getYloc() < curr.getYloc()) {
-				if (curr.getLeft() == null) {
-					curr.setLeft(r);
-					return;
-				}
-				else {
-					insertHelper(curr.getLeft(), r);
-				}
+		
+		// r is at depth `depth`, below the depth nodes in insertPath[0, depth)
+		if (selfBalancing && depth > Math.log(pointerSize) / Math.log(1 / BALANCE_ALPHA))
+			rebalance(depth);
+		Arrays.fill(insertPath, 0, depth, null);
+	}
+	
+	/**
+	 * Finds the scapegoat for an insert that went too deep, the lowest node on the insert path with a child holding more than BALANCE_ALPHA of its records,
+	 * and rebuilds its subtree in balanced form. Deleted records in the subtree are kept, so the sizes and tombstone counts of the nodes above it don't change;
+	 * the tombstone counts inside the new subtree are counted again from its deleted records.
+	 * 
+	 * @param depth	  the number of nodes in insertPath, the path from the root down to the parent of the new record
+	 */
+	private void rebalance(int depth) {
+		for (int i = depth - 1; i >= 0; i--) {
+			recordNode node = insertPath[i];
+			int left = node.getLeft() == null ? 0 : node.getLeft().getSize();
+			int right = node.getRight() == null ? 0 : node.getRight().getSize();
+			
+			if (Math.max(left, right) <= BALANCE_ALPHA * node.getSize())
+				continue;
+			
+			recordNode[] records = new recordNode[node.getSize()];
+			int n = 0;
+			TraversalStack stack = new TraversalStack();
+			stack.push(node);
+			
+			while (stack.pop()) {
+				recordNode curr = stack.getNode();
+				records[n++] = curr;
+				stack.push(curr.getRight());
+				stack.push(curr.getLeft());
 			}
-			else if (r.getYloc() >= curr.getYloc()) {
-				if (curr.getRight() == null) {
-					curr.setRight(r);
-					return;
-				}
-				else {
-					insertHelper(curr.getRight(), r);
-				}
+			
+			recordNode subtree = KDTreeBuilder.build(records, 0, n, node.getDiscriminator(), widestSpread);
+			for (int j = 0; j < n; j++) {
+				if (records[j].isDeleted())
+					countTombstone(subtree, records[j]);
 			}
+			
+			if (i == 0)
+				root = subtree;
+			else if (insertPath[i - 1].getLeft() == node)
+				insertPath[i - 1].setLeft(subtree);
+			else
+				insertPath[i - 1].setRight(subtree);
+			return;
 		}
-		// discriminate on Z (time)
-		else if (discriminator == 2) {
-			if (r.getTime() < curr.getTime()) {
-				if (curr.getLeft() == null) {
-					curr.setLeft(r);
-					return;
-				}
-				else {
-					insertHelper(curr.getLeft(), r);
-				}
+	}
+	
+	/**
+	 * Deletes one record from the tree. The record is only marked with a tombstone, which every query skips,
+	 * so a delete costs about as much as an insert; once the deleted records make up more than the compaction threshold
+	 * of the pointer tree or of compact storage, that part of the tree is rebuilt without them (see setCompactionThreshold).
+	 * If the tree holds the same record more than once, only one copy is deleted.
+	 * 
+	 * @param phoneID	the mobile ID of the record
+	 * @param xloc		the x-coordinate of the record
+	 * @param yloc		the y-coordinate of the record
+	 * @param time		the hour of the record
+	 * 
+	 * @return true if the record was found and deleted, false if the tree has no such record
+	 */
+	public boolean delete(long phoneID, int xloc, int yloc, int time) {
+		if (!deleteRecord(phoneID, xloc, yloc, time))
+			return false;
+		
+		compactIfNeeded();
+		return true;
+	}
+	
+	/**
+	 * Deletes every record of a phone, for example to honor a data-removal request.
+	 * With the trajectory index turned on, the phone's records are looked up in it and deleted one by one;
+	 * otherwise the whole tree has to be scanned.
+	 * 
+	 * @param phoneID	the mobile ID of the phone
+	 * 
+	 * @return the number of records deleted
+	 */
+	public int deletePhone(long phoneID) {
+		int count = 0;
+		
+		if (trajectoryIndex != null) {
+			for (int entry : trajectoryIndex.trajectory(phoneID, TIME_MIN, TIME_MAX)) {
+				if (deleteRecord(phoneID, TrajectoryIndex.getXloc(entry), TrajectoryIndex.getYloc(entry), TrajectoryIndex.getTime(entry)))
+					count++;
 			}
-			else if (r.getTime() >= curr.getTime()) {
-				if (curr.getRight() == null) {
-					curr.setRight(r);
-					return;
+		}
+		else {
+			TraversalStack stack = new TraversalStack();
+			stack.push(root);
+			
+			while (stack.pop()) {
+				recordNode curr = stack.getNode();
+				
+				if (curr.getPhoneID() == phoneID && !curr.isDeleted()) {
+					curr.setDeleted(true);
+					pointerTombstones++;
+					countTombstone(root, curr);
+					removeFromIndexes(phoneID, curr.getXloc(), curr.getYloc(), curr.getTime());
+					count++;
 				}
-				else {
-					insertHelper(curr.getRight(), r);
+				stack.push(curr.getRight());
+				stack.push(curr.getLeft());
+			}
+			
+			for (int i = 0; packed != null && i < packed.size(); i++) {
+				if (packed.getPhoneID(i) == phoneID && !packed.isDeleted(i)) {
+					int cell = packed.getCell(i);
+					packed.delete(i);
+					removeFromIndexes(phoneID, PackedKDTree.getXloc(cell), PackedKDTree.getYloc(cell), PackedKDTree.getTime(cell));
+					count++;
 				}
 			}
 		}
 		
+		if (count > 0)
+			compactIfNeeded();
+		return count;
+	}
+	
+	/**
+	 * Moves one record to new coordinates, for example to correct a bad GPS fix.
+	 * If the record is in the pointer tree and the new coordinates still lie in its node's region, without changing the value the node splits on,
+	 * the node is updated in place and the tree keeps its shape. Otherwise the record is deleted and a new one is inserted at the new coordinates.
+	 * 
+	 * @param phoneID	the mobile ID of the record
+	 * @param xloc		the current x-coordinate of the record
+	 * @param yloc		the current y-coordinate of the record
+	 * @param time		the current hour of the record
+	 * @param newXloc	the new x-coordinate
+	 * @param newYloc	the new y-coordinate
+	 * @param newTime	the new hour
+	 * 
+	 * @return true if the record was found and moved, false if the tree has no such record
+	 */
+	public boolean move(long phoneID, int xloc, int yloc, int time, int newXloc, int newYloc, int newTime) {
+		// the bounds of the node's region: xMin, xMax, yMin, yMax, timeMin, timeMax
+		int[] bounds = { XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX };
+		recordNode r = findLive(phoneID, xloc, yloc, time, bounds);
+		
+		if (r != null) {
+			int discriminator = r.getDiscriminator();
+			recordNode moved = new recordNode(phoneID, newXloc, newYloc, newTime);
+			
+			if (bounds[0] <= newXloc && newXloc <= bounds[1]
+			 && bounds[2] <= newYloc && newYloc <= bounds[3]
+			 && bounds[4] <= newTime && newTime <= bounds[5]
+			 && moved.getKey(discriminator) == r.getKey(discriminator)) {
+				removeFromIndexes(phoneID, xloc, yloc, time);
+				r.setXloc(newXloc);
+				r.setYloc(newYloc);
+				r.setTime(newTime);
+				addToIndexes(r);
+				return true;
+			}
+		}
+		
+		if (!deleteRecord(phoneID, xloc, yloc, time))
+			return false;
+		
+		insert(new recordNode(phoneID, newXloc, newYloc, newTime));
+		compactIfNeeded();
+		return true;
+	}
+	
+	/**
+	 * Sets the fraction of deleted records above which the pointer tree, or compact storage, is rebuilt without them.
+	 * Lower values keep queries from wading through tombstones, at the cost of rebuilding more often. The default is 0.25.
+	 * 
+	 * @param fraction	 the fraction in (0, 1], where 1 means never rebuild automatically (call purgeTombstones instead)
+	 */
+	public void setCompactionThreshold(double fraction) {
+		compactionThreshold = fraction;
+	}
+	
+	/**
+	 * @return the number of deleted records still taking up space in the tree
+	 */
+	public int getTombstoneCount() {
+		return pointerTombstones + (packed == null ? 0 : packed.deletedCount());
+	}
+	
+	/**
+	 * Rebuilds whichever parts of the tree hold deleted records without them: the pointer tree is rebuilt in balanced form with KDTreeBuilder,
+	 * and compact storage is rebuilt with PackedKDTree.merge (which also reads a mapped snapshot into the heap).
+	 * Parts without deleted records are left alone.
+	 */
+	public void purgeTombstones() {
+		if (pointerTombstones > 0)
+			purgePointerTree();
+		if (packed != null && packed.deletedCount() > 0)
+			purgePacked();
+	}
+	
+	/**
+	 * Rebuilds the pointer tree or compact storage if its share of deleted records has passed the compaction threshold
+	 */
+	private void compactIfNeeded() {
+		if (pointerTombstones > 0 && pointerTombstones > compactionThreshold * pointerSize)
+			purgePointerTree();
+		if (packed != null && packed.deletedCount() > 0 && packed.deletedCount() > compactionThreshold * packed.size())
+			purgePacked();
+	}
+	
+	private void purgePointerTree() {
+		ArrayList<recordNode> records = new ArrayList<recordNode>();
+		collectNodes(root, records);
+		
+		recordNode[] array = records.toArray(new recordNode[records.size()]);
+		root = KDTreeBuilder.build(array, 0, array.length, 0, widestSpread);
+		pointerSize = array.length;
+		pointerTombstones = 0;
+	}
+	
+	private void purgePacked() {
+		packed = packed.deletedCount() == packed.size() ? null : PackedKDTree.merge(packed, new ArrayList<recordNode>(), widestSpread);
+	}
+	
+	/**
+	 * Deletes one record without checking the compaction threshold
+	 * 
+	 * @return true if the record was found and deleted
+	 */
+	private boolean deleteRecord(long phoneID, int xloc, int yloc, int time) {
+		recordNode r = findLive(phoneID, xloc, yloc, time, null);
+		
+		if (r != null) {
+			r.setDeleted(true);
+			pointerTombstones++;
+			countTombstone(root, r);
+		}
+		else {
+			int i = packed == null ? -1 : packed.find(phoneID, xloc, yloc, time);
+			if (i < 0)
+				return false;
+			packed.delete(i);
+		}
+		
+		removeFromIndexes(phoneID, xloc, yloc, time);
+		return true;
+	}
+	
+	/**
+	 * Adds a newly deleted record to the tombstone count of every node on the path from top down to it.
+	 * Like findLive, this relies on a record always being below its ancestors on the side insert would have put it.
+	 * 
+	 * @param top		the node to start at, an ancestor of target (or target itself)
+	 * @param target	the deleted record
+	 */
+	private static void countTombstone(recordNode top, recordNode target) {
+		recordNode curr = top;
+		
+		while (true) {
+			curr.setTombstones(curr.getTombstones() + 1);
+			if (curr == target)
+				return;
+			
+			int discriminator = curr.getDiscriminator();
+			curr = target.getKey(discriminator) < curr.getKey(discriminator) ? curr.getLeft() : curr.getRight();
+		}
+	}
+	
+	/**
+	 * Finds a record in the pointer tree that hasn't been deleted. Every copy of a record follows the same path down the tree that insert took,
+	 * since records equal to a node on its discriminating dimension always go right, so only that one path is searched.
+	 * 
+	 * @param phoneID	the mobile ID of the record
+	 * @param xloc		the x-coordinate of the record
+	 * @param yloc		the y-coordinate of the record
+	 * @param time		the hour of the record
+	 * @param bounds	if not null, narrowed down to the region of the node that was found: xMin, xMax, yMin, yMax, timeMin, timeMax
+	 * 
+	 * @return the recordNode, or null if the pointer tree has no such record
+	 */
+	private recordNode findLive(long phoneID, int xloc, int yloc, int time, int[] bounds) {
+		recordNode curr = root;
+		recordNode wanted = new recordNode(phoneID, xloc, yloc, time);
+		
+		while (curr != null) {
+			if (curr.getPhoneID() == phoneID && curr.getXloc() == xloc && curr.getYloc() == yloc && curr.getTime() == time && !curr.isDeleted())
+				return curr;
+			
+			int discriminator = curr.getDiscriminator();
+			int key = curr.getKey(discriminator);
+			
+			if (wanted.getKey(discriminator) < key) {
+				if (bounds != null)
+					bounds[2 * discriminator + 1] = key - 1;
+				curr = curr.getLeft();
+			}
+			else {
+				if (bounds != null)
+					bounds[2 * discriminator] = key;
+				curr = curr.getRight();
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Removes a deleted record from every secondary index that is turned on
+	 */
+	private void removeFromIndexes(long phoneID, int xloc, int yloc, int time) {
+		if (hourIndex != null)
+			hourIndex.remove(phoneID, xloc, yloc, time);
+		if (trajectoryIndex != null)
+			trajectoryIndex.remove(phoneID, xloc, yloc, time);
 	}
 	
 	/**
 	 * The insertFile method takes in a String filePath containing the filePath of an input file.
 	 * This file will contain data corresponding to new recordNodes that we will create and insert into the tree
+	 * If bulk loading is on, the records are collected first and the tree is rebuilt in balanced form with buildBalanced.
 	 * 
 	 * @param filePath	A string containing the filepath of a CSV file that we will use for input, which contains lines of record data to insert into the tree
 	 */
 	public void insertFile(String filePath) {
+		ArrayList<recordNode> batch = new ArrayList<recordNode>();
+		
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(filePath));
-			String currLine = "";
+			// mobileID, XLOC, YLOC, time for every line of the file (see MappedParser)
+			long[] data = MappedParser.parse(filePath, 4);
 			
-			while ((currLine = br.readLine()) != null) {
-				String data[] = currLine.split(",");
-				
-				long mobileID = Long.parseLong(data[0].trim());
-				int xloc = Integer.parseInt(data[1].trim());
-				int yloc = Integer.parseInt(data[2].trim());
-				int time = Integer.parseInt(data[3].trim());
+			for (int i = 0; i < data.length; i += 4) {
+				long mobileID = data[i];
+				int xloc = (int) data[i + 1];
+				int yloc = (int) data[i + 2];
+				int time = (int) data[i + 3];
 				
 				recordNode newRecord = new recordNode(mobileID, xloc, yloc, time);
 				
-				insert(newRecord);
+				if (bulkLoad)
+					batch.add(newRecord);
+				else
+					insert(newRecord);
 			}
-			
-			br.close();
-		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
+		}
+		
+		if (bulkLoad)
+			buildBalanced(batch);
+	}
+	
+	/**
+	 * Reads a whole query file with MappedParser
+	 * 
+	 * @param queryFile	   the file of queries
+	 * @param type		   TRIANGLE_QUERY, TIME_INT_QUERY, or TIME_ALL_INT_QUERY
+	 * @return the ints of every query in file order, queryFields(type) per query, or no queries if the file can't be read
+	 */
+	static int[] readQueries(String queryFile, int type) {
+		try {
+			return MappedParser.parseInts(queryFile, queryFields(type));
 		} catch (IOException e) {
 			e.printStackTrace();
+			return new int[0];
 		}
 	}
 	
+	/**
+	 * @param type	  TRIANGLE_QUERY, TIME_INT_QUERY, TIME_ALL_INT_QUERY, or DISTINCT_TIME_INT_QUERY
+	 * @return the number of ints on one line of a query file of that type: "time, x1, y1, x2, y2, x3, y3" or "start, end, x1, y1, x2, y2"
+	 */
+	static int queryFields(int type) {
+		return type == TRIANGLE_QUERY ? 7 : 6;
+	}
+	
 	/**
 	 * This method processes the data contained in a file containing triangle queries, and returns a list of lists of longs containing the mobileIDs that are contained within
 	 * the triangle query region.
@@ -291,31 +984,11 @@ public class KDTree {
 	 */
 	public ArrayList<List<Long>> processTriangleQueries(String triangleFile) {
 		ArrayList<List<Long>> outputLines = new ArrayList<List<Long>>();
+		int[] q = readQueries(triangleFile, TRIANGLE_QUERY);
 		
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(triangleFile));
-			String currLine = "";	
-			
-			while ((currLine = br.readLine()) != null) {
-				String triangleQuery[] = currLine.split(",");
-				
-				int time = Integer.parseInt(triangleQuery[0].trim());
-				int x1 = Integer.parseInt(triangleQuery[1].trim());
-				int y1 = Integer.parseInt(triangleQuery[2].trim());
-				int x2 = Integer.parseInt(triangleQuery[3].trim());
-				int y2 = Integer.parseInt(triangleQuery[4].trim());
-				int x3 = Integer.parseInt(triangleQuery[5].trim());
-				int y3 = Integer.parseInt(triangleQuery[6].trim());
-				
-				List<Long> mobileIDs = triangle(time, x1, y1, x2, y2, x3, y3);
-				outputLines.add(mobileIDs);
-			}
-			
-			br.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+		for (int i = 0; i < q.length; i += 7) {
+			List<Long> mobileIDs = triangle(q[i], q[i + 1], q[i + 2], q[i + 3], q[i + 4], q[i + 5], q[i + 6]);
+			outputLines.add(mobileIDs);
 		}
 		
 		return outputLines;
@@ -329,23 +1002,144 @@ public class KDTree {
 	 */
 	public void writeToTriangleOutput(String filePath, ArrayList<List<Long>> mobileIDs) {	
 		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(filePath));
+			ByteOutput out = new ByteOutput(filePath);
 			
 			for (int i = 0; i < mobileIDs.size(); i++) {
+				out.beginLine();
+				
 				for (int j = 0; j < mobileIDs.get(i).size(); j++) {
-					writer.append(mobileIDs.get(i).get(j).toString() + ", ");
+					out.writeLong(mobileIDs.get(i).get(j));
+					out.write(", ");
 				}
+			}
+			
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Runs every triangle query in triangleFile and writes the results to filePath, in the same format as
+	 * processTriangleQueries followed by writeToTriangleOutput, but without keeping the results in memory:
+	 * each query's mobileIDs are collected in one reused LongList and written out before the next query runs.
+	 * 
+	 * @param triangleFile	  the file of triangle queries
+	 * @param filePath		  the output file
+	 */
+	public void streamTriangleQueries(String triangleFile, String filePath) {
+		streamQueries(TRIANGLE_QUERY, triangleFile, filePath, 0);
+	}
+	
+	/**
+	 * Runs every timeInt query in timeIntFile and writes the results to filePath, in the same format as
+	 * processTimeIntQueries followed by Runner.writeOutput, without keeping the results in memory (see streamTriangleQueries).
+	 * 
+	 * @param timeIntFile	 the file of timeInt queries
+	 * @param filePath		 the output file
+	 */
+	public void streamTimeIntQueries(String timeIntFile, String filePath) {
+		streamQueries(TIME_INT_QUERY, timeIntFile, filePath, 0);
+	}
+	
+	/**
+	 * Runs every timeAllInt query in timeIntFile and writes the results to filePath, in the same format as
+	 * processTimeAllIntQueries followed by Runner.writeOutput, without keeping the results in memory (see streamTriangleQueries).
+	 * 
+	 * @param timeIntFile	 the file of timeAllInt queries
+	 * @param filePath		 the output file
+	 */
+	public void streamTimeAllIntQueries(String timeIntFile, String filePath) {
+		streamQueries(TIME_ALL_INT_QUERY, timeIntFile, filePath, 0);
+	}
+	
+	/**
+	 * Like streamTimeIntQueries, but lists each mobileID once per query and at most limit of them (see timeIntDistinct).
+	 * 
+	 * @param timeIntFile	 the file of timeInt queries
+	 * @param filePath		 the output file
+	 * @param limit			 the most mobileIDs to list for one query
+	 */
+	public void streamDistinctTimeIntQueries(String timeIntFile, String filePath, int limit) {
+		streamQueries(DISTINCT_TIME_INT_QUERY, timeIntFile, filePath, limit);
+	}
+	
+	private void streamQueries(int type, String queryFile, String filePath, int limit) {
+		LongList mobileIDs = new LongList();
+		LongHashSet seen = type == DISTINCT_TIME_INT_QUERY ? new LongHashSet() : null;
+		
+		int[] q = readQueries(queryFile, type);
+		int fields = queryFields(type);
+		
+		try {
+			ByteOutput out = new ByteOutput(filePath);
+			
+			for (int i = 0; i < q.length; i += fields) {
+				mobileIDs.clear();
+				
+				if (type == DISTINCT_TIME_INT_QUERY) {
+					seen.clear();
+					timeIntDistinct(q[i], q[i + 1], q[i + 2], q[i + 3], q[i + 4], q[i + 5], limit, seen, mobileIDs);
+				}
+				else
+					runQuery(type, q, i, mobileIDs);
 				
-				if (i < mobileIDs.size() - 1)
-					writer.append("\n");
+				if (type == TRIANGLE_QUERY) {
+					// "id, id, " with no newline after the last line, like writeToTriangleOutput
+					out.beginLine();
+					for (int j = 0; j < mobileIDs.size(); j++) {
+						out.writeLong(mobileIDs.get(j));
+						out.write(", ");
+					}
+				}
+				else {
+					// "id, id," and a newline after every line, like Runner.writeOutput
+					for (int j = 0; j < mobileIDs.size(); j++) {
+						if (j > 0)
+							out.write(' ');
+						out.writeLong(mobileIDs.get(j));
+						out.write(',');
+					}
+					out.write('\n');
+				}
 			}
 			
-			writer.close();
+			out.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Runs one query of a query file read by readQueries
+	 * 
+	 * @param type	  TRIANGLE_QUERY, TIME_INT_QUERY, or TIME_ALL_INT_QUERY
+	 * @param q		  the ints of the query file
+	 * @param i		  the index in q of the first int of the query
+	 * @param sink	  receives the mobileIDs the query finds
+	 */
+	void runQuery(int type, int[] q, int i, LongConsumer sink) {
+		runQuery(this, type, q, i, sink);
+	}
+	
+	/**
+	 * Runs one query of a query file read by readQueries against any engine
+	 * 
+	 * @param index	  the engine to run the query on
+	 * @param type	  TRIANGLE_QUERY, TIME_INT_QUERY, or TIME_ALL_INT_QUERY
+	 * @param q		  the ints of the query file
+	 * @param i		  the index in q of the first int of the query
+	 * @param sink	  receives the mobileIDs the query finds
+	 */
+	static void runQuery(SpatialIndex index, int type, int[] q, int i, LongConsumer sink) {
+		if (type == TRIANGLE_QUERY)
+			index.triangle(q[i], q[i + 1], q[i + 2], q[i + 3], q[i + 4], q[i + 5], q[i + 6], sink);
+		else if (type == TIME_INT_QUERY)
+			index.timeInt(q[i], q[i + 1], q[i + 2], q[i + 3], q[i + 4], q[i + 5], sink);
+		else
+			index.timeAllInt(q[i], q[i + 1], q[i + 2], q[i + 3], q[i + 4], q[i + 5], sink);
+	}
+	
 	/**
 	 * This method takes in a triangle query region represented by vertices (x1, y1), (x2, y2), and (x3, y3)
 	 * and a time value. It will return a list of mobileIDs that are within the triangle at the specified time value. 
@@ -360,173 +1154,168 @@ public class KDTree {
 	 * @return a list of mobileIDs that correspond to recordNodes that intersect a triangle query region
 	 */
 	public List<Long> triangle(int time, int x1, int y1, int x2, int y2, int x3, int y3) {
-		List<Long> mobileIDs = new ArrayList<Long>();
-		triangleHelper(root, mobileIDs, time, x1, y1, x2, y2, x3, y3, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+		LongList mobileIDs = new LongList();
+		triangle(time, x1, y1, x2, y2, x3, y3, mobileIDs);
 		
-		return mobileIDs;
+		return mobileIDs.toList();
 	}
 	
 	/**
-	 * This is a helper method to the above "triangle" method that actually does all the work.
-	 * To determine whether any particular mobileID lies inside the triangle query region, this method calculates the area of the triangle query region represented by vertices
-	 * (x1, y1), (x2, y2), and (x3, y3), which I will refer to as points A, B, and C, respectively. I will also refer to the point in the current node as R.
-	 * The method then calculates the area of triangles RAB, RBC, and RAC (not necessarily in the order listed here), and adds them up. 
-	 * If the sum of these areas equals the area of the the triangle query region, then that means the point lies inside 
-	 * the triangle query region, and the method adds the corresponding mobileID to the list. 
-	 * 
-	 * @param r			the current recordNode we are at
-	 * @param list		the list of Longs that we are adding mobileIDs to (if they lie within the triangle query region)
-	 * @param time		the specified time at which mobileIDs must be
+	 * The streaming version of triangle: instead of building a list, every matching mobileID is passed to sink as soon as it is found,
+	 * in the same order triangle would have listed it. Nothing is boxed; with a reused LongList as the sink, a query allocates nothing per match.
+	 * The sink is only ever called from the calling thread, even with parallel queries on.
+	 * 
+	 * @param time		the time of the query
 	 * @param x1		the x-coordinate of the first vertex of the triangle query region
 	 * @param y1		the y-coordinate of the first vertex of the triangle query region
 	 * @param x2		the x-coordinate of the second vertex of the triangle query region
 	 * @param y2		the y-coordinate of the second vertex of the triangle query region
 	 * @param x3		the x-coordinate of the third vertex of the triangle query region
 	 * @param y3		the y-coordinate of the third vertex of the triangle query region
-	 * @param xMin		the minimum possible x value of the current region
-	 * @param xMax		the maximum possible x value of the current region
-	 * @param yMin		the minimum possible y value of the current region
-	 * @param yMax		the maximum possible y value of the current region
-	 * @param timeMin	the minimum possible time value of the current region
-	 * @param timeMax	the maximum possible time value of the current region
+	 * @param sink		receives the mobileIDs of the records that intersect the triangle query region
 	 */
-	private void triangleHelper(recordNode r, List<Long> list, int time,
-			int x1, int y1, int x2, int y2, int x3, int y3, int xMin, int xMax,
-			int yMin, int yMax, int timeMin, int timeMax) {
-		if (r == null)
-			return;
+	public void triangle(int time, int x1, int y1, int x2, int y2, int x3, int y3, LongConsumer sink) {
+		Triangle queryRegion = new Triangle(x1, y1, x2, y2, x3, y3);
 		
-		// if the time is not within bounds
-		if (time < timeMin || time > timeMax) {
-			// System.out.println("Pruning at Node " + r.getPhoneID() + " based on time");
-			return; // prune
-		}
-		// if the triangle query region does not intersect the current node's rectangular region
-		if(!intersects(x1, y1, x2, y2, x3, y3, xMin, xMax, yMin, yMax)) {
-			// System.out.println("Pruning at Node " + r.getPhoneID() + " based on lack of intersection");
-			return; // prune
-		}
-		// if the time of the current node matches the time specified
-		if (r.getTime() == time) {
-			double wholeArea = triangleArea(x1, y1, x2, y2, x3, y3);
-			double triangleArea1 = triangleArea(r.getXloc(), r.getYloc(), x2, y2, x3, y3);
-			double triangleArea2 = triangleArea(x1, y1, r.getXloc(), r.getYloc(), x3, y3);
-			double triangleArea3 = triangleArea(x1, y1, x2, y2, r.getXloc(), r.getYloc());
-			double resultingArea = triangleArea1 + triangleArea2 + triangleArea3;
-
-			// if the point is within the triangle query region, add it to the list of solutions
-			if (Math.abs(wholeArea - resultingArea) <= 0.000001) {
-				list.add(r.getPhoneID());
-			}
+		// the per-hour index holds every record, so when it is on we only need the tree for the query's hour
+		if (hourIndex != null) {
+			hourIndex.triangle(sink, time, queryRegion);
+			return;
 		}
 		
-		int discriminator = getLevel(r) % 3;
-		
-		// if we're discriminating on the X value, update xMin and xMax values for recursive calls
-		if (discriminator == 0) {
-			triangleHelper(r.getLeft(), list, time, x1, y1, x2, y2, x3, y3, 
-					xMin, r.getXloc() - 1, yMin, yMax, timeMin, timeMax);
-			triangleHelper(r.getRight(), list, time, x1, y1, x2, y2, x3, y3, 
-					r.getXloc(), xMax, yMin, yMax, timeMin, timeMax);
-		}
-		// if we're discriminating on the Y value, update yMin and yMax values for recursive calls
-		else if (discriminator == 1) {
-			triangleHelper(r.getLeft(), list, time, x1, y1, x2, y2, x3, y3, 
-					xMin, xMax, yMin, r.getYloc() - 1, timeMin, timeMax);
-			triangleHelper(r.getRight(), list, time, x1, y1, x2, y2, x3, y3, 
-					xMin, xMax, r.getYloc(), yMax, timeMin, timeMax);
-		}
-		// if we're discriminating on the time value, update timeMin and timeMax values for recursive calls
-		else if (discriminator == 2) {
-			triangleHelper(r.getLeft(), list, time, x1, y1, x2, y2, x3, y3, 
-					xMin, xMax, yMin, yMax, timeMin, r.getTime() - 1);
-			triangleHelper(r.getRight(), list, time, x1, y1, x2, y2, x3, y3, 
-					xMin, xMax, yMin, yMax, r.getTime(), timeMax);
-		}
-	}
-	
-	/**
-	 * This method is used for calculating the area of a triangle, represented by three vertices:
-	 * (x1, y1), (x2, y2), and (x3, y3)
-	 * 
-	 * @param x1	the x-coordinate of the first vertex of the triangle query region
-	 * @param y1	the y-coordinate of the first vertex of the triangle query region
-	 * @param x2	the x-coordinate of the second vertex of the triangle query region
-	 * @param y2	the y-coordinate of the second vertex of the triangle query region
-	 * @param x3	the x-coordinate of the third vertex of the triangle query region
-	 * @param y3	the y-coordinate of the third vertex of the triangle query region
-	 * 
-	 * @return a double representing the area of the triangle represented by the vertices (x1, y1), (x2, y2), and (x3, y3)
-	 */
-	private double triangleArea(int x1, int y1, int x2, int y2, int x3, int y3) {
-		// formula for the area of any triangle made of up three vertices (x1, y1), (x2, y2), and (x3, y3)
-		return Math.abs(0.5 * (x1*(y2-y3) + x2*(y3-y1)+ x3*(y1-y2)));
+		triangleHelper(root, 0, sink, time, queryRegion, false, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+		if (packed != null)
+			packed.triangle(sink, time, queryRegion, parallelQueries);
 	}
 	
 	/**
-	 * This method checks if the triangle represented by vertices (x1, y1), (x2, y2), and (x3, y3)
-	 * intersects with the rectangle region represented by the points (xMin, yMin), (xMin, yMax), (xMax, yMax), and (xMax, yMin).
+	 * This is a helper method to the above "triangle" method that actually does all the work.
+	 * Each node's rectangular region is classified against the triangle query region with exact integer tests (see the Triangle class):
+	 * if it lies outside the triangle we prune, and if it lies entirely inside the triangle, every record below it is inside too,
+	 * so from there on we only have to check the time of each record.
+	 * The search keeps its pending subtrees on a TraversalStack rather than recursing, so it works however deep the tree is;
+	 * only the forks for parallel queries nest, and there are at most a few dozen levels of those.
 	 * 
-	 * @param x1		the x-coordinate of the first vertex of the triangle query region
-	 * @param y1		the y-coordinate of the first vertex of the triangle query region
-	 * @param x2		the x-coordinate of the second vertex of the triangle query region
-	 * @param y2		the y-coordinate of the second vertex of the triangle query region
-	 * @param x3		the x-coordinate of the third vertex of the triangle query region
-	 * @param y3		the y-coordinate of the third vertex of the triangle query region
+	 * @param r			the recordNode to start at
+	 * @param depth		the depth of r in the tree, used to decide whether to fork (see setParallelQueries)
+	 * @param sink		receives the mobileIDs (if they lie within the triangle query region)
+	 * @param time		the specified time at which mobileIDs must be
+	 * @param tri		the triangle query region
+	 * @param inside	true if an ancestor's region already lies entirely inside the triangle
 	 * @param xMin		the minimum possible x value of the current region
 	 * @param xMax		the maximum possible x value of the current region
 	 * @param yMin		the minimum possible y value of the current region
 	 * @param yMax		the maximum possible y value of the current region
-	 * 
-	 * @return a boolean indicating whether the triangle intersects with the rectangular region
-	 */
-	private boolean intersects(int x1, int y1, int x2, int y2, int x3, int y3,
-			int xMin, int xMax, int yMin, int yMax) {
-		// line segments for triangle query region
-		Line2D triLine1 = new Line2D.Double(x1, x2, y1, y2); // triangle line segment from (x1, y1) to (x2, y2)
-		Line2D triLine2 = new Line2D.Double(x1, x3, y1, y3); // triangle line segment from (x1, y1) to (x3, y3)
-		Line2D triLine3 = new Line2D.Double(x2, x3, y2, y3); // triangle line segment from (x2, y2) to (x3, y3)
-		
-		// line segments for rectangle region of node
-		// 4 points: A: (xMin, yMin), B: (xMin, yMax), C: (xMax, yMax), D: (xMax, yMin)
-		Line2D rectLine1 = new Line2D.Double(xMin, xMin, yMin, yMax); // rectangle line segment from (xMin, yMin) to (xMin, yMax)
-		Line2D rectLine2 = new Line2D.Double(xMin, xMax, yMax, yMax); // rectangle line segment from (xMin, yMax) to (xMax, yMax)
-		Line2D rectLine3 = new Line2D.Double(xMax, xMax, yMax, yMin); // rectangle line segment from (xMax, yMax) to (xMax, yMin)
-		Line2D rectLine4 = new Line2D.Double(xMax, xMin, yMin, yMin); // rectangle line segment from (xMax, yMin) to (xMin, yMin)
-		
-		double wholeArea = triangleArea(x1, y1, x2, y2, x3, y3);
-		double triangleArea1 = triangleArea(xMin, yMin, x2, y2, x3, y3);
-		double triangleArea2 = triangleArea(x1, y1, xMin, yMin, x3, y3);
-		double triangleArea3 = triangleArea(x1, y1, x2, y2, xMin, yMin);
-		double resultingArea = triangleArea1 + triangleArea2 + triangleArea3;
-
-		// if the rectangle is wholly contained inside the triangle query region
-		if (Math.abs(wholeArea - resultingArea) <= 0.000001)
-			return true;
+	 * @param timeMin	the minimum possible time value of the current region
+	 * @param timeMax	the maximum possible time value of the current region
+	 */
+	private void triangleHelper(recordNode r, int depth, LongConsumer sink, int time, Triangle tri, boolean inside,
+			int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		TraversalStack stack = new TraversalStack();
+		stack.push(r, depth, inside, xMin, xMax, yMin, yMax, timeMin, timeMax);
 		
-		double wholeRecArea = Math.abs(xMax - xMin) * Math.abs(yMax - yMin);
-		double area1 = triangleArea(xMin, yMin, x1, y1, xMax, yMin);
-		double area2 = triangleArea(xMax, yMin, x1, y1, xMax, yMax);
-		double area3 = triangleArea(xMax, yMax, x1, y1, xMin, yMax);
-		double area4 = triangleArea(xMin, yMax, x1, y1, xMin, yMin);
-		double result = area1+ area2 + area3 + area4;
+		while (stack.pop()) {
+			r = stack.getNode();
+			depth = stack.getDepth();
+			inside = stack.isInside();
+			xMin = stack.getXMin();
+			xMax = stack.getXMax();
+			yMin = stack.getYMin();
+			yMax = stack.getYMax();
+			timeMin = stack.getTimeMin();
+			timeMax = stack.getTimeMax();
+			
+			// if the time is not within bounds
+			if (time < timeMin || time > timeMax) {
+				continue; // prune
+			}
+			
+			if (!inside) {
+				int classification = tri.classify(xMin, xMax, yMin, yMax);
+				
+				// if the triangle query region does not intersect the current node's rectangular region
+				if (classification == QueryRegion.OUTSIDE)
+					continue; // prune
+				
+				inside = classification == QueryRegion.INSIDE;
+			}
+			
+			// if the point is at the time specified and within the triangle query region, add it to the list of solutions
+			if (r.getTime() == time && (inside || tri.contains(r.getXloc(), r.getYloc())) && !r.isDeleted()) {
+				sink.accept(r.getPhoneID());
+			}
+			
+			int discriminator = r.getDiscriminator();
+			int leftXMax = xMax, rightXMin = xMin;
+			int leftYMax = yMax, rightYMin = yMin;
+			int leftTimeMax = timeMax, rightTimeMin = timeMin;
+			
+			// if we're discriminating on the X value, update xMin and xMax values for the children
+			if (discriminator == 0) {
+				leftXMax = r.getXloc() - 1;
+				rightXMin = r.getXloc();
+			}
+			// if we're discriminating on the Y value, update yMin and yMax values for the children
+			else if (discriminator == 1) {
+				leftYMax = r.getYloc() - 1;
+				rightYMin = r.getYloc();
+			}
+			// if we're discriminating on the time value, update timeMin and timeMax values for the children
+			else if (discriminator == 2) {
+				leftTimeMax = r.getTime() - 1;
+				rightTimeMin = r.getTime();
+			}
+			
+			// for a large subtree, search the left child in a fork-join task while this thread searches the right one
+			if (forkAt(depth)) {
+				TriangleTask left = new TriangleTask(r.getLeft(), depth + 1, time, tri, inside, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
+				left.fork();
+				LongList right = new LongList();
+				triangleHelper(r.getRight(), depth + 1, right, time, tri, inside, rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+				left.join().forEach(sink);
+				right.forEach(sink);
+			}
+			else {
+				// push the right child first so that the left subtree is searched first
+				stack.push(r.getRight(), depth + 1, inside, rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+				stack.push(r.getLeft(), depth + 1, inside, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
+			}
+		}
+	}
+	
+	/**
+	 * A fork-join task that runs triangleHelper on one subtree and collects its matches in its own buffer
+	 */
+	private class TriangleTask extends RecursiveTask<LongList> {
+		private static final long serialVersionUID = 1L;
 		
-		// if triangle is wholly contained inside the rectangle region
-		if (Math.abs(wholeRecArea - result) <= 0.000001)
-			return true;
+		private final recordNode r;
+		private final int depth;
+		private final int time;
+		private final Triangle tri;
+		private final boolean inside;
+		private final int xMin, xMax, yMin, yMax, timeMin, timeMax;
 		
-		// if any of the triangle's line segments intersects with the rectangular region
-		if (triLine1.intersectsLine(rectLine1) || triLine1.intersectsLine(rectLine2)
-		 || triLine1.intersectsLine(rectLine3) || triLine1.intersectsLine(rectLine4))
-			return true;
-		if (triLine2.intersectsLine(rectLine1) || triLine2.intersectsLine(rectLine2)
-		 || triLine2.intersectsLine(rectLine3) || triLine2.intersectsLine(rectLine4))
-			return true;
-		if (triLine3.intersectsLine(rectLine1) || triLine3.intersectsLine(rectLine2)
-		 || triLine3.intersectsLine(rectLine3) || triLine3.intersectsLine(rectLine4))
-			return true;
+		TriangleTask(recordNode r, int depth, int time, Triangle tri, boolean inside, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+			this.r = r;
+			this.depth = depth;
+			this.time = time;
+			this.tri = tri;
+			this.inside = inside;
+			this.xMin = xMin;
+			this.xMax = xMax;
+			this.yMin = yMin;
+			this.yMax = yMax;
+			this.timeMin = timeMin;
+			this.timeMax = timeMax;
+		}
 		
-		return false;
+		@Override
+		protected LongList compute() {
+			LongList ids = new LongList();
+			triangleHelper(r, depth, ids, time, tri, inside, xMin, xMax, yMin, yMax, timeMin, timeMax);
+			return ids;
+		}
 	}
 	
 	/**
@@ -538,30 +1327,11 @@ public class KDTree {
 	 */
 	public ArrayList<List<Long>> processTimeIntQueries(String timeIntFile) {
 		ArrayList<List<Long>> outputLines = new ArrayList<List<Long>>();
+		int[] q = readQueries(timeIntFile, TIME_INT_QUERY);
 		
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(timeIntFile));
-			String currLine = "";	
-			
-			while ((currLine = br.readLine()) != null) {
-				String[] timeIntQuery = currLine.split(",");
-				
-				int startTime = Integer.parseInt(timeIntQuery[0].trim());
-				int endTime = Integer.parseInt(timeIntQuery[1].trim());
-				int x1 = Integer.parseInt(timeIntQuery[2].trim());
-				int y1 = Integer.parseInt(timeIntQuery[3].trim());
-				int x2 = Integer.parseInt(timeIntQuery[4].trim());
-				int y2 = Integer.parseInt(timeIntQuery[5].trim());
-				
-				List<Long> mobileIDs = timeInt(startTime, endTime, x1, y1, x2, y2);
-				outputLines.add(mobileIDs);
-			}
-			
-			br.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+		for (int i = 0; i < q.length; i += 6) {
+			List<Long> mobileIDs = timeInt(q[i], q[i + 1], q[i + 2], q[i + 3], q[i + 4], q[i + 5]);
+			outputLines.add(mobileIDs);
 		}
 		
 		return outputLines;
@@ -582,26 +1352,137 @@ public class KDTree {
 	 * @return a list of mobileIDs that correspond to recordNodes that intersect the query region and time interval
 	 */
 	public List<Long> timeInt(int start, int end, int x1, int y1, int x2, int y2) {
-		List<Long> mobileIDs = new ArrayList<Long>();
-		Line2D left = new Line2D.Double(x1, x1, y1, y2);    // line going from (x1, y1) to (x1, y2)
-		Line2D top = new Line2D.Double(x1, x2, y2, y2);     // line going from (x1, y2) to (x2, y2)
-		Line2D right = new Line2D.Double(x2, x2, y2, y1);   // line going from (x2, y2) to (x2, y1)
-		Line2D bottom = new Line2D.Double(x2, x1, y1, y1);  // line going from (x2, y1) to (x1, y1)
-		Rectangle queryRegion = new Rectangle(x1, y1, x2, y2, left, top, right, bottom);
+		LongList mobileIDs = new LongList();
+		timeInt(start, end, x1, y1, x2, y2, mobileIDs);
+		
+		return mobileIDs.toList();
+	}
+	
+	/**
+	 * The streaming version of timeInt: instead of building a list, every matching mobileID is passed to sink as soon as it is found,
+	 * in the same order timeInt would have listed it. The sink is only ever called from the calling thread, even with parallel queries on.
+	 * 
+	 * @param start	 the start of the time interval
+	 * @param end	 the end of the time interval
+	 * @param x1	 the x-coordinate of the lower-left corner of the rectangle query region
+	 * @param y1	 the y-coordinate of the lower-left corner of the rectangle query region
+	 * @param x2	 the x-coordinate of the upper-right corner of the rectangle query region
+	 * @param y2	 the y-coordinate of the upper-right corner of the rectangle query region
+	 * @param sink	 receives the mobileIDs of the records that intersect the query region and time interval
+	 */
+	public void timeInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink) {
+		Rectangle queryRegion = new Rectangle(x1, y1, x2, y2);
+		
+		timeIntHelper(root, 0, sink, start, end, queryRegion, false, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+		if (packed != null)
+			packed.timeInt(sink, start, end, queryRegion, parallelQueries);
+	}
+	
+	/**
+	 * The distinct-phones version of timeInt: every mobileID that is in the query region at some point in [start, end] is listed once,
+	 * in the order the ordinary timeInt first finds it, and at most limit of them are listed.
+	 * 
+	 * @param start	 the start of the time interval
+	 * @param end	 the end of the time interval
+	 * @param x1	 the x-coordinate of the lower-left corner of the rectangle query region
+	 * @param y1	 the y-coordinate of the lower-left corner of the rectangle query region
+	 * @param x2	 the x-coordinate of the upper-right corner of the rectangle query region
+	 * @param y2	 the y-coordinate of the upper-right corner of the rectangle query region
+	 * @param limit	 the most mobileIDs to return
+	 * 
+	 * @return a list of distinct mobileIDs in the query region at some point in the time interval
+	 */
+	public List<Long> timeIntDistinct(int start, int end, int x1, int y1, int x2, int y2, int limit) {
+		LongList mobileIDs = new LongList();
+		timeIntDistinct(start, end, x1, y1, x2, y2, limit, new LongHashSet(), mobileIDs);
+		
+		return mobileIDs.toList();
+	}
+	
+	/**
+	 * The streaming, distinct-phones version of timeInt. Duplicates are dropped with seen, a primitive hash set that the caller can clear
+	 * and reuse across queries, so that a query boxes and allocates nothing once the set has grown to size.
+	 * As soon as one more distinct mobileID than limit is found, the search stops, so a runaway query costs at most about limit matches' worth of work
+	 * (not counting the duplicates that had to be skipped on the way).
+	 * With parallel queries on, subtrees already forked off still run to the end in the background, but their results are dropped.
+	 * 
+	 * @param start	 the start of the time interval
+	 * @param end	 the end of the time interval
+	 * @param x1	 the x-coordinate of the lower-left corner of the rectangle query region
+	 * @param y1	 the y-coordinate of the lower-left corner of the rectangle query region
+	 * @param x2	 the x-coordinate of the upper-right corner of the rectangle query region
+	 * @param y2	 the y-coordinate of the upper-right corner of the rectangle query region
+	 * @param limit	 the most mobileIDs to pass to sink
+	 * @param seen	 the mobileIDs already passed to sink, which every new one is added to (normally empty)
+	 * @param sink	 receives the distinct mobileIDs
+	 * 
+	 * @return true if the results were cut off at limit, false if sink received every distinct mobileID
+	 */
+	public boolean timeIntDistinct(int start, int end, int x1, int y1, int x2, int y2, int limit, LongHashSet seen, LongConsumer sink) {
+		try {
+			timeInt(start, end, x1, y1, x2, y2, new DistinctSink(seen, sink, limit));
+			return false;
+		} catch (LimitReachedException e) {
+			return true;
+		}
+	}
+	
+	/**
+	 * Passes each mobileID on to the next sink the first time it is seen, and stops the search with LIMIT_REACHED
+	 * when there are more distinct mobileIDs than the limit
+	 */
+	private static class DistinctSink implements LongConsumer {
+		private final LongHashSet seen;
+		private final LongConsumer sink;
+		private int remaining;
 		
-		timeIntHelper(root, mobileIDs, start, end, queryRegion, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+		DistinctSink(LongHashSet seen, LongConsumer sink, int limit) {
+			this.seen = seen;
+			this.sink = sink;
+			this.remaining = limit;
+		}
+		
+		@Override
+		public void accept(long phoneID) {
+			if (!seen.add(phoneID))
+				return;
+			
+			if (remaining <= 0)
+				throw LIMIT_REACHED;
+			
+			sink.accept(phoneID);
+			remaining--;
+		}
+	}
+	
+	/**
+	 * Thrown by DistinctSink to unwind the search once the limit is reached. There is only ever the one preallocated instance,
+	 * without a stack trace, so stopping a query early costs no more than a return would.
+	 */
+	private static class LimitReachedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
 		
-		return mobileIDs;
+		LimitReachedException() {
+			super(null, null, false, false);
+		}
 	}
 	
+	private static final LimitReachedException LIMIT_REACHED = new LimitReachedException();
+	
 	/**
 	 * This is a helper method to the above "timeInt" method that actually does all the work.
+	 * Each node's region is classified against the query region with integer comparisons (see the Rectangle class).
+	 * Once a node's region lies entirely inside both the rectangle and the time interval, every record in its subtree is a match,
+	 * so the whole subtree is added without testing any more points.
+	 * Like triangleHelper, the search keeps its pending subtrees on a TraversalStack rather than recursing.
 	 * 
-	 * @param r 	    the current recordNode in the KD-Tree that we are processing, for the sake of recursion
-	 * @param list      the list of mobileIDs that lie within the rectangle query region at some point in the time interval [start, end]
+	 * @param r 	    the recordNode in the KD-Tree to start at
+	 * @param depth     the depth of r in the tree, used to decide whether to fork (see setParallelQueries)
+	 * @param sink      receives the mobileIDs that lie within the rectangle query region at some point in the time interval [start, end]
 	 * @param start     the start of the time interval
 	 * @param end       the end of the time interval
 	 * @param qr        the rectangle query region
+	 * @param inside    true if an ancestor's region already lies entirely inside the rectangle query region
 	 * @param xMin		the minimum possible x value of the current region
 	 * @param xMax		the maximum possible x value of the current region
 	 * @param yMin		the minimum possible y value of the current region
@@ -609,51 +1490,122 @@ public class KDTree {
 	 * @param timeMin	the minimum possible time value of the current region
 	 * @param timeMax	the maximum possible time value of the current region
 	 */
-	private void timeIntHelper(recordNode r, List<Long> list, int start, int end, Rectangle qr, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
-		if (r == null)
-			return;
-		
-		// if the time intervals don't overlap
-		if (end < timeMin || start > timeMax) {
-			// System.out.println("Pruning at Node " + r.getPhoneID() + " based on time");
-			return; // pruning
-		}
-		// if the query region does not intersect with the node region
-		if (!qr.intersects(xMin, xMax, yMin, yMax)) {
-			// System.out.println("Pruning at Node " + r.getPhoneID() + " based on lack of intersection");
-			return; // pruning
-		}
+	private void timeIntHelper(recordNode r, int depth, LongConsumer sink, int start, int end, Rectangle qr, boolean inside, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		TraversalStack stack = new TraversalStack();
+		stack.push(r, depth, inside, xMin, xMax, yMin, yMax, timeMin, timeMax);
 		
-		// if the time is within the interval specified
-		if (start <= r.getTime() && r.getTime() <= end) {
-			double wholeRecArea = Math.abs(qr.getX2() - qr.getX1()) * Math.abs(qr.getY2() - qr.getY1());
-			double area1 = triangleArea(qr.getX1(), qr.getY1(), r.getXloc(), r.getYloc(), qr.getX2(), qr.getY1());
-			double area2 = triangleArea(qr.getX1(), qr.getY1(), r.getXloc(), r.getYloc(), qr.getX1(), qr.getY2());
-			double area3 = triangleArea(qr.getX1(), qr.getY2(), r.getXloc(), r.getYloc(), qr.getX2(), qr.getY2());
-			double area4 = triangleArea(qr.getX2(), qr.getY2(), r.getXloc(), r.getYloc(), qr.getX2(), qr.getY1());
-			double result = area1 + area2 + area3 + area4;
+		while (stack.pop()) {
+			r = stack.getNode();
+			depth = stack.getDepth();
+			inside = stack.isInside();
+			xMin = stack.getXMin();
+			xMax = stack.getXMax();
+			yMin = stack.getYMin();
+			yMax = stack.getYMax();
+			timeMin = stack.getTimeMin();
+			timeMax = stack.getTimeMax();
+			
+			// if the time intervals don't overlap
+			if (end < timeMin || start > timeMax) {
+				continue; // pruning
+			}
+			
+			if (!inside) {
+				int classification = qr.classify(xMin, xMax, yMin, yMax);
+				
+				// if the query region does not intersect with the node region
+				if (classification == QueryRegion.OUTSIDE)
+					continue; // pruning
+				
+				inside = classification == QueryRegion.INSIDE;
+			}
+			
+			// if the node region lies entirely inside the query region and the time interval, the whole subtree matches:
+			// the children are pushed with this node's region, which is still contained, so every record below is added without any more tests
+			if (inside && start <= timeMin && timeMax <= end) {
+				if (!r.isDeleted())
+					sink.accept(r.getPhoneID());
+				stack.push(r.getRight(), depth + 1, true, xMin, xMax, yMin, yMax, timeMin, timeMax);
+				stack.push(r.getLeft(), depth + 1, true, xMin, xMax, yMin, yMax, timeMin, timeMax);
+				continue;
+			}
+			
+			// if the time is within the interval specified and the point lies within the rectangle query region
+			if (start <= r.getTime() && r.getTime() <= end && (inside || qr.contains(r.getXloc(), r.getYloc())) && !r.isDeleted())
+				sink.accept(r.getPhoneID());
+			
+			int discriminator = r.getDiscriminator();
+			int leftXMax = xMax, rightXMin = xMin;
+			int leftYMax = yMax, rightYMin = yMin;
+			int leftTimeMax = timeMax, rightTimeMin = timeMin;
+			
+			// if we're discriminating on the X value, update xMin and xMax values for the children
+			if (discriminator == 0 ) {
+				leftXMax = r.getXloc() - 1;
+				rightXMin = r.getXloc();
+			}
+			// if we're discriminating on the Y value, update yMin and yMax values for the children
+			else if (discriminator == 1) {
+				leftYMax = r.getYloc() - 1;
+				rightYMin = r.getYloc();
+			}
+			// if we're discriminating on the time value, update timeMin and timeMax values for the children
+			else if (discriminator == 2) {
+				leftTimeMax = r.getTime() - 1;
+				rightTimeMin = r.getTime();
+			}
 			
-			// if the point lies within the rectangle query region
-			if (Math.abs(wholeRecArea - result) <= 0.000001)
-				list.add(r.getPhoneID());
+			// for a large subtree, search the left child in a fork-join task while this thread searches the right one
+			if (forkAt(depth)) {
+				TimeIntTask left = new TimeIntTask(r.getLeft(), depth + 1, start, end, qr, inside, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
+				left.fork();
+				LongList right = new LongList();
+				timeIntHelper(r.getRight(), depth + 1, right, start, end, qr, inside, rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+				left.join().forEach(sink);
+				right.forEach(sink);
+			}
+			else {
+				// push the right child first so that the left subtree is searched first
+				stack.push(r.getRight(), depth + 1, inside, rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+				stack.push(r.getLeft(), depth + 1, inside, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
+			}
 		}
+	}
+	
+	/**
+	 * A fork-join task that runs timeIntHelper on one subtree and collects its matches in its own buffer
+	 */
+	private class TimeIntTask extends RecursiveTask<LongList> {
+		private static final long serialVersionUID = 1L;
 		
-		int discriminator = getLevel(r) % 3;
+		private final recordNode r;
+		private final int depth;
+		private final int start;
+		private final int end;
+		private final Rectangle qr;
+		private final boolean inside;
+		private final int xMin, xMax, yMin, yMax, timeMin, timeMax;
 		
-		// if we're discriminating on the X value, update xMin and xMax values for recursive calls
-		if (discriminator == 0 ) {
-			timeIntHelper(r.getLeft(), list, start, end, qr, xMin, r.getXloc() - 1, yMin, yMax, timeMin, timeMax);
-			timeIntHelper(r.getRight(), list, start, end, qr, r.getXloc(), xMax, yMin, yMax, timeMin, timeMax);
-		}
-		// if we're discriminating on the Y value, update yMin and yMax values for recursive calls
-		else if (discriminator == 1) {
-			timeIntHelper(r.getLeft(), list, start, end, qr, xMin, xMax, yMin, r.getYloc() - 1, timeMin, timeMax);
-			timeIntHelper(r.getRight(), list, start, end, qr, xMin, xMax, r.getYloc(), yMax, timeMin, timeMax);
+		TimeIntTask(recordNode r, int depth, int start, int end, Rectangle qr, boolean inside, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+			this.r = r;
+			this.depth = depth;
+			this.start = start;
+			this.end = end;
+			this.qr = qr;
+			this.inside = inside;
+			this.xMin = xMin;
+			this.xMax = xMax;
+			this.yMin = yMin;
+			this.yMax = yMax;
+			this.timeMin = timeMin;
+			this.timeMax = timeMax;
 		}
-		// if we're discriminating on the time value, update timeMin and timeMax values for recursive calls
-		else if (discriminator == 2) {
-			timeIntHelper(r.getLeft(), list, start, end, qr, xMin, xMax, yMin, yMax, timeMin, r.getTime() - 1);
-			timeIntHelper(r.getRight(), list, start, end, qr, xMin, xMax, yMin, yMax, r.getTime(), timeMax);
+		
+		@Override
+		protected LongList compute() {
+			LongList ids = new LongList();
+			timeIntHelper(r, depth, ids, start, end, qr, inside, xMin, xMax, yMin, yMax, timeMin, timeMax);
+			return ids;
 		}
 	}
 	
@@ -666,30 +1618,11 @@ public class KDTree {
 	 */
 	public ArrayList<List<Long>> processTimeAllIntQueries(String timeIntFile) {
 		ArrayList<List<Long>> outputLines = new ArrayList<List<Long>>();
+		int[] q = readQueries(timeIntFile, TIME_ALL_INT_QUERY);
 		
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(timeIntFile));
-			String currLine = "";	
-			
-			while ((currLine = br.readLine()) != null) {
-				String[] timeIntQuery = currLine.split(",");
-				
-				int startTime = Integer.parseInt(timeIntQuery[0].trim());
-				int endTime = Integer.parseInt(timeIntQuery[1].trim());
-				int x1 = Integer.parseInt(timeIntQuery[2].trim());
-				int y1 = Integer.parseInt(timeIntQuery[3].trim());
-				int x2 = Integer.parseInt(timeIntQuery[4].trim());
-				int y2 = Integer.parseInt(timeIntQuery[5].trim());
-				
-				List<Long> mobileIDs = timeAllInt(startTime, endTime, x1, y1, x2, y2);
-				outputLines.add(mobileIDs);
-			}
-			
-			br.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+		for (int i = 0; i < q.length; i += 6) {
+			List<Long> mobileIDs = timeAllInt(q[i], q[i + 1], q[i + 2], q[i + 3], q[i + 4], q[i + 5]);
+			outputLines.add(mobileIDs);
 		}
 		
 		return outputLines;
@@ -706,35 +1639,67 @@ public class KDTree {
 	 * @return
 	 */
 	public List<Long> timeAllInt(int start, int end, int x1, int y1, int x2, int y2) {
-		List<Long> mobileIDs = new ArrayList<Long>();
-		HashMap<Long, ArrayList<Integer>> mobileIDTimes = new HashMap<Long, ArrayList<Integer>>();
+		LongList mobileIDs = new LongList();
+		timeAllInt(start, end, x1, y1, x2, y2, mobileIDs);
+		
+		return mobileIDs.toList();
+	}
+	
+	/**
+	 * The streaming version of timeAllInt: every mobileID that is in the query region at all hours of [start, end]
+	 * is passed to sink, in the same order timeAllInt would have listed it.
+	 * 
+	 * @param start	 the start of the time interval
+	 * @param end	 the end of the time interval
+	 * @param x1	 the x-coordinate of the lower-left corner of the rectangle query region
+	 * @param y1	 the y-coordinate of the lower-left corner of the rectangle query region
+	 * @param x2	 the x-coordinate of the upper-right corner of the rectangle query region
+	 * @param y2	 the y-coordinate of the upper-right corner of the rectangle query region
+	 * @param sink	 receives the mobileIDs
+	 */
+	public void timeAllInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink) {
+		Rectangle queryRegion = new Rectangle(x1, y1, x2, y2);
+		
+		// with the trajectory index, only search the first hour of the window spatially and check each candidate's trajectory for the rest
+		if (trajectoryIndex != null && end > start) {
+			timeAllIntByTrajectory(start, end, queryRegion, sink);
+			return;
+		}
 		
-		Line2D left = new Line2D.Double(x1, x1, y1, y2);    // line going from (x1, y1) to (x1, y2)
-		Line2D top = new Line2D.Double(x1, x2, y2, y2);     // line going from (x1, y2) to (x2, y2)
-		Line2D right = new Line2D.Double(x2, x2, y2, y1);   // line going from (x2, y2) to (x2, y1)
-		Line2D bottom = new Line2D.Double(x2, x1, y1, y1);  // line going from (x2, y1) to (x1, y1)
-		Rectangle queryRegion = new Rectangle(x1, y1, x2, y2, left, top, right, bottom);
+		// for every mobileID seen in the query region, a bitset of the hours it was seen there
+		LongBitsetMap mobileIDTimes = new LongBitsetMap(64);
 		
-		timeAllIntHelper(root, mobileIDTimes, start, end, queryRegion, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+		timeAllIntHelper(root, mobileIDTimes, start, end, queryRegion, false, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+		if (packed != null)
+			packed.timeAllInt(mobileIDTimes, start, end, queryRegion);
 		
 		// going through all the mobileIDs to check if they appear at all points in time interval [start, end]
-		for (long mobileID : mobileIDTimes.keySet()) {
-			boolean atAllTimes = true;
-			
-			// we will only add the mobileID to the List being returned if it appears at every point in the interval 
-			// (and if they lie in the specified region, of course)
-			for (int currTime = start; currTime <= end; currTime++) {
-				if (!mobileIDTimes.get(mobileID).contains(currTime)) {
-					atAllTimes = false;
-					break;
-				}
-			}
-			
-			if (atAllTimes)
-				mobileIDs.add(mobileID);
-		}
+		// we will only add the mobileID to the List being returned if every bit of [start, end] is set in its bitset
+		// (and if they lie in the specified region, of course)
+		SpatialIndex.acceptAllHours(mobileIDTimes, start, end, sink);
+	}
+	
+	/**
+	 * The trajectory plan for timeAllInt. A phone that is in the query region at every hour of [start, end] must be in it at hour start,
+	 * so we find the phones in the region at hour start with the tree, and then check each one's trajectory for the whole window.
+	 * This only visits the records of one hour spatially, no matter how wide the window is.
+	 * 
+	 * @param start		the start of the time interval
+	 * @param end		the end of the time interval
+	 * @param qr		the rectangle query region
+	 * @param sink		receives the mobileIDs that are in the query region at every hour in [start, end]
+	 */
+	private void timeAllIntByTrajectory(int start, int end, Rectangle qr, LongConsumer sink) {
+		LongBitsetMap candidates = new LongBitsetMap(64);
 		
-		return mobileIDs;
+		timeAllIntHelper(root, candidates, start, start, qr, false, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+		if (packed != null)
+			packed.timeAllInt(candidates, start, start, qr);
+		
+		for (int slot = candidates.nextSlot(0); slot >= 0; slot = candidates.nextSlot(slot + 1)) {
+			if (trajectoryIndex.coversRange(candidates.keyAt(slot), start, end, qr))
+				sink.accept(candidates.keyAt(slot));
+		}
 	}
 	
 	/**
@@ -744,6 +1709,7 @@ public class KDTree {
 	 * @param start
 	 * @param end
 	 * @param qr
+	 * @param inside
 	 * @param xMin
 	 * @param xMax
 	 * @param yMin
@@ -751,64 +1717,437 @@ public class KDTree {
 	 * @param timeMin
 	 * @param timeMax
 	 */
-	private void timeAllIntHelper(recordNode r, HashMap<Long, ArrayList<Integer>> hm, int start, int end, Rectangle qr, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
-		if (r == null)
-			return;
+	private void timeAllIntHelper(recordNode r, LongBitsetMap hm, int start, int end, Rectangle qr, boolean inside, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		TraversalStack stack = new TraversalStack();
+		stack.push(r, 0, inside, xMin, xMax, yMin, yMax, timeMin, timeMax);
 		
-		// if the time intervals don't overlap
-		if (end < timeMin || start > timeMax) {
-			//System.out.println("Pruning at Node " + r.getPhoneID() + " based on time in Task 4");
-			return; // pruning
-		}
-		// if the query region does not intersect with the node region
-		if (!qr.intersects(xMin, xMax, yMin, yMax)) {
-			//System.out.println("Pruning at Node " + r.getPhoneID() + " based on lack of intersection in Task 4");
-			return; // pruning
+		while (stack.pop()) {
+			r = stack.getNode();
+			inside = stack.isInside();
+			xMin = stack.getXMin();
+			xMax = stack.getXMax();
+			yMin = stack.getYMin();
+			yMax = stack.getYMax();
+			timeMin = stack.getTimeMin();
+			timeMax = stack.getTimeMax();
+			
+			// if the time intervals don't overlap
+			if (end < timeMin || start > timeMax) {
+				continue; // pruning
+			}
+			
+			if (!inside) {
+				int classification = qr.classify(xMin, xMax, yMin, yMax);
+				
+				// if the query region does not intersect with the node region
+				if (classification == QueryRegion.OUTSIDE)
+					continue; // pruning
+				
+				inside = classification == QueryRegion.INSIDE;
+			}
+			
+			// if the node region lies entirely inside the query region and the time interval, the whole subtree matches
+			// (see timeIntHelper)
+			if (inside && start <= timeMin && timeMax <= end) {
+				if (!r.isDeleted())
+					hm.set(r.getPhoneID(), r.getTime());
+				stack.push(r.getRight(), 0, true, xMin, xMax, yMin, yMax, timeMin, timeMax);
+				stack.push(r.getLeft(), 0, true, xMin, xMax, yMin, yMax, timeMin, timeMax);
+				continue;
+			}
+			
+			// if the time is within the interval specified and the point lies within the rectangle query region
+			if (start <= r.getTime() && r.getTime() <= end && (inside || qr.contains(r.getXloc(), r.getYloc())) && !r.isDeleted()) {
+				hm.set(r.getPhoneID(), r.getTime());
+			}
+			
+			int discriminator = r.getDiscriminator();
+			
+			// if we're discriminating on the X value, update xMin and xMax values
+			// for the children
+			if (discriminator == 0) {
+				stack.push(r.getRight(), 0, inside, r.getXloc(), xMax, yMin, yMax, timeMin, timeMax);
+				stack.push(r.getLeft(), 0, inside, xMin, r.getXloc() - 1, yMin, yMax, timeMin, timeMax);
+			}
+			// if we're discriminating on the Y value, update yMin and yMax values
+			// for the children
+			else if (discriminator == 1) {
+				stack.push(r.getRight(), 0, inside, xMin, xMax, r.getYloc(), yMax, timeMin, timeMax);
+				stack.push(r.getLeft(), 0, inside, xMin, xMax, yMin, r.getYloc() - 1, timeMin, timeMax);
+			}
+			// if we're discriminating on the time value, update timeMin and timeMax
+			// values for the children
+			else if (discriminator == 2) {
+				stack.push(r.getRight(), 0, inside, xMin, xMax, yMin, yMax, r.getTime(), timeMax);
+				stack.push(r.getLeft(), 0, inside, xMin, xMax, yMin, yMax, timeMin, r.getTime() - 1);
+			}
 		}
+	}
+	
+	/**
+	 * Counts the records that intersect the rectangle query region and time interval, the same records timeInt would list, without listing them.
+	 * Every node knows how many records are in its subtree and how many of those have been deleted, so once a node's region lies entirely inside
+	 * both the rectangle and the time interval, its whole subtree is counted in O(1) instead of being walked. In compact storage a subtree is one
+	 * contiguous block of records, so the same goes there.
+	 * 
+	 * @param start	 the start of the time interval
+	 * @param end	 the end of the time interval
+	 * @param x1	 the x-coordinate of the lower-left corner of the rectangle query region
+	 * @param y1	 the y-coordinate of the lower-left corner of the rectangle query region
+	 * @param x2	 the x-coordinate of the upper-right corner of the rectangle query region
+	 * @param y2	 the y-coordinate of the upper-right corner of the rectangle query region
+	 * 
+	 * @return the number of records in the query region at some point in the time interval
+	 */
+	public long countTimeInt(int start, int end, int x1, int y1, int x2, int y2) {
+		Rectangle queryRegion = new Rectangle(x1, y1, x2, y2);
 		
-		// if the time is within the interval specified
-		if (start <= r.getTime() && r.getTime() <= end) {
-			double wholeRecArea = Math.abs(qr.getX2() - qr.getX1()) * Math.abs(qr.getY2() - qr.getY1());
-			double area1 = triangleArea(qr.getX1(), qr.getY1(), r.getXloc(), r.getYloc(), qr.getX2(), qr.getY1());
-			double area2 = triangleArea(qr.getX1(), qr.getY1(), r.getXloc(), r.getYloc(), qr.getX1(), qr.getY2());
-			double area3 = triangleArea(qr.getX1(), qr.getY2(), r.getXloc(), r.getYloc(), qr.getX2(), qr.getY2());
-			double area4 = triangleArea(qr.getX2(), qr.getY2(), r.getXloc(), r.getYloc(), qr.getX2(), qr.getY1());
-			double result = area1 + area2 + area3 + area4;
-
-			// if the point lies within the rectangle query region
-			if (Math.abs(wholeRecArea - result) <= 0.000001) {
-				if (!hm.containsKey(r.getPhoneID()))
-					hm.put(r.getPhoneID(), new ArrayList<Integer>());
+		long count = countHelper(root, queryRegion, start, end);
+		if (packed != null)
+			count += packed.count(queryRegion, start, end);
+		
+		return count;
+	}
+	
+	/**
+	 * Counts the records inside the triangle query region at the given time, the same records triangle would list, without listing them.
+	 * Works the same way as countTimeInt; with the per-hour index on, the hour's 2-D tree is used, where every cell inside the triangle counts at once.
+	 * 
+	 * @param time		the time of the query
+	 * @param x1		the x-coordinate of the first vertex of the triangle query region
+	 * @param y1		the y-coordinate of the first vertex of the triangle query region
+	 * @param x2		the x-coordinate of the second vertex of the triangle query region
+	 * @param y2		the y-coordinate of the second vertex of the triangle query region
+	 * @param x3		the x-coordinate of the third vertex of the triangle query region
+	 * @param y3		the y-coordinate of the third vertex of the triangle query region
+	 * 
+	 * @return the number of records inside the triangle query region at the given time
+	 */
+	public long countTriangle(int time, int x1, int y1, int x2, int y2, int x3, int y3) {
+		Triangle queryRegion = new Triangle(x1, y1, x2, y2, x3, y3);
+		
+		if (hourIndex != null)
+			return hourIndex.countTriangle(time, queryRegion);
+		
+		long count = countHelper(root, queryRegion, time, time);
+		if (packed != null)
+			count += packed.count(queryRegion, time, time);
+		
+		return count;
+	}
+	
+	/**
+	 * Estimates the number of distinct mobileIDs in the rectangle query region at some point in the time interval,
+	 * the number timeIntDistinct would list without a limit, to within a few percent (see DistinctSketch).
+	 * The matching records of the pointer tree are added to a sketch one at a time. Compact storage keeps a sketch on each of its large subtrees,
+	 * so a large subtree entirely inside the query is merged in as a whole; since a sketch can't forget a mobile ID, that only works for subtrees
+	 * without deleted records, and compacting the tree is what brings the pointer tree's records under sketches too.
+	 * 
+	 * @param start	 the start of the time interval
+	 * @param end	 the end of the time interval
+	 * @param x1	 the x-coordinate of the lower-left corner of the rectangle query region
+	 * @param y1	 the y-coordinate of the lower-left corner of the rectangle query region
+	 * @param x2	 the x-coordinate of the upper-right corner of the rectangle query region
+	 * @param y2	 the y-coordinate of the upper-right corner of the rectangle query region
+	 * 
+	 * @return the estimated number of distinct mobileIDs in the query region at some point in the time interval
+	 */
+	public long estimateDistinctTimeInt(int start, int end, int x1, int y1, int x2, int y2) {
+		Rectangle queryRegion = new Rectangle(x1, y1, x2, y2);
+		DistinctSketch sketch = new DistinctSketch();
+		
+		timeIntHelper(root, 0, sketch, start, end, queryRegion, false, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+		if (packed != null)
+			packed.sketchTimeInt(sketch, start, end, queryRegion);
+		
+		return sketch.estimate();
+	}
+	
+	/**
+	 * The helper for countTimeInt and countTriangle, which searches the pointer tree like timeIntHelper,
+	 * except that a subtree whose region lies entirely inside the query adds its number of live records (its size less its tombstones) at once.
+	 * A triangle query is a query with the time interval [time, time].
+	 * 
+	 * @param r			the root of the pointer tree
+	 * @param region	the query region
+	 * @param start		the start of the time interval
+	 * @param end		the end of the time interval
+	 * 
+	 * @return the number of live records in the query region at some point in the time interval
+	 */
+	private long countHelper(recordNode r, QueryRegion region, int start, int end) {
+		long count = 0;
+		TraversalStack stack = new TraversalStack();
+		stack.push(r, 0, false, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+		
+		while (stack.pop()) {
+			r = stack.getNode();
+			boolean inside = stack.isInside();
+			int xMin = stack.getXMin();
+			int xMax = stack.getXMax();
+			int yMin = stack.getYMin();
+			int yMax = stack.getYMax();
+			int timeMin = stack.getTimeMin();
+			int timeMax = stack.getTimeMax();
+			
+			// if the time intervals don't overlap
+			if (end < timeMin || start > timeMax) {
+				continue; // pruning
+			}
+			
+			if (!inside) {
+				int classification = region.classify(xMin, xMax, yMin, yMax);
 				
-				hm.get(r.getPhoneID()).add(r.getTime());
+				// if the query region does not intersect with the node region
+				if (classification == QueryRegion.OUTSIDE)
+					continue; // pruning
+				
+				inside = classification == QueryRegion.INSIDE;
+			}
+			
+			// if the node region lies entirely inside the query region and the time interval, every live record below it matches
+			if (inside && start <= timeMin && timeMax <= end) {
+				count += r.getSize() - r.getTombstones();
+				continue;
+			}
+			
+			if (start <= r.getTime() && r.getTime() <= end && (inside || region.contains(r.getXloc(), r.getYloc())) && !r.isDeleted())
+				count++;
+			
+			int discriminator = r.getDiscriminator();
+			int leftXMax = xMax, rightXMin = xMin;
+			int leftYMax = yMax, rightYMin = yMin;
+			int leftTimeMax = timeMax, rightTimeMin = timeMin;
+			
+			if (discriminator == 0) {
+				leftXMax = r.getXloc() - 1;
+				rightXMin = r.getXloc();
+			}
+			else if (discriminator == 1) {
+				leftYMax = r.getYloc() - 1;
+				rightYMin = r.getYloc();
 			}
+			else if (discriminator == 2) {
+				leftTimeMax = r.getTime() - 1;
+				rightTimeMin = r.getTime();
+			}
+			
+			stack.push(r.getRight(), 0, inside, rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+			stack.push(r.getLeft(), 0, inside, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
 		}
 		
-		int discriminator = getLevel(r) % 3;
-
-		// if we're discriminating on the X value, update xMin and xMax values
-		// for recursive calls
-		if (discriminator == 0) {
-			timeAllIntHelper(r.getLeft(), hm, start, end, qr, xMin, r.getXloc() - 1, yMin, yMax, timeMin, timeMax);
-			timeAllIntHelper(r.getRight(), hm, start, end, qr, r.getXloc(), xMax, yMin, yMax, timeMin, timeMax);
+		return count;
+	}
+	
+	/**
+	 * Returns where a phone was between hours start and end, as new recordNodes sorted by time.
+	 * With the trajectory index turned on this is a direct lookup; otherwise every record in the tree has to be scanned.
+	 * 
+	 * @param phoneID	the mobile ID of the phone
+	 * @param start		the start of the time interval
+	 * @param end		the end of the time interval
+	 * 
+	 * @return a list of recordNodes (not linked into the tree) for the phone's records in [start, end], sorted by time
+	 */
+	public List<recordNode> trajectory(long phoneID, int start, int end) {
+		// without the index, collect the phone's records with a full scan; the tree may hold records the index couldn't
+		if (trajectoryIndex == null) {
+			final long wanted = phoneID;
+			final int from = start;
+			final int to = end;
+			final List<recordNode> scan = new ArrayList<recordNode>();
+			
+			addAllRecords(new RecordIndex() {
+				@Override
+				public void add(long phoneID, int xloc, int yloc, int time) {
+					if (phoneID == wanted && from <= time && time <= to)
+						scan.add(new recordNode(phoneID, xloc, yloc, time));
+				}
+			});
+			
+			// the same order as the index: by time, then XLOC, then YLOC
+			Collections.sort(scan, new Comparator<recordNode>() {
+				@Override
+				public int compare(recordNode a, recordNode b) {
+					if (a.getTime() != b.getTime())
+						return Integer.compare(a.getTime(), b.getTime());
+					if (a.getXloc() != b.getXloc())
+						return Integer.compare(a.getXloc(), b.getXloc());
+					return Integer.compare(a.getYloc(), b.getYloc());
+				}
+			});
+			return scan;
 		}
-		// if we're discriminating on the Y value, update yMin and yMax values
-		// for recursive calls
-		else if (discriminator == 1) {
-			timeAllIntHelper(r.getLeft(), hm, start, end, qr, xMin, xMax, yMin, r.getYloc() - 1, timeMin, timeMax);
-			timeAllIntHelper(r.getRight(), hm, start, end, qr, xMin, xMax, r.getYloc(), yMax, timeMin, timeMax);
+		
+		int[] entries = trajectoryIndex.trajectory(phoneID, start, end);
+		List<recordNode> records = new ArrayList<recordNode>(entries.length);
+		
+		for (int entry : entries)
+			records.add(new recordNode(phoneID, TrajectoryIndex.getXloc(entry), TrajectoryIndex.getYloc(entry), TrajectoryIndex.getTime(entry)));
+		
+		return records;
+	}
+	
+	/**
+	 * Returns the k phones nearest to (x, y) at the given hour (see the full version below)
+	 *
+	 * @param x		the x-coordinate of the query point
+	 * @param y		the y-coordinate of the query point
+	 * @param time	the hour of the query
+	 * @param k		the number of phones to return, at least 1
+	 *
+	 * @return the mobileIDs of the k records nearest to (x, y) at that hour, nearest first
+	 */
+	public List<Long> nearest(int x, int y, int time, int k) {
+		return nearest(x, y, time, time, k, false);
+	}
+
+	/**
+	 * Returns the k records nearest to (x, y) (by Euclidean distance in XLOC and YLOC) among the records with a time in [start, end].
+	 * Records at the same distance are ordered by mobileID, and fewer than k are returned if there aren't enough records in the window.
+	 *
+	 * This is a best-first search over the pointer tree and the compact storage together: subtrees wait in a CellQueue ordered by
+	 * the distance from (x, y) to their region, using the same x/y/time region bounds as the other queries, and subtrees whose time bounds miss
+	 * [start, end] are never queued. The k best records so far are kept in a NearestHeap, and the search stops as soon as
+	 * the closest waiting region is farther away than the k-th best record.
+	 *
+	 * @param x					the x-coordinate of the query point
+	 * @param y					the y-coordinate of the query point
+	 * @param start				the start of the time interval
+	 * @param end				the end of the time interval
+	 * @param k					the number of records to return, at least 1
+	 * @param distinctPhones	true to count each phone once, by its record nearest to (x, y), so one phone can't fill the k places
+	 *
+	 * @return the mobileIDs of the k nearest records, nearest first
+	 */
+	public List<Long> nearest(int x, int y, int start, int end, int k, boolean distinctPhones) {
+		NearestHeap best = new NearestHeap(k, distinctPhones);
+		CellQueue queue = new CellQueue();
+
+		pushNearest(queue, best, x, y, start, end, root, 0, 0, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+		if (packed != null)
+			pushNearest(queue, best, x, y, start, end, null, 0, packed.size(), XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+
+		while (queue.pop()) {
+			// every region still waiting is at least this far away
+			if (queue.getPriority() > best.bound())
+				break;
+
+			int xMin = queue.getXMin();
+			int xMax = queue.getXMax();
+			int yMin = queue.getYMin();
+			int yMax = queue.getYMax();
+			int timeMin = queue.getTimeMin();
+			int timeMax = queue.getTimeMax();
+			recordNode r = queue.getNode();
+
+			int xloc, yloc, time, discriminator;
+			if (r != null) {
+				xloc = r.getXloc();
+				yloc = r.getYloc();
+				time = r.getTime();
+				discriminator = r.getDiscriminator();
+
+				if (start <= time && time <= end && !r.isDeleted())
+					best.offer(squaredDistance(x, y, xloc, yloc), r.getPhoneID());
+			}
+			else {
+				int mid = (queue.getLo() + queue.getHi()) >>> 1;
+				int cell = packed.getCell(mid);
+				xloc = PackedKDTree.getXloc(cell);
+				yloc = PackedKDTree.getYloc(cell);
+				time = PackedKDTree.getTime(cell);
+				discriminator = PackedKDTree.getDiscriminator(cell);
+
+				if (start <= time && time <= end && !packed.isDeleted(mid))
+					best.offer(squaredDistance(x, y, xloc, yloc), packed.getPhoneID(mid));
+			}
+
+			// the children's regions, as in the other queries: in the pointer tree the left child's region stops one below the split value,
+			// while in the compact storage records equal to the split value can be on either side
+			int below = r != null ? 1 : 0;
+			int leftXMax = xMax, rightXMin = xMin;
+			int leftYMax = yMax, rightYMin = yMin;
+			int leftTimeMax = timeMax, rightTimeMin = timeMin;
+
+			if (discriminator == 0) {
+				leftXMax = xloc - below;
+				rightXMin = xloc;
+			}
+			else if (discriminator == 1) {
+				leftYMax = yloc - below;
+				rightYMin = yloc;
+			}
+			else {
+				leftTimeMax = time - below;
+				rightTimeMin = time;
+			}
+
+			if (r != null) {
+				pushNearest(queue, best, x, y, start, end, r.getLeft(), 0, 0, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
+				pushNearest(queue, best, x, y, start, end, r.getRight(), 0, 0, rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+			}
+			else {
+				int mid = (queue.getLo() + queue.getHi()) >>> 1;
+				pushNearest(queue, best, x, y, start, end, null, queue.getLo(), mid, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
+				pushNearest(queue, best, x, y, start, end, null, mid + 1, queue.getHi(), rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+			}
 		}
-		// if we're discriminating on the time value, update timeMin and timeMax
-		// values for recursive calls
-		else if (discriminator == 2) {
-			timeAllIntHelper(r.getLeft(), hm, start, end, qr, xMin, xMax, yMin, yMax, timeMin, r.getTime() - 1);
-			timeAllIntHelper(r.getRight(), hm, start, end, qr, xMin, xMax, yMin, yMax, r.getTime(), timeMax);
+
+		return best.toList();
+	}
+
+	/**
+	 * Queues a subtree for nearest, unless it is empty, its time bounds miss [start, end], or its region is already too far away
+	 */
+	private static void pushNearest(CellQueue queue, NearestHeap best, int x, int y, int start, int end, recordNode r, int lo, int hi,
+			int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		if (r == null && lo >= hi)
+			return;
+		if (end < timeMin || start > timeMax)
+			return; // pruning
+
+		// the distance from (x, y) to the nearest point of the region
+		long dx = Math.max(0, Math.max((long) xMin - x, (long) x - xMax));
+		long dy = Math.max(0, Math.max((long) yMin - y, (long) y - yMax));
+		long distance = dx * dx + dy * dy;
+
+		if (distance <= best.bound())
+			queue.push(distance, r, lo, hi, xMin, xMax, yMin, yMax, timeMin, timeMax);
+	}
+
+	private static long squaredDistance(int x, int y, int xloc, int yloc) {
+		long dx = (long) xloc - x;
+		long dy = (long) yloc - y;
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Returns the height of the pointer tree, the number of levels from the root down to its deepest record,
+	 * which bounds the cost of an insert and of a query that can't prune (see setSelfBalancing).
+	 * 
+	 * @return the height of the pointer tree, or 0 if it is empty
+	 */
+	public int getHeight() {
+		int height = 0;
+		TraversalStack stack = new TraversalStack();
+		stack.push(root, 1, false, 0, 0, 0, 0, 0, 0);
+		
+		while (stack.pop()) {
+			recordNode curr = stack.getNode();
+			int depth = stack.getDepth();
+			
+			height = Math.max(height, depth);
+			stack.push(curr.getRight(), depth + 1, false, 0, 0, 0, 0, 0, 0);
+			stack.push(curr.getLeft(), depth + 1, false, 0, 0, 0, 0, 0, 0);
 		}
 		
+		return height;
 	}
 	
 	/**
-	 * The getLevel method calls getLevelHelper to return the level of recordNode r
+	 * The getLevel method calls getLevelHelper to return the level of recordNode r.
+	 * It is no longer used by insert or the query helpers, which read the discriminator stored in each node.
 	 * 
 	 * @param r	  the recordNode which we are trying to find the level of
 	 * 
@@ -820,28 +2159,32 @@ public class KDTree {
 	
 	/**
 	 * Helper method for getLevel that actually does all the work.
+	 * Since insert always sends a record left if it is smaller on the discriminating dimension and right otherwise,
+	 * recordNode r can only be on the search path for its own coordinates, so we only follow that path.
+	 * Nodes are matched by identity rather than by mobile ID, since the same phone can appear many times in the tree.
 	 * 
-	 * @param curr   the current recordNode we are at, for the sake of recursion
+	 * @param curr   the recordNode to start at
 	 * @param r		 the recordNode which we are trying to find the level of
-	 * @param level  the int representing the current level we are at, which we will return if we find recordNode r
+	 * @param level  the level of curr
 	 * 
 	 * @return an integer representing the level of recordNode r in the current tree or -1 if it's not in the tree
 	 */
 	private int getLevelHelper(recordNode curr, recordNode r, int level) {
-		if (curr == null)
-			return -1;
-		
-		if (curr.getPhoneID() == r.getPhoneID())
-			return level;
-		
-		int left = getLevelHelper(curr.getLeft(), r, level + 1);
-		int right = getLevelHelper(curr.getRight(), r, level + 1);
+		while (curr != null) {
+			if (curr == r)
+				return level;
+			
+			int discriminator = curr.getDiscriminator();
+			
+			if (discriminator == 0 && r.getXloc() < curr.getXloc()
+			 || discriminator == 1 && r.getYloc() < curr.getYloc()
+			 || discriminator == 2 && r.getTime() < curr.getTime())
+				curr = curr.getLeft();
+			else
+				curr = curr.getRight();
+			level++;
+		}
 		
-		if (left != -1)
-			return left;
-		else if (right != -1)
-			return right;
-		else
-			return -1;
+		return -1;
 	}
 }
@@ -0,0 +1,352 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The KDTreeBuilder class builds a balanced 3-D tree out of a whole batch of recordNodes at once.
+ * At every node it partitions the remaining records around the median of the discriminating dimension,
+ * so the resulting tree has logarithmic depth no matter what order the records arrived in.
+ *
+ * The tree it builds follows the same rules as KDTree.insert: every record in the left subtree of a node is
+ * strictly smaller than the node on the node's discriminating dimension, and every record in the right subtree is greater than or equal to it.
+ * The upper levels of the tree are built in parallel with fork-join, since the two halves of a partition are independent.
+ * Every node's subtree size is set along the way, since it is just the length of the node's range, and its tombstone count is cleared;
+ * a caller that builds from deleted records too (see KDTree.rebalance) counts their tombstones again afterwards.
+ */
+public class KDTreeBuilder {
+
+	// below this many records, a subtree is built on the current thread
+	private static final int PARALLEL_THRESHOLD = 8192;
+
+	/**
+	 * Builds a balanced tree out of records[from, to) and returns its root.
+	 * The array is reordered in place, and the left and right children of every record in the range are overwritten.
+	 *
+	 * @param records			the records to build the tree from
+	 * @param from				the index of the first record to use (inclusive)
+	 * @param to				the index of the last record to use (exclusive)
+	 * @param discriminator		the dimension the root splits on when splits cycle through x, y, and time
+	 * @param widestSpread		if true, every node splits on the dimension with the widest spread of values instead of cycling
+	 *
+	 * @return the root of the new tree, or null if the range is empty
+	 */
+	public static recordNode build(recordNode[] records, int from, int to, int discriminator, boolean widestSpread) {
+		if (to - from < PARALLEL_THRESHOLD)
+			return buildHelper(records, from, to, discriminator, widestSpread);
+
+		return ForkJoinPool.commonPool().invoke(new BuildTask(records, from, to, discriminator, widestSpread));
+	}
+
+	/**
+	 * Sequentially builds the subtree for records[from, to).
+	 * A range whose records are all equal splits into nothing and everything but one record, so the subtree can be as deep as it is large;
+	 * the ranges still to be built are kept on an explicit stack, together with the node they hang from, instead of recursing.
+	 *
+	 * @param records			the records to build the tree from
+	 * @param from				the index of the first record to use (inclusive)
+	 * @param to				the index of the last record to use (exclusive)
+	 * @param discriminator		the dimension the subtree's root splits on when splits cycle through x, y, and time
+	 * @param widestSpread		if true, split on the dimension with the widest spread of values instead
+	 *
+	 * @return the root of the subtree, or null if the range is empty
+	 */
+	private static recordNode buildHelper(recordNode[] records, int from, int to, int discriminator, boolean widestSpread) {
+		if (from >= to)
+			return null;
+
+		// each pending range is from, to, and discriminator, plus the node it becomes the left (or right) child of
+		int[] ranges = new int[3 * 64];
+		recordNode[] parents = new recordNode[64];
+		boolean[] lefts = new boolean[64];
+		int size = 0;
+		recordNode root = null;
+
+		ranges[0] = from;
+		ranges[1] = to;
+		ranges[2] = discriminator;
+		size = 1;
+
+		while (size > 0) {
+			size--;
+			from = ranges[3 * size];
+			to = ranges[3 * size + 1];
+			discriminator = ranges[3 * size + 2];
+			recordNode parent = parents[size];
+			boolean left = lefts[size];
+			parents[size] = null;
+
+			int dimension = widestSpread ? widestDimension(records, from, to, discriminator) : discriminator;
+			int mid = partition(records, from, to, dimension);
+			recordNode node = records[mid];
+
+			node.setDiscriminator(dimension);
+			node.setSize(to - from);
+			node.setTombstones(0);
+			node.setLeft(null);
+			node.setRight(null);
+
+			if (parent == null)
+				root = node;
+			else if (left)
+				parent.setLeft(node);
+			else
+				parent.setRight(node);
+
+			// at most two more ranges go on the stack
+			if (size + 2 > parents.length) {
+				ranges = Arrays.copyOf(ranges, 6 * parents.length);
+				parents = Arrays.copyOf(parents, 2 * parents.length);
+				lefts = Arrays.copyOf(lefts, 2 * lefts.length);
+			}
+
+			int next = (dimension + 1) % 3;
+			if (from < mid) {
+				ranges[3 * size] = from;
+				ranges[3 * size + 1] = mid;
+				ranges[3 * size + 2] = next;
+				parents[size] = node;
+				lefts[size] = true;
+				size++;
+			}
+			if (mid + 1 < to) {
+				ranges[3 * size] = mid + 1;
+				ranges[3 * size + 1] = to;
+				ranges[3 * size + 2] = next;
+				parents[size] = node;
+				lefts[size] = false;
+				size++;
+			}
+		}
+
+		return root;
+	}
+
+	/**
+	 * Fork-join task that builds the subtree for a range of records.
+	 * At each node it forks the smaller half as a separate task if it is still large, and carries on down the larger half itself,
+	 * until the range is small enough to build sequentially. Going down the larger half in a loop keeps the task from recursing
+	 * once per level, which matters when a range of equal records splits into nothing and everything but one record.
+	 */
+	private static class BuildTask extends RecursiveTask<recordNode> {
+		private static final long serialVersionUID = 1L;
+
+		private final recordNode[] records;
+		private final int from;
+		private final int to;
+		private final int discriminator;
+		private final boolean widestSpread;
+
+		BuildTask(recordNode[] records, int from, int to, int discriminator, boolean widestSpread) {
+			this.records = records;
+			this.from = from;
+			this.to = to;
+			this.discriminator = discriminator;
+			this.widestSpread = widestSpread;
+		}
+
+		@Override
+		protected recordNode compute() {
+			List<BuildTask> tasks = new ArrayList<BuildTask>();
+			List<recordNode> taskParents = new ArrayList<recordNode>();
+			List<Boolean> taskLefts = new ArrayList<Boolean>();
+			recordNode root = null;
+			recordNode parent = null;
+			boolean left = false;
+			int from = this.from;
+			int to = this.to;
+			int discriminator = this.discriminator;
+
+			while (to - from >= PARALLEL_THRESHOLD) {
+				int dimension = widestSpread ? widestDimension(records, from, to, discriminator) : discriminator;
+				int mid = partition(records, from, to, dimension);
+				recordNode node = records[mid];
+
+				node.setDiscriminator(dimension);
+				node.setSize(to - from);
+				node.setTombstones(0);
+				if (parent == null)
+					root = node;
+				else if (left)
+					parent.setLeft(node);
+				else
+					parent.setRight(node);
+
+				// carry on down the larger half, and fork (or build right away) the smaller one
+				discriminator = (dimension + 1) % 3;
+				left = mid - from >= to - (mid + 1);
+				int smallFrom = left ? mid + 1 : from;
+				int smallTo = left ? to : mid;
+
+				if (smallTo - smallFrom >= PARALLEL_THRESHOLD) {
+					BuildTask task = new BuildTask(records, smallFrom, smallTo, discriminator, widestSpread);
+					task.fork();
+					tasks.add(task);
+					taskParents.add(node);
+					taskLefts.add(!left);
+				}
+				else if (left)
+					node.setRight(buildHelper(records, smallFrom, smallTo, discriminator, widestSpread));
+				else
+					node.setLeft(buildHelper(records, smallFrom, smallTo, discriminator, widestSpread));
+
+				if (left)
+					to = mid;
+				else
+					from = mid + 1;
+				parent = node;
+			}
+
+			recordNode rest = buildHelper(records, from, to, discriminator, widestSpread);
+			if (parent == null)
+				root = rest;
+			else if (left)
+				parent.setLeft(rest);
+			else
+				parent.setRight(rest);
+
+			for (int i = 0; i < tasks.size(); i++) {
+				if (taskLefts.get(i))
+					taskParents.get(i).setLeft(tasks.get(i).join());
+				else
+					taskParents.get(i).setRight(tasks.get(i).join());
+			}
+
+			return root;
+		}
+	}
+
+	/**
+	 * Finds the dimension along which the records in [from, to) are most spread out.
+	 * Ties are broken in favor of the dimension we would have used when cycling.
+	 *
+	 * @param records			the records to look at
+	 * @param from				the index of the first record (inclusive)
+	 * @param to				the index of the last record (exclusive)
+	 * @param discriminator		the dimension we would split on when cycling through x, y, and time
+	 *
+	 * @return 0 for XLOC, 1 for YLOC, or 2 for time
+	 */
+	private static int widestDimension(recordNode[] records, int from, int to, int discriminator) {
+		int xMin = Integer.MAX_VALUE, yMin = Integer.MAX_VALUE, timeMin = Integer.MAX_VALUE;
+		int xMax = Integer.MIN_VALUE, yMax = Integer.MIN_VALUE, timeMax = Integer.MIN_VALUE;
+
+		for (int i = from; i < to; i++) {
+			recordNode r = records[i];
+			xMin = Math.min(xMin, r.getXloc());
+			xMax = Math.max(xMax, r.getXloc());
+			yMin = Math.min(yMin, r.getYloc());
+			yMax = Math.max(yMax, r.getYloc());
+			timeMin = Math.min(timeMin, r.getTime());
+			timeMax = Math.max(timeMax, r.getTime());
+		}
+
+		int[] spread = { xMax - xMin, yMax - yMin, timeMax - timeMin };
+		int best = discriminator;
+
+		for (int dimension = 0; dimension < 3; dimension++) {
+			if (spread[dimension] > spread[best])
+				best = dimension;
+		}
+
+		return best;
+	}
+
+	/**
+	 * Partitions records[from, to) around the median on the given dimension.
+	 * After this method returns, every record before the returned index is strictly smaller than the record at the index,
+	 * and every record after it is greater than or equal to it, which is exactly the order KDTree.insert keeps.
+	 * 
+	 * Since records equal to the split value have to go right, a large block of duplicates (many records in one hour, say)
+	 * would otherwise push everything to one side. So we split either just before or just after the block of records equal to the median,
+	 * whichever leaves the two sides closer in size.
+	 *
+	 * @param records		the records to partition
+	 * @param from			the index of the first record (inclusive)
+	 * @param to			the index of the last record (exclusive)
+	 * @param dimension		0 for XLOC, 1 for YLOC, or 2 for time
+	 *
+	 * @return the index of the record that becomes the root of this range
+	 */
+	private static int partition(recordNode[] records, int from, int to, int dimension) {
+		int mid = (from + to) >>> 1;
+		select(records, from, to - 1, mid, dimension);
+
+		// gather the records equal to the median into one block [first, last] around mid
+		int median = records[mid].getKey(dimension);
+		int first = mid;
+		int last = mid;
+
+		for (int i = mid - 1; i >= from; i--) {
+			if (records[i].getKey(dimension) == median)
+				swap(records, i, --first);
+		}
+		for (int i = mid + 1; i < to; i++) {
+			if (records[i].getKey(dimension) == median)
+				swap(records, i, ++last);
+		}
+
+		if (last + 1 >= to || mid - first <= last + 1 - mid)
+			return first;
+
+		// otherwise split right after the block, on the smallest record that is larger than the median
+		int smallest = last + 1;
+		for (int i = last + 2; i < to; i++) {
+			if (records[i].getKey(dimension) < records[smallest].getKey(dimension))
+				smallest = i;
+		}
+		swap(records, smallest, last + 1);
+
+		return last + 1;
+	}
+
+	/**
+	 * Quickselect: reorders records[lo, hi] so that records[k] holds the value it would have if the range were sorted on the given dimension,
+	 * with nothing larger before it and nothing smaller after it.
+	 *
+	 * @param records		the records to reorder
+	 * @param lo			the index of the first record (inclusive)
+	 * @param hi			the index of the last record (inclusive)
+	 * @param k				the index to select
+	 * @param dimension		0 for XLOC, 1 for YLOC, or 2 for time
+	 */
+	private static void select(recordNode[] records, int lo, int hi, int k, int dimension) {
+		while (lo < hi) {
+			// median of three, so sorted input doesn't degrade to quadratic time
+			int mid = (lo + hi) >>> 1;
+			if (records[mid].getKey(dimension) < records[lo].getKey(dimension))
+				swap(records, lo, mid);
+			if (records[hi].getKey(dimension) < records[lo].getKey(dimension))
+				swap(records, lo, hi);
+			if (records[hi].getKey(dimension) < records[mid].getKey(dimension))
+				swap(records, mid, hi);
+
+			int pivot = records[mid].getKey(dimension);
+			int i = lo;
+			int j = hi;
+
+			while (i <= j) {
+				while (records[i].getKey(dimension) < pivot)
+					i++;
+				while (records[j].getKey(dimension) > pivot)
+					j--;
+				if (i <= j)
+					swap(records, i++, j--);
+			}
+
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private static void swap(recordNode[] records, int i, int j) {
+		recordNode temp = records[i];
+		records[i] = records[j];
+		records[j] = temp;
+	}
+}
@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/**
+ * The LeafFilter class tests a whole run of packed records against a query at once, for the engines that keep their records in
+ * primitive arrays (the leaf pages of BucketKDTree and the buckets of GridIndex). A packed record is one int holding
+ * XLOC in bits 0-9, YLOC in bits 10-19, and time in bits 20-29. The filter writes the indices of the records that match into an array,
+ * and the engine then reads their mobile IDs.
+ *
+ * This class is the scalar filter, which tests one record at a time. getInstance returns VectorLeafFilter instead when it can:
+ * VectorLeafFilter is in the src-vector source folder and tests a whole SIMD register of records at a time with the JDK's incubating Vector API.
+ * It is looked up reflectively, so this class compiles and runs without the jdk.incubator.vector module, and falls back to the scalar filter.
+ * To use it, compile src-vector after src with --add-modules jdk.incubator.vector onto the same class path, and run the JVM with that option too
+ * (see src-vector/README.txt for the commands).
+ */
+public class LeafFilter {
+
+	protected static final int BITS = 10;
+	protected static final int MASK = (1 << BITS) - 1;
+
+	private static final LeafFilter INSTANCE = load();
+
+	/**
+	 * Constructor
+	 *
+	 */
+	protected LeafFilter() {
+	}
+
+	/**
+	 * @return the fastest filter this JVM can run, which is shared and has no state
+	 */
+	public static LeafFilter getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Loads VectorLeafFilter if it is on the class path and the Vector API is available, and checks that it agrees with the scalar filter
+	 */
+	private static LeafFilter load() {
+		LeafFilter scalar = new LeafFilter();
+
+		try {
+			LeafFilter vector = (LeafFilter) Class.forName("VectorLeafFilter").getDeclaredConstructor().newInstance();
+
+			// enough records to go through the vector loop and the scalar tail
+			int[] cells = new int[67];
+			for (int i = 0; i < cells.length; i++)
+				cells[i] = (i * 37 % 1024) | ((i * 101 % 1024) << BITS) | ((i % 7) << (2 * BITS));
+			int[] expected = new int[cells.length];
+			int[] actual = new int[cells.length];
+
+			int count = scalar.box(cells, 1, cells.length, 100, 900, 0, 800, 2, 5, expected);
+			if (vector.box(cells, 1, cells.length, 100, 900, 0, 800, 2, 5, actual) != count || !Arrays.equals(expected, actual))
+				return scalar;
+
+			Triangle tri = new Triangle(0, 0, 1000, 100, 300, 900);
+			count = scalar.triangle(cells, 0, cells.length, tri, 0, 6, expected);
+			if (vector.triangle(cells, 0, cells.length, tri, 0, 6, actual) != count || !Arrays.equals(expected, actual))
+				return scalar;
+
+			return vector;
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// no VectorLeafFilter on the class path, or no jdk.incubator.vector module in this JVM
+			return scalar;
+		}
+	}
+
+	/**
+	 * @return true if this is the SIMD filter
+	 */
+	public boolean isVectorized() {
+		return false;
+	}
+
+	/**
+	 * Finds the records in cells[from, to) inside the box [xMin, xMax] x [yMin, yMax] x [timeMin, timeMax], which must not be empty
+	 *
+	 * @param out	receives the indices of the matching records, in order; it must have room for to - from of them
+	 * @return the number of matching records
+	 */
+	public int box(int[] cells, int from, int to, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax, int[] out) {
+		return scalarBox(cells, from, to, xMin, xMax, yMin, yMax, timeMin, timeMax, out, 0);
+	}
+
+	/**
+	 * Finds the records in cells[from, to) inside the triangle at a time in [timeMin, timeMax]
+	 *
+	 * @param out	receives the indices of the matching records, in order; it must have room for to - from of them
+	 * @return the number of matching records
+	 */
+	public int triangle(int[] cells, int from, int to, Triangle tri, int timeMin, int timeMax, int[] out) {
+		return scalarTriangle(cells, from, to, tri, timeMin, timeMax, out, 0);
+	}
+
+	/**
+	 * The scalar box test, which also finishes the records after the last full vector of VectorLeafFilter
+	 *
+	 * @param count	  the number of indices already in out
+	 * @return the number of indices in out afterwards
+	 */
+	protected static int scalarBox(int[] cells, int from, int to, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax, int[] out, int count) {
+		for (int i = from; i < to; i++) {
+			int cell = cells[i];
+			int xloc = cell & MASK;
+			int yloc = (cell >>> BITS) & MASK;
+			int time = cell >>> (2 * BITS);
+
+			if (xloc >= xMin && xloc <= xMax && yloc >= yMin && yloc <= yMax && time >= timeMin && time <= timeMax)
+				out[count++] = i;
+		}
+
+		return count;
+	}
+
+	/**
+	 * The scalar triangle test, which also finishes the records after the last full vector of VectorLeafFilter
+	 *
+	 * @param count	  the number of indices already in out
+	 * @return the number of indices in out afterwards
+	 */
+	protected static int scalarTriangle(int[] cells, int from, int to, Triangle tri, int timeMin, int timeMax, int[] out, int count) {
+		for (int i = from; i < to; i++) {
+			int cell = cells[i];
+			int time = cell >>> (2 * BITS);
+
+			if (time >= timeMin && time <= timeMax && tri.contains(cell & MASK, (cell >>> BITS) & MASK))
+				out[count++] = i;
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,162 @@
+import java.util.Arrays;
+
+/**
+ * The LongBitsetMap class maps long keys (mobile IDs) to a set of hours, stored as a 1024-bit bitset of 16 longs.
+ * It is used by timeAllInt to record which hours each phone was seen in the query region.
+ *
+ * Keys live in a primitive open-addressing table with linear probing, and the bitsets of all keys share one long array (16 longs per slot),
+ * so recording a sighting boxes nothing and allocates nothing unless the table has to grow.
+ * Checking that a phone was seen at every hour in [start, end] is a masked AND over at most 16 words.
+ * Keys must not be Long.MIN_VALUE, which marks an empty slot (mobile IDs are never negative).
+ */
+public class LongBitsetMap {
+
+	private static final long EMPTY = Long.MIN_VALUE;
+	private static final int WORDS = 16;
+	private static final int HOURS = WORDS * 64;
+
+	private long[] keys;
+	private long[] bits;
+	private int mask;
+	private int size;
+
+	/**
+	 * Constructor
+	 *
+	 * @param expectedKeys	the number of keys we expect to store, used to size the table
+	 */
+	public LongBitsetMap(int expectedKeys) {
+		int capacity = 16;
+		while (capacity < 2 * expectedKeys)
+			capacity <<= 1;
+
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		bits = new long[capacity * WORDS];
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	/**
+	 * Spreads the bits of a key so that consecutive mobile IDs don't land in consecutive slots (the finalizer of MurmurHash3)
+	 */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * Finds the slot of key, claiming an empty slot for it if it isn't in the table yet
+	 */
+	private int slotFor(long key) {
+		int slot = hash(key) & mask;
+
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+
+		// keep the table at most half full
+		if (2 * (size + 1) > keys.length) {
+			grow();
+			return slotFor(key);
+		}
+
+		keys[slot] = key;
+		size++;
+		return slot;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		long[] oldBits = bits;
+		allocate(2 * oldKeys.length);
+
+		for (int slot = 0; slot < oldKeys.length; slot++) {
+			if (oldKeys[slot] != EMPTY)
+				System.arraycopy(oldBits, slot * WORDS, bits, slotFor(oldKeys[slot]) * WORDS, WORDS);
+		}
+	}
+
+	/**
+	 * Records that key was seen at the given hour
+	 *
+	 * @param key	the mobile ID
+	 * @param hour	the hour, in [0,1023]
+	 */
+	public void set(long key, int hour) {
+		int slot = slotFor(key);
+		bits[slot * WORDS + (hour >>> 6)] |= 1L << hour;
+	}
+
+	/**
+	 * @return the number of keys in the map
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Used to iterate over the keys: for (int slot = map.nextSlot(0); slot >= 0; slot = map.nextSlot(slot + 1))
+	 *
+	 * @param slot	the slot to start looking from
+	 * @return the first slot at or after the given one that holds a key, or -1 if there are none
+	 */
+	public int nextSlot(int slot) {
+		for (; slot < keys.length; slot++) {
+			if (keys[slot] != EMPTY)
+				return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param slot	a slot returned by nextSlot
+	 * @return the key stored in the slot
+	 */
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * Checks whether the key in the given slot was seen at every hour in [start, end]
+	 *
+	 * @param slot		a slot returned by nextSlot
+	 * @param start		the first hour, in [0,1023]
+	 * @param end		the last hour, in [0,1023]
+	 *
+	 * @return true if every bit in [start, end] is set (vacuously true if start > end)
+	 */
+	public boolean containsRange(int slot, int start, int end) {
+		if (start > end)
+			return true;
+		if (start < 0 || end >= HOURS)
+			return false;
+
+		int base = slot * WORDS;
+		int firstWord = start >>> 6;
+		int lastWord = end >>> 6;
+
+		for (int word = firstWord; word <= lastWord; word++) {
+			long wanted = -1L;
+			if (word == firstWord)
+				wanted &= -1L << start;
+			if (word == lastWord)
+				wanted &= -1L >>> (63 - (end & 63));
+
+			if ((bits[base + word] & wanted) != wanted)
+				return false;
+		}
+
+		return true;
+	}
+}
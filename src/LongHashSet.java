@@ -0,0 +1,128 @@
+import java.util.Arrays;
+
+/**
+ * The LongHashSet class is a set of primitive longs (mobile IDs), used to remove duplicates from query results without boxing.
+ * Keys live in an open-addressing table with linear probing, the same way as in LongBitsetMap,
+ * and clear keeps the table, so one set can be reused for any number of queries.
+ * Keys must not be Long.MIN_VALUE, which marks an empty slot (mobile IDs are never negative).
+ */
+public class LongHashSet {
+
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private long[] keys;
+	private int mask;
+	private int size;
+
+	/**
+	 * Constructor
+	 *
+	 */
+	public LongHashSet() {
+		this(16);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param expectedKeys	the number of keys we expect to store, used to size the table
+	 */
+	public LongHashSet(int expectedKeys) {
+		int capacity = 16;
+		while (capacity < 2 * expectedKeys)
+			capacity <<= 1;
+
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	/**
+	 * Spreads the bits of a key (the finalizer of MurmurHash3)
+	 */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * Adds a key to the set
+	 *
+	 * @param key	the key to add
+	 * @return true if the key was not in the set yet
+	 */
+	public boolean add(long key) {
+		int slot = hash(key) & mask;
+
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key)
+				return false;
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = key;
+		size++;
+
+		// keep the table at most half full
+		if (2 * size > keys.length)
+			grow();
+
+		return true;
+	}
+
+	/**
+	 * @param key	the key to look for
+	 * @return true if the key is in the set
+	 */
+	public boolean contains(long key) {
+		int slot = hash(key) & mask;
+
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key)
+				return true;
+			slot = (slot + 1) & mask;
+		}
+
+		return false;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+
+		keys = new long[2 * oldKeys.length];
+		Arrays.fill(keys, EMPTY);
+		mask = keys.length - 1;
+
+		for (long key : oldKeys) {
+			if (key == EMPTY)
+				continue;
+
+			int slot = hash(key) & mask;
+			while (keys[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			keys[slot] = key;
+		}
+	}
+
+	/**
+	 * @return the number of keys in the set
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the set, keeping its table for reuse
+	 */
+	public void clear() {
+		if (size > 0) {
+			Arrays.fill(keys, EMPTY);
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * The LongList class is a growable list of primitive longs, used to collect query results (mobile IDs) without boxing each one.
+ * It is a LongConsumer, so it can be passed straight to the sink overloads of KDTree's query methods,
+ * and clear keeps the backing array, so one LongList can be reused for any number of queries without allocating again.
+ */
+public class LongList implements LongConsumer {
+
+	private long[] values;
+	private int size;
+
+	/**
+	 * Constructor
+	 *
+	 */
+	public LongList() {
+		this(16);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity	the number of values to make room for up front
+	 */
+	public LongList(int capacity) {
+		values = new long[Math.max(capacity, 1)];
+		size = 0;
+	}
+
+	/**
+	 * Appends a value to the end of the list
+	 *
+	 * @param value	  the value to add
+	 */
+	public void add(long value) {
+		if (size == values.length)
+			values = Arrays.copyOf(values, 2 * size);
+
+		values[size++] = value;
+	}
+
+	@Override
+	public void accept(long value) {
+		add(value);
+	}
+
+	/**
+	 * @param index	  the index of the value, in [0, size())
+	 * @return the value at the index
+	 */
+	public long get(int index) {
+		if (index >= size)
+			throw new IndexOutOfBoundsException("index " + index + " out of bounds for size " + size);
+
+		return values[index];
+	}
+
+	/**
+	 * @return the number of values in the list
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the list, keeping its capacity for reuse
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Passes every value in the list to sink, in order
+	 *
+	 * @param sink	 the consumer of the values
+	 */
+	public void forEach(LongConsumer sink) {
+		for (int i = 0; i < size; i++)
+			sink.accept(values[i]);
+	}
+
+	/**
+	 * @return a new array with the values in the list
+	 */
+	public long[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * @return a new List of boxed Longs with the values in the list, for callers of the List-returning query methods
+	 */
+	public List<Long> toList() {
+		List<Long> list = new ArrayList<Long>(size);
+
+		for (int i = 0; i < size; i++)
+			list.add(values[i]);
+
+		return list;
+	}
+}
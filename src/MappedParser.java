@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The MappedParser class reads the input files of the project (points, triangle, time_int, and time_all_int),
+ * which all have one record per line made of a fixed number of comma-separated integers, such as "1234567890, 60, 70, 10".
+ *
+ * The file is memory-mapped and decoded byte by byte straight into primitives, with no Strings, no split, and no boxing.
+ * A large file is cut into chunks at line boundaries, and the chunks are parsed in parallel on the common fork-join pool,
+ * each into its own buffer; the buffers are then concatenated in file order, so the result is the same as parsing the file front to back.
+ *
+ * Spaces, tabs, and carriage returns are ignored, blank lines are skipped, and a trailing comma at the end of a line is allowed.
+ * Anything else that isn't a well-formed line throws a NumberFormatException, like Integer.parseInt would have.
+ */
+public class MappedParser {
+
+	// files smaller than this are parsed in one chunk
+	private static final int MIN_CHUNK_BYTES = 1 << 20;
+	// a chunk is one mapping, which can't be 2 GB or more
+	private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+	/**
+	 * Parses a file of lines with fieldsPerLine comma-separated integers each
+	 *
+	 * @param filePath		  the file to parse
+	 * @param fieldsPerLine	  the number of integers on every line
+	 *
+	 * @return the integers of the file in order, fieldsPerLine per line, so line i is [i * fieldsPerLine, (i + 1) * fieldsPerLine)
+	 */
+	public static long[] parse(String filePath, int fieldsPerLine) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filePath, "r");
+
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			long[] bounds = chunkBounds(channel, size);
+			int chunks = bounds.length - 1;
+
+			if (chunks == 1)
+				return parseChunk(map(channel, bounds[0], bounds[1]), bounds[0], fieldsPerLine).toArray();
+
+			List<ForkJoinTask<LongList>> tasks = new ArrayList<ForkJoinTask<LongList>>(chunks);
+			for (int i = 0; i < chunks; i++)
+				tasks.add(ForkJoinPool.commonPool().submit(new ChunkTask(map(channel, bounds[i], bounds[i + 1]), bounds[i], fieldsPerLine)));
+
+			int total = 0;
+			for (ForkJoinTask<LongList> task : tasks)
+				total += task.join().size();
+
+			long[] values = new long[total];
+			int offset = 0;
+			for (ForkJoinTask<LongList> task : tasks) {
+				LongList chunk = task.join();
+				for (int i = 0; i < chunk.size(); i++)
+					values[offset++] = chunk.get(i);
+			}
+
+			return values;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Like parse, for files whose integers all fit in an int (the query files)
+	 *
+	 * @param filePath		  the file to parse
+	 * @param fieldsPerLine	  the number of integers on every line
+	 *
+	 * @return the integers of the file in order, fieldsPerLine per line
+	 */
+	public static int[] parseInts(String filePath, int fieldsPerLine) throws IOException {
+		long[] values = parse(filePath, fieldsPerLine);
+		int[] ints = new int[values.length];
+
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != (int) values[i])
+				throw new NumberFormatException("value out of int range in " + filePath + ": " + values[i]);
+			ints[i] = (int) values[i];
+		}
+
+		return ints;
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long from, long to) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+	}
+
+	/**
+	 * Cuts the file into chunks that each end just after a newline (or at the end of the file).
+	 *
+	 * @return the offsets where the chunks start, followed by the size of the file
+	 */
+	private static long[] chunkBounds(FileChannel channel, long size) throws IOException {
+		long chunks = Math.max(1, Math.min(4L * Runtime.getRuntime().availableProcessors(), size / MIN_CHUNK_BYTES));
+		chunks = Math.max(chunks, (size + MAX_CHUNK_BYTES / 2 - 1) / (MAX_CHUNK_BYTES / 2));
+
+		long[] bounds = new long[(int) chunks + 1];
+		ByteBuffer scan = ByteBuffer.allocate(4096);
+		int count = 1;
+
+		for (int i = 1; i < chunks; i++) {
+			long offset = Math.max(size * i / chunks, bounds[count - 1]);
+
+			// move the cut to just after the next newline
+			long cut = size;
+			scanning:
+			while (offset < size) {
+				scan.clear();
+				int read = channel.read(scan, offset);
+				if (read <= 0)
+					break;
+
+				for (int j = 0; j < read; j++) {
+					if (scan.get(j) == '\n') {
+						cut = offset + j + 1;
+						break scanning;
+					}
+				}
+				offset += read;
+			}
+
+			if (cut < size && cut > bounds[count - 1])
+				bounds[count++] = cut;
+		}
+
+		bounds[count++] = size;
+		return Arrays.copyOf(bounds, count);
+	}
+
+	private static class ChunkTask extends RecursiveTask<LongList> {
+		private static final long serialVersionUID = 1L;
+
+		private final ByteBuffer buffer;
+		private final long start;
+		private final int fieldsPerLine;
+
+		ChunkTask(ByteBuffer buffer, long start, int fieldsPerLine) {
+			this.buffer = buffer;
+			this.start = start;
+			this.fieldsPerLine = fieldsPerLine;
+		}
+
+		@Override
+		protected LongList compute() {
+			return parseChunk(buffer, start, fieldsPerLine);
+		}
+	}
+
+	/**
+	 * Parses one chunk of whole lines
+	 *
+	 * @param buffer		  the bytes of the chunk
+	 * @param start			  the offset of the chunk in the file, for error messages
+	 * @param fieldsPerLine	  the number of integers on every line
+	 *
+	 * @return the integers of the chunk in order
+	 */
+	private static LongList parseChunk(ByteBuffer buffer, long start, int fieldsPerLine) {
+		int n = buffer.limit();
+		LongList values = new LongList(Math.max(16, n / 16));
+
+		long value = 0;
+		boolean negative = false;
+		// true once the current field has a digit
+		boolean digits = false;
+		// true once the current field has anything but whitespace
+		boolean field = false;
+		// true if whitespace has come after the digits of the current field, which can't be followed by more digits
+		boolean ended = false;
+		int fields = 0;
+
+		for (int i = 0; i <= n; i++) {
+			byte b = i < n ? buffer.get(i) : (byte) '\n';
+
+			if (b >= '0' && b <= '9') {
+				if (ended)
+					throw new NumberFormatException("space inside a number at byte " + (start + i));
+				if (value > (Long.MAX_VALUE - (b - '0')) / 10)
+					throw new NumberFormatException("number too large at byte " + (start + i));
+				value = value * 10 + (b - '0');
+				digits = true;
+				field = true;
+			}
+			else if (b == ',' || b == '\n') {
+				if (digits) {
+					values.add(negative ? -value : value);
+					fields++;
+				}
+				// a field with no digits is only allowed after a trailing comma or on a blank line, both of which end in a newline
+				else if (field || b == ',')
+					throw new NumberFormatException("empty field at byte " + (start + i));
+
+				value = 0;
+				negative = false;
+				digits = false;
+				field = false;
+				ended = false;
+
+				if (b == '\n') {
+					if (fields != 0 && fields != fieldsPerLine)
+						throw new NumberFormatException("expected " + fieldsPerLine + " fields but found " + fields + " on the line ending at byte " + (start + i));
+					fields = 0;
+				}
+				else if (fields > fieldsPerLine)
+					throw new NumberFormatException("more than " + fieldsPerLine + " fields on the line at byte " + (start + i));
+			}
+			else if (b == '-' && !field) {
+				negative = true;
+				field = true;
+			}
+			else if (b == ' ' || b == '\t' || b == '\r')
+				ended = digits;
+			else
+				throw new NumberFormatException("unexpected character '" + (char) b + "' at byte " + (start + i));
+		}
+
+		return values;
+	}
+}
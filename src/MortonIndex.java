@@ -0,0 +1,358 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * The MortonIndex class is a second engine for the project's queries, next to KDTree, built on a Z-order (Morton) linearization.
+ * XLOC, YLOC, and time are all in [0,1023], so interleaving their bits (x in bits 0, 3, 6, ..., y in bits 1, 4, 7, ..., time in bits 2, 5, 8, ...)
+ * gives every record a 30-bit Morton key, and records that are close in all three dimensions tend to be close in key order.
+ *
+ * The whole index is one sorted long array: each long holds a record's Morton key in the high 30 bits and its mobile ID in the low 34 bits,
+ * so a query walks one contiguous block of memory, bulk loading is just a sort, and any key can be found by binary search.
+ * The top bit of every long is flipped, so that the signed order Arrays.sort uses is the unsigned order of the keys.
+ *
+ * A box query (a rectangle over a time window) scans the keys between the Morton keys of the box's two corners.
+ * Whenever it hits a key outside the box, it jumps to BIGMIN, the smallest key greater than it that is inside the box (Tropf and Herzog),
+ * with a binary search, so long runs of keys outside the box are skipped instead of scanned.
+ *
+ * It can be used on its own as a SpatialIndex, or, like HourIndex, be filled from a KDTree as a RecordIndex. New records are appended, and the array is re-sorted before the next query.
+ * Results come out in key order rather than in the order KDTree finds them. Mobile IDs must be in [0, 2^34), which covers [0,9999999999],
+ * and XLOC, YLOC, and time must be in [0,1023]; add rejects anything else rather than let its bits spill into the neighbouring fields of the key.
+ */
+public class MortonIndex implements SpatialIndex, RecordIndex {
+
+	private static final int PHONE_BITS = 34;
+	private static final long PHONE_MASK = (1L << PHONE_BITS) - 1;
+	private static final int KEY_BITS = 30;
+	// the bits of the x-coordinate in a Morton key; the y-coordinate's are one place up, and time's two places up
+	private static final int X_BITS = 0x09249249;
+	private static final int MASK = 1023;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] values;
+	private int size;
+	// false if records have been added since the array was last sorted; volatile so that queries can check it without locking
+	private volatile boolean sorted;
+
+	/**
+	 * Constructor
+	 *
+	 */
+	public MortonIndex() {
+		values = new long[INITIAL_CAPACITY];
+		size = 0;
+		sorted = true;
+	}
+
+	/**
+	 * Builds an index out of a file of records in the same format as KDTree.insertFile reads
+	 *
+	 * @param filePath	 the input file
+	 * @return the index, already sorted
+	 */
+	public static MortonIndex fromFile(String filePath) throws IOException {
+		long[] records = MappedParser.parse(filePath, 4);
+		MortonIndex index = new MortonIndex();
+
+		index.values = new long[Math.max(INITIAL_CAPACITY, records.length / 4)];
+		for (int i = 0; i < records.length; i += 4)
+			index.add(records[i], (int) records[i + 1], (int) records[i + 2], (int) records[i + 3]);
+
+		index.ensureSorted();
+		return index;
+	}
+
+	/**
+	 * Spreads the 10 bits of a coordinate out to every third bit
+	 */
+	private static int spread(int v) {
+		v &= MASK;
+		v = (v | (v << 16)) & 0x030000FF;
+		v = (v | (v << 8)) & 0x0300F00F;
+		v = (v | (v << 4)) & 0x030C30C3;
+		v = (v | (v << 2)) & 0x09249249;
+		return v;
+	}
+
+	/**
+	 * Gathers every third bit, starting at bit 0, back into a 10-bit coordinate
+	 */
+	private static int compact(int v) {
+		v &= 0x09249249;
+		v = (v | (v >>> 2)) & 0x030C30C3;
+		v = (v | (v >>> 4)) & 0x0300F00F;
+		v = (v | (v >>> 8)) & 0x030000FF;
+		v = (v | (v >>> 16)) & MASK;
+		return v;
+	}
+
+	/**
+	 * @return the Morton key of a record
+	 */
+	public static int encode(int xloc, int yloc, int time) {
+		return spread(xloc) | (spread(yloc) << 1) | (spread(time) << 2);
+	}
+
+	public static int getXloc(int key) {
+		return compact(key);
+	}
+
+	public static int getYloc(int key) {
+		return compact(key >>> 1);
+	}
+
+	public static int getTime(int key) {
+		return compact(key >>> 2);
+	}
+
+	@Override
+	public void add(long phoneID, int xloc, int yloc, int time) {
+		if (phoneID < 0 || phoneID > PHONE_MASK)
+			throw new IllegalArgumentException("mobile ID " + phoneID + " does not fit in " + PHONE_BITS + " bits");
+		if ((xloc | yloc | time) < 0 || xloc > MASK || yloc > MASK || time > MASK)
+			throw new IllegalArgumentException("record (" + xloc + ", " + yloc + ", " + time + ") is outside [0," + MASK + "]");
+
+		if (size == values.length)
+			values = Arrays.copyOf(values, 2 * size);
+
+		values[size++] = ((long) encode(xloc, yloc, time) << PHONE_BITS | phoneID) ^ Long.MIN_VALUE;
+		sorted = false;
+	}
+
+	/**
+	 * Adds a record. Only its values are copied, so the recordNode can be used again afterwards.
+	 *
+	 * @param r	  the record
+	 */
+	@Override
+	public void insert(recordNode r) {
+		add(r.getPhoneID(), r.getXloc(), r.getYloc(), r.getTime());
+	}
+
+	/**
+	 * Adds every record of a file in the same format as KDTree.insertFile reads
+	 *
+	 * @param filePath	 the input file
+	 */
+	@Override
+	public void insertFile(String filePath) {
+		try {
+			long[] records = MappedParser.parse(filePath, 4);
+
+			if (size + records.length / 4 > values.length)
+				values = Arrays.copyOf(values, size + records.length / 4);
+			for (int i = 0; i < records.length; i += 4)
+				add(records[i], (int) records[i + 1], (int) records[i + 2], (int) records[i + 3]);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the number of records in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the approximate number of bytes of heap used by the index, including unused array capacity
+	 */
+	public long memoryBytes() {
+		return 16 + 8L * values.length;
+	}
+
+	/**
+	 * Sorts the array if records have been added since it was last sorted, so that later queries only read it.
+	 * Called before running queries from several threads at once.
+	 */
+	@Override
+	public void prepareForQueries() {
+		ensureSorted();
+	}
+
+	/**
+	 * Sorts the array if that hasn't been done since the last add. Once it is sorted, this is one volatile read,
+	 * so queries running in parallel (see BatchQueryExecutor) don't contend for a lock.
+	 */
+	private void ensureSorted() {
+		if (!sorted)
+			sort();
+	}
+
+	/**
+	 * Synchronized so that concurrent queries never see the array half sorted
+	 */
+	private synchronized void sort() {
+		if (!sorted) {
+			Arrays.parallelSort(values, 0, size);
+			sorted = true;
+		}
+	}
+
+	private int keyAt(int i) {
+		return (int) ((values[i] ^ Long.MIN_VALUE) >>> PHONE_BITS);
+	}
+
+	private long phoneAt(int i) {
+		return values[i] & PHONE_MASK;
+	}
+
+	/**
+	 * @return the index of the first record at or after from whose key is at least key (or size if there is none)
+	 */
+	private int lowerBound(int from, int key) {
+		long wanted = ((long) key << PHONE_BITS) ^ Long.MIN_VALUE;
+		int lo = from;
+		int hi = size;
+
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] < wanted)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		return lo;
+	}
+
+	/**
+	 * Checks whether a key lies in the box with the given corner keys. Spread-out coordinates keep their order,
+	 * so each dimension can be compared without decoding it.
+	 */
+	private static boolean inBox(int key, int min, int max) {
+		for (int dimension = 0; dimension < 3; dimension++) {
+			int bits = X_BITS << dimension;
+			int v = key & bits;
+			if (v < (min & bits) || v > (max & bits))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * BIGMIN: the smallest Morton key greater than key that lies in the box with corner keys min and max, for a key between min and max that is outside the box.
+	 * Goes through the bits from the highest down, narrowing the box to the half the answer must be in (Tropf and Herzog, 1981).
+	 *
+	 * @param key	the key outside the box
+	 * @param min	the Morton key of the box's lowest corner
+	 * @param max	the Morton key of the box's highest corner
+	 *
+	 * @return the next key in the box
+	 */
+	static int bigmin(int key, int min, int max) {
+		int bigmin = max;
+
+		for (int bit = KEY_BITS - 1; bit >= 0; bit--) {
+			int b = 1 << bit;
+			// the lower bits of the same dimension as this bit
+			int lower = (X_BITS << (bit % 3)) & (b - 1);
+			boolean k = (key & b) != 0;
+			boolean lo = (min & b) != 0;
+			boolean hi = (max & b) != 0;
+
+			if (!k && !lo && hi) {
+				// the answer is either the smallest key of the upper half, or in the lower half
+				bigmin = (min & ~lower) | b;
+				max = (max | lower) & ~b;
+			}
+			else if (!k && lo)
+				return min;
+			else if (k && !hi)
+				return bigmin;
+			else if (k && !lo && hi)
+				min = (min & ~lower) | b;
+		}
+
+		return bigmin;
+	}
+
+	/**
+	 * Scans the records in a box (clamped to the grid) in key order. Each one that is also inside tri, if tri isn't null,
+	 * is passed to sink, or has its time added under its mobile ID to hm, whichever one is non-null.
+	 */
+	private void scan(int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax, Triangle tri, LongConsumer sink, LongBitsetMap hm) {
+		xMin = Math.max(xMin, 0);
+		yMin = Math.max(yMin, 0);
+		timeMin = Math.max(timeMin, 0);
+		xMax = Math.min(xMax, MASK);
+		yMax = Math.min(yMax, MASK);
+		timeMax = Math.min(timeMax, MASK);
+		if (xMin > xMax || yMin > yMax || timeMin > timeMax)
+			return;
+
+		ensureSorted();
+		int min = encode(xMin, yMin, timeMin);
+		int max = encode(xMax, yMax, timeMax);
+
+		for (int i = lowerBound(0, min); i < size; ) {
+			int key = keyAt(i);
+			if (key > max)
+				break;
+
+			// jump over the keys outside the box
+			if (!inBox(key, min, max)) {
+				i = lowerBound(i + 1, bigmin(key, min, max));
+				continue;
+			}
+
+			if (tri == null || tri.contains(getXloc(key), getYloc(key))) {
+				if (sink != null)
+					sink.accept(phoneAt(i));
+				else
+					hm.set(phoneAt(i), getTime(key));
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * Passes the mobile IDs of the records inside the rectangle query region at some time in [start, end] to sink.
+	 * Finds the same records as KDTree.timeInt, in key order.
+	 *
+	 * @param start	 the start of the time interval
+	 * @param end	 the end of the time interval
+	 * @param x1	 the x-coordinate of one corner of the rectangle query region
+	 * @param y1	 the y-coordinate of one corner of the rectangle query region
+	 * @param x2	 the x-coordinate of the opposite corner of the rectangle query region
+	 * @param y2	 the y-coordinate of the opposite corner of the rectangle query region
+	 * @param sink	 receives the mobileIDs
+	 */
+	@Override
+	public void timeInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink) {
+		scan(Math.min(x1, x2), Math.max(x1, x2), Math.min(y1, y2), Math.max(y1, y2), start, end, null, sink, null);
+	}
+
+	/**
+	 * Passes the mobile IDs of the records inside the triangle query region at the given time to sink.
+	 * The records in the triangle's bounding box at that one hour are scanned, and each one is tested against the triangle itself.
+	 *
+	 * @param time	 the time of the query
+	 * @param x1	 the x-coordinate of the first vertex of the triangle query region
+	 * @param y1	 the y-coordinate of the first vertex of the triangle query region
+	 * @param x2	 the x-coordinate of the second vertex of the triangle query region
+	 * @param y2	 the y-coordinate of the second vertex of the triangle query region
+	 * @param x3	 the x-coordinate of the third vertex of the triangle query region
+	 * @param y3	 the y-coordinate of the third vertex of the triangle query region
+	 * @param sink	 receives the mobileIDs
+	 */
+	@Override
+	public void triangle(int time, int x1, int y1, int x2, int y2, int x3, int y3, LongConsumer sink) {
+		scan(Math.min(x1, Math.min(x2, x3)), Math.max(x1, Math.max(x2, x3)), Math.min(y1, Math.min(y2, y3)), Math.max(y1, Math.max(y2, y3)), time, time,
+				new Triangle(x1, y1, x2, y2, x3, y3), sink, null);
+	}
+
+	/**
+	 * Passes the mobile IDs that are inside the rectangle query region at every hour in [start, end] to sink.
+	 * Finds the same mobile IDs as KDTree.timeAllInt.
+	 */
+	@Override
+	public void timeAllInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink) {
+		LongBitsetMap times = new LongBitsetMap(64);
+		scan(Math.min(x1, x2), Math.max(x1, x2), Math.min(y1, y2), Math.max(y1, y2), start, end, null, null, times);
+
+		SpatialIndex.acceptAllHours(times, start, end, sink);
+	}
+}
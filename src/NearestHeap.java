@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The NearestHeap class holds the k best candidates of a nearest-neighbour query: a bounded max-heap of (squared distance, mobile ID) pairs
+ * in two primitive arrays, with the farthest candidate at the root, so a closer candidate replaces it in O(log k) and bound
+ * tells the search how far away a cell can be and still matter.
+ *
+ * Candidates are ordered by distance, and by mobile ID between candidates at the same distance, so the result of a query doesn't depend on
+ * the order the search finds the records in. With distinctPhones on, the heap keeps at most one candidate per mobile ID (its closest record),
+ * so one phone that was seen many times near the point can't fill all k places; finding a phone's candidate is a linear scan of the heap,
+ * which is cheap for the k of a nearest-neighbour query.
+ */
+public class NearestHeap {
+
+	private final long[] distances;
+	private final long[] phoneIDs;
+	private final boolean distinctPhones;
+	private int size;
+
+	/**
+	 * Constructor
+	 *
+	 * @param k					the number of candidates to keep, at least 1
+	 * @param distinctPhones	true to keep at most one candidate per mobile ID
+	 */
+	public NearestHeap(int k, boolean distinctPhones) {
+		if (k < 1)
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+
+		distances = new long[k];
+		phoneIDs = new long[k];
+		this.distinctPhones = distinctPhones;
+		size = 0;
+	}
+
+	/**
+	 * @return the number of candidates in the heap
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the heap holds k candidates, so that only closer ones can get in
+	 */
+	public boolean isFull() {
+		return size == distances.length;
+	}
+
+	/**
+	 * @return the squared distance of the farthest candidate if the heap is full, and Long.MAX_VALUE otherwise:
+	 * a record farther away than this can't get into the heap
+	 */
+	public long bound() {
+		return isFull() ? distances[0] : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Offers a candidate, which gets in if the heap isn't full yet or it is closer than the farthest candidate
+	 *
+	 * @param distance	 the squared distance of the record from the query point
+	 * @param phoneID	 the mobile ID of the record
+	 */
+	public void offer(long distance, long phoneID) {
+		if (distinctPhones) {
+			for (int i = 0; i < size; i++) {
+				if (phoneIDs[i] == phoneID) {
+					// the phone is already a candidate; a closer record of it moves it towards the leaves of the max-heap
+					if (before(distance, phoneID, distances[i], phoneIDs[i])) {
+						distances[i] = distance;
+						siftDown(distances, phoneIDs, i, size);
+					}
+					return;
+				}
+			}
+		}
+
+		if (!isFull()) {
+			int i = size++;
+			distances[i] = distance;
+			phoneIDs[i] = phoneID;
+
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!before(distances[parent], phoneIDs[parent], distances[i], phoneIDs[i]))
+					break;
+				swap(distances, phoneIDs, i, parent);
+				i = parent;
+			}
+		}
+		else if (before(distance, phoneID, distances[0], phoneIDs[0])) {
+			distances[0] = distance;
+			phoneIDs[0] = phoneID;
+			siftDown(distances, phoneIDs, 0, size);
+		}
+	}
+
+	/**
+	 * @return the mobile IDs of the candidates, nearest first; the heap itself is not changed
+	 */
+	public List<Long> toList() {
+		long[] sortedDistances = distances.clone();
+		long[] sortedIDs = phoneIDs.clone();
+
+		// heapsort: move the farthest remaining candidate to the end, size times
+		for (int n = size - 1; n > 0; n--) {
+			swap(sortedDistances, sortedIDs, 0, n);
+			siftDown(sortedDistances, sortedIDs, 0, n);
+		}
+
+		List<Long> mobileIDs = new ArrayList<Long>(size);
+		for (int i = 0; i < size; i++)
+			mobileIDs.add(sortedIDs[i]);
+
+		return mobileIDs;
+	}
+
+	/**
+	 * @return true if the first candidate comes before (is closer than) the second
+	 */
+	private static boolean before(long distance, long phoneID, long otherDistance, long otherPhoneID) {
+		return distance < otherDistance || (distance == otherDistance && phoneID < otherPhoneID);
+	}
+
+	/**
+	 * Moves the candidate at i down the max-heap of the first n candidates until neither child comes after it
+	 */
+	private static void siftDown(long[] distances, long[] phoneIDs, int i, int n) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n)
+				return;
+			if (child + 1 < n && before(distances[child], phoneIDs[child], distances[child + 1], phoneIDs[child + 1]))
+				child++;
+			if (!before(distances[i], phoneIDs[i], distances[child], phoneIDs[child]))
+				return;
+
+			swap(distances, phoneIDs, i, child);
+			i = child;
+		}
+	}
+
+	private static void swap(long[] distances, long[] phoneIDs, int i, int j) {
+		long distance = distances[i];
+		distances[i] = distances[j];
+		distances[j] = distance;
+
+		long phoneID = phoneIDs[i];
+		phoneIDs[i] = phoneIDs[j];
+		phoneIDs[j] = phoneID;
+	}
+}
@@ -0,0 +1,1067 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The PackedKDTree class is a compact, read-only storage backend for the records of a KDTree.
+ * Instead of one recordNode object per record, it keeps two primitive arrays: the mobile IDs, and the XLOC, YLOC, and time of each record
+ * packed into a single int (10 bits each, since all three are in [0,1023]), along with the 2-bit discriminator of the node.
+ *
+ * The tree is implicit in the order of the arrays: the root of the range [lo, hi) is the record at index (lo + hi) / 2,
+ * its left subtree is [lo, mid), and its right subtree is [mid + 1, hi). So there are no child pointers at all, and a subtree is always one contiguous block.
+ * Because the split index is always the middle of the range, records equal to a node on its discriminating dimension can end up on either side,
+ * so the left subtree of a node holds records less than or equal to it, and the right subtree holds records greater than or equal to it.
+ *
+ * A PackedKDTree can be written to a snapshot file with writeSnapshot and opened again with map. A mapped tree is never deserialized:
+ * queries read the mobile IDs and packed records straight out of the memory-mapped file, so opening one costs a few mmap calls no matter how big it is.
+ * Records can be deleted with delete, which only sets a tombstone bit kept on the heap next to the storage (so it works for a mapped tree too);
+ * queries skip tombstoned records, and merge leaves them out of the tree it builds.
+ *
+ * The snapshot format (all numbers little-endian) is
+ *
+ *     int   magic ("KDTS")
+ *     int   format version
+ *     long  number of records n
+ *     long  mobile IDs [n]
+ *     int   packed records [n]
+ */
+public class PackedKDTree {
+
+	private static final int BITS = 10;
+	private static final int MASK = (1 << BITS) - 1;
+	private static final int Y_SHIFT = BITS;
+	private static final int TIME_SHIFT = 2 * BITS;
+	private static final int DISCRIMINATOR_SHIFT = 3 * BITS;
+
+	private static final int XLOC_MIN = 0;
+	private static final int XLOC_MAX = 1023;
+	private static final int YLOC_MIN = 0;
+	private static final int YLOC_MAX = 1023;
+	private static final int TIME_MIN = 0;
+	private static final int TIME_MAX = 1023;
+
+	// below this many records, a subtree is built on the current thread
+	private static final int PARALLEL_THRESHOLD = 8192;
+
+	private static final int SNAPSHOT_MAGIC = 0x4B445453;
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final int SNAPSHOT_HEADER_BYTES = 16;
+	// below this many records, a subtree has no distinct-phones sketch of its own
+	private static final int SKETCH_MIN_RECORDS = 4096;
+	// a single mapping is limited to 2GB, so mapped arrays are split into segments of 2^26 entries
+	private static final int SEGMENT_BITS = 26;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+
+	private final int size;
+
+	// storage for a tree built in memory (null if the tree is mapped from a snapshot)
+	private final long[] phoneIDs;
+	private final int[] cells;
+
+	// storage for a tree mapped from a snapshot (null if the tree was built in memory)
+	private final LongBuffer[] phoneSegments;
+	private final IntBuffer[] cellSegments;
+
+	// tombstones of deleted records, by index (null until the first delete)
+	private BitSet deleted;
+	private int deletedCount;
+
+	// the distinct-phones sketches of the subtrees of at least SKETCH_MIN_RECORDS records, deleted records included, by heap number:
+	// the whole tree is 1, and the halves of subtree k are 2k and 2k + 1 (null until the first estimate)
+	private DistinctSketch[] sketches;
+
+	/**
+	 * Constructor
+	 * Builds the implicit tree out of the given arrays, which are reordered in place and kept as the tree's storage.
+	 *
+	 * @param phoneIDs			the mobile IDs of the records
+	 * @param cells				the packed XLOC, YLOC, and time of the records, built with pack
+	 * @param widestSpread		if true, every node splits on the dimension with the widest spread of values instead of cycling through x, y, and time
+	 */
+	private PackedKDTree(long[] phoneIDs, int[] cells, boolean widestSpread) {
+		this.size = cells.length;
+		this.phoneIDs = phoneIDs;
+		this.cells = cells;
+		this.phoneSegments = null;
+		this.cellSegments = null;
+
+		if (cells.length < PARALLEL_THRESHOLD)
+			build(0, cells.length, 0, widestSpread);
+		else
+			ForkJoinPool.commonPool().invoke(new BuildTask(this, 0, cells.length, 0, widestSpread));
+	}
+
+	/**
+	 * Constructor
+	 * Wraps the segments of a mapped snapshot, which are already laid out as an implicit tree.
+	 *
+	 * @param size				the number of records in the snapshot
+	 * @param phoneSegments		the mapped mobile IDs
+	 * @param cellSegments		the mapped packed records
+	 */
+	private PackedKDTree(int size, LongBuffer[] phoneSegments, IntBuffer[] cellSegments) {
+		this.size = size;
+		this.phoneIDs = null;
+		this.cells = null;
+		this.phoneSegments = phoneSegments;
+		this.cellSegments = cellSegments;
+	}
+
+	/**
+	 * Constructor
+	 * Makes a copy of a tree that shares its storage, which is never written after the tree is built, but has its own tombstones.
+	 *
+	 * @param other		the tree to copy
+	 */
+	private PackedKDTree(PackedKDTree other) {
+		this.size = other.size;
+		this.phoneIDs = other.phoneIDs;
+		this.cells = other.cells;
+		this.phoneSegments = other.phoneSegments;
+		this.cellSegments = other.cellSegments;
+		this.deleted = other.deleted == null ? null : (BitSet) other.deleted.clone();
+		this.deletedCount = other.deletedCount;
+		this.sketches = other.sketches;
+	}
+
+	/**
+	 * @return a copy of this tree that shares its storage, so deleting from one doesn't affect the other (see KDTree.copy)
+	 */
+	public PackedKDTree copy() {
+		return new PackedKDTree(this);
+	}
+
+	/**
+	 * Builds a new PackedKDTree out of all the records in an existing PackedKDTree (if any) plus the given recordNodes.
+	 * Records deleted from the existing tree are left out.
+	 * Every coordinate of the new records must fit in its 10-bit field, so a record outside [0,1023] is rejected rather than stored as a different one.
+	 *
+	 * @param old				the PackedKDTree whose records we keep, or null
+	 * @param records			the recordNodes to add
+	 * @param widestSpread		if true, split on the dimension with the widest spread of values instead of cycling through x, y, and time
+	 *
+	 * @return the new PackedKDTree
+	 */
+	public static PackedKDTree merge(PackedKDTree old, List<recordNode> records, boolean widestSpread) {
+		int oldSize = old == null ? 0 : old.size() - old.deletedCount();
+		long[] phoneIDs = new long[oldSize + records.size()];
+		int[] cells = new int[oldSize + records.size()];
+		int n = 0;
+
+		for (int i = 0; old != null && i < old.size(); i++) {
+			if (old.isDeleted(i))
+				continue;
+			phoneIDs[n] = old.getPhoneID(i);
+			cells[n] = old.getCell(i);
+			n++;
+		}
+
+		for (int i = 0; i < records.size(); i++) {
+			recordNode r = records.get(i);
+			if (!inRange(r.getXloc(), r.getYloc(), r.getTime()))
+				throw new IllegalArgumentException("record (" + r.getXloc() + ", " + r.getYloc() + ", " + r.getTime() + ") is outside [0," + MASK + "]");
+			phoneIDs[n] = r.getPhoneID();
+			cells[n] = pack(r.getXloc(), r.getYloc(), r.getTime(), 0);
+			n++;
+		}
+
+		return new PackedKDTree(phoneIDs, cells, widestSpread);
+	}
+
+	/**
+	 * Packs the coordinates of a record and the discriminator of its node into one int
+	 *
+	 * @param xloc				the x-coordinate, in [0,1023]
+	 * @param yloc				the y-coordinate, in [0,1023]
+	 * @param time				the hour, in [0,1023]
+	 * @param discriminator		0 for XLOC, 1 for YLOC, 2 for time
+	 *
+	 * @return the packed int
+	 */
+	public static int pack(int xloc, int yloc, int time, int discriminator) {
+		return xloc | (yloc << Y_SHIFT) | (time << TIME_SHIFT) | (discriminator << DISCRIMINATOR_SHIFT);
+	}
+
+	/**
+	 * @return true if all three coordinates are in [0,1023], so that pack stores them exactly
+	 */
+	public static boolean inRange(int xloc, int yloc, int time) {
+		return (xloc | yloc | time) >= 0 && xloc <= MASK && yloc <= MASK && time <= MASK;
+	}
+
+	public static int getXloc(int cell) {
+		return cell & MASK;
+	}
+
+	public static int getYloc(int cell) {
+		return (cell >>> Y_SHIFT) & MASK;
+	}
+
+	public static int getTime(int cell) {
+		return (cell >>> TIME_SHIFT) & MASK;
+	}
+
+	public static int getDiscriminator(int cell) {
+		return cell >>> DISCRIMINATOR_SHIFT;
+	}
+
+	/**
+	 * Returns the value of a packed record on the given dimension
+	 *
+	 * @param cell			the packed record
+	 * @param dimension		0 for XLOC, 1 for YLOC, 2 for time
+	 *
+	 * @return the XLOC, YLOC, or time of the record
+	 */
+	public static int getKey(int cell, int dimension) {
+		return (cell >>> (dimension * BITS)) & MASK;
+	}
+
+	/**
+	 * @return the number of records stored in this tree
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the approximate number of bytes of heap used by the two storage arrays, which is 0 for a mapped tree
+	 */
+	public long memoryBytes() {
+		return phoneIDs == null ? 0 : 8L * size + 4L * size;
+	}
+
+	/**
+	 * @param i		the index of a record, in [0, size())
+	 * @return the mobile ID of the record at index i
+	 */
+	public long getPhoneID(int i) {
+		if (phoneIDs != null)
+			return phoneIDs[i];
+		return phoneSegments[i >>> SEGMENT_BITS].get(i & SEGMENT_MASK);
+	}
+
+	/**
+	 * @param i		the index of a record, in [0, size())
+	 * @return the packed XLOC, YLOC, time, and discriminator of the record at index i
+	 */
+	public int getCell(int i) {
+		if (cells != null)
+			return cells[i];
+		return cellSegments[i >>> SEGMENT_BITS].get(i & SEGMENT_MASK);
+	}
+
+	/**
+	 * @param i		the index of a record, in [0, size())
+	 * @return true if the record at index i has been deleted
+	 */
+	public boolean isDeleted(int i) {
+		return deleted != null && deleted.get(i);
+	}
+
+	/**
+	 * @return the number of records that have been deleted, which still count towards size()
+	 */
+	public int deletedCount() {
+		return deletedCount;
+	}
+
+	/**
+	 * Sets the tombstone of the record at index i, so that queries skip it from now on
+	 *
+	 * @param i		the index of a record, in [0, size())
+	 */
+	public void delete(int i) {
+		if (deleted == null)
+			deleted = new BitSet(size);
+
+		if (!deleted.get(i)) {
+			deleted.set(i);
+			deletedCount++;
+		}
+	}
+
+	/**
+	 * Finds a record that hasn't been deleted with the given mobile ID and coordinates.
+	 * Records equal to a node on its discriminating dimension can be on either side of it, so both sides are searched then.
+	 *
+	 * @param phoneID	the mobile ID of the record
+	 * @param xloc		the x-coordinate of the record
+	 * @param yloc		the y-coordinate of the record
+	 * @param time		the hour of the record
+	 *
+	 * @return the index of the record, or -1 if there is no such record
+	 */
+	public int find(long phoneID, int xloc, int yloc, int time) {
+		// a record outside the fields would pack into a different one
+		if (!inRange(xloc, yloc, time))
+			return -1;
+		return findHelper(0, size, phoneID, pack(xloc, yloc, time, 0));
+	}
+
+	private int findHelper(int lo, int hi, long phoneID, int target) {
+		if (lo >= hi)
+			return -1;
+
+		int mid = (lo + hi) >>> 1;
+		int cell = getCell(mid);
+
+		if ((cell & ~(3 << DISCRIMINATOR_SHIFT)) == target && getPhoneID(mid) == phoneID && !isDeleted(mid))
+			return mid;
+
+		int discriminator = getDiscriminator(cell);
+		int key = getKey(cell, discriminator);
+		int wanted = getKey(target, discriminator);
+
+		if (wanted <= key) {
+			int found = findHelper(lo, mid, phoneID, target);
+			if (found >= 0)
+				return found;
+		}
+		if (wanted >= key)
+			return findHelper(mid + 1, hi, phoneID, target);
+
+		return -1;
+	}
+
+	/**
+	 * Writes this tree to a snapshot file that can be opened again with map.
+	 * Deleted records are written too; KDTree.writeSnapshot compacts the tree first, which drops them.
+	 *
+	 * @param filePath	the path of the snapshot file, which is overwritten if it exists
+	 * @throws IOException if the file can't be written
+	 */
+	public void writeSnapshot(String filePath) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filePath, "rw");
+
+		try {
+			FileChannel channel = file.getChannel();
+			channel.truncate(0);
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(SNAPSHOT_MAGIC);
+			buffer.putInt(SNAPSHOT_VERSION);
+			buffer.putLong(size);
+
+			for (int i = 0; i < size; i++) {
+				if (buffer.remaining() < 8)
+					drain(channel, buffer);
+				buffer.putLong(getPhoneID(i));
+			}
+			for (int i = 0; i < size; i++) {
+				if (buffer.remaining() < 4)
+					drain(channel, buffer);
+				buffer.putInt(getCell(i));
+			}
+
+			drain(channel, buffer);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Opens a snapshot written by writeSnapshot. The file is mapped read-only and queried in place, without reading the records into the heap.
+	 *
+	 * @param filePath	the path of the snapshot file
+	 * @return the mapped tree
+	 * @throws IOException if the file can't be read, or isn't a snapshot of a version we understand
+	 */
+	public static PackedKDTree map(String filePath) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filePath, "r");
+
+		// the mappings stay valid after the file is closed
+		try {
+			FileChannel channel = file.getChannel();
+			// mapping past the end of a read-only file fails with an unhelpful error, so a file too short for the header is rejected first
+			if (channel.size() < SNAPSHOT_HEADER_BYTES)
+				throw new IOException(filePath + " is not a KDTree snapshot");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SNAPSHOT_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+			if (header.getInt(0) != SNAPSHOT_MAGIC)
+				throw new IOException(filePath + " is not a KDTree snapshot");
+			if (header.getInt(4) != SNAPSHOT_VERSION)
+				throw new IOException(filePath + " has snapshot version " + header.getInt(4) + ", expected " + SNAPSHOT_VERSION);
+
+			long count = header.getLong(8);
+			if (count < 0 || count > Integer.MAX_VALUE || channel.size() != SNAPSHOT_HEADER_BYTES + 12 * count)
+				throw new IOException(filePath + " is truncated or corrupt");
+
+			int size = (int) count;
+			int segments = (size + SEGMENT_MASK) >>> SEGMENT_BITS;
+			LongBuffer[] phoneSegments = new LongBuffer[segments];
+			IntBuffer[] cellSegments = new IntBuffer[segments];
+			long cellsStart = SNAPSHOT_HEADER_BYTES + 8L * size;
+
+			for (int k = 0; k < segments; k++) {
+				long first = (long) k << SEGMENT_BITS;
+				long length = Math.min(size - first, 1L << SEGMENT_BITS);
+
+				phoneSegments[k] = channel.map(FileChannel.MapMode.READ_ONLY, SNAPSHOT_HEADER_BYTES + 8 * first, 8 * length)
+						.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+				cellSegments[k] = channel.map(FileChannel.MapMode.READ_ONLY, cellsStart + 4 * first, 4 * length)
+						.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			}
+
+			return new PackedKDTree(size, phoneSegments, cellSegments);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Sequentially builds the subtree for [from, to)
+	 *
+	 * @param from				the index of the first record (inclusive)
+	 * @param to				the index of the last record (exclusive)
+	 * @param discriminator		the dimension this subtree's root splits on when cycling through x, y, and time
+	 * @param widestSpread		if true, split on the dimension with the widest spread of values instead
+	 */
+	private void build(int from, int to, int discriminator, boolean widestSpread) {
+		if (from >= to)
+			return;
+
+		int mid = split(from, to, discriminator, widestSpread);
+		int next = (getDiscriminator(cells[mid]) + 1) % 3;
+
+		build(from, mid, next, widestSpread);
+		build(mid + 1, to, next, widestSpread);
+	}
+
+	/**
+	 * Picks the discriminating dimension for [from, to), puts the median on that dimension in the middle of the range,
+	 * and records the dimension in the middle record.
+	 *
+	 * @param from				the index of the first record (inclusive)
+	 * @param to				the index of the last record (exclusive)
+	 * @param discriminator		the dimension to split on when cycling through x, y, and time
+	 * @param widestSpread		if true, split on the dimension with the widest spread of values instead
+	 *
+	 * @return the index of the middle record
+	 */
+	private int split(int from, int to, int discriminator, boolean widestSpread) {
+		int dimension = widestSpread ? widestDimension(from, to, discriminator) : discriminator;
+		int mid = (from + to) >>> 1;
+
+		select(from, to - 1, mid, dimension);
+		cells[mid] = (cells[mid] & ~(3 << DISCRIMINATOR_SHIFT)) | (dimension << DISCRIMINATOR_SHIFT);
+
+		return mid;
+	}
+
+	/**
+	 * Fork-join task that builds the subtree for a range, splitting off the two halves as separate tasks
+	 * until the range is small enough to build sequentially.
+	 */
+	private static class BuildTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final PackedKDTree tree;
+		private final int from;
+		private final int to;
+		private final int discriminator;
+		private final boolean widestSpread;
+
+		BuildTask(PackedKDTree tree, int from, int to, int discriminator, boolean widestSpread) {
+			this.tree = tree;
+			this.from = from;
+			this.to = to;
+			this.discriminator = discriminator;
+			this.widestSpread = widestSpread;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from < PARALLEL_THRESHOLD) {
+				tree.build(from, to, discriminator, widestSpread);
+				return;
+			}
+
+			int mid = tree.split(from, to, discriminator, widestSpread);
+			int next = (getDiscriminator(tree.cells[mid]) + 1) % 3;
+
+			invokeAll(new BuildTask(tree, from, mid, next, widestSpread),
+					new BuildTask(tree, mid + 1, to, next, widestSpread));
+		}
+	}
+
+	/**
+	 * Finds the dimension along which the records in [from, to) are most spread out.
+	 * Ties are broken in favor of the dimension we would have used when cycling.
+	 */
+	private int widestDimension(int from, int to, int discriminator) {
+		int[] min = { MASK, MASK, MASK };
+		int[] max = { 0, 0, 0 };
+
+		for (int i = from; i < to; i++) {
+			for (int dimension = 0; dimension < 3; dimension++) {
+				int key = getKey(cells[i], dimension);
+				min[dimension] = Math.min(min[dimension], key);
+				max[dimension] = Math.max(max[dimension], key);
+			}
+		}
+
+		int best = discriminator;
+		for (int dimension = 0; dimension < 3; dimension++) {
+			if (max[dimension] - min[dimension] > max[best] - min[best])
+				best = dimension;
+		}
+
+		return best;
+	}
+
+	/**
+	 * Quickselect: reorders [lo, hi] so that index k holds the value it would have if the range were sorted on the given dimension,
+	 * with nothing larger before it and nothing smaller after it.
+	 */
+	private void select(int lo, int hi, int k, int dimension) {
+		while (lo < hi) {
+			// median of three, so sorted input doesn't degrade to quadratic time
+			int mid = (lo + hi) >>> 1;
+			if (getKey(cells[mid], dimension) < getKey(cells[lo], dimension))
+				swap(lo, mid);
+			if (getKey(cells[hi], dimension) < getKey(cells[lo], dimension))
+				swap(lo, hi);
+			if (getKey(cells[hi], dimension) < getKey(cells[mid], dimension))
+				swap(mid, hi);
+
+			int pivot = getKey(cells[mid], dimension);
+			int i = lo;
+			int j = hi;
+
+			while (i <= j) {
+				while (getKey(cells[i], dimension) < pivot)
+					i++;
+				while (getKey(cells[j], dimension) > pivot)
+					j--;
+				if (i <= j)
+					swap(i++, j--);
+			}
+
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private void swap(int i, int j) {
+		long phoneID = phoneIDs[i];
+		phoneIDs[i] = phoneIDs[j];
+		phoneIDs[j] = phoneID;
+
+		int cell = cells[i];
+		cells[i] = cells[j];
+		cells[j] = cell;
+	}
+
+	/**
+	 * Writes the parent/child lines of this tree in preorder, in the same "[PARENT mobile ID] LCHILD/RCHILD [CHILD mobile ID]" format as KDTree.writeToFile
+	 *
+	 * @param out	the output file, which separates lines with beginLine
+	 */
+	public void writeToFile(ByteOutput out) throws IOException {
+		writeToFileHelper(0, size, out);
+	}
+
+	private void writeToFileHelper(int lo, int hi, ByteOutput out) throws IOException {
+		if (lo >= hi)
+			return;
+
+		int mid = (lo + hi) >>> 1;
+		if (lo < mid) {
+			out.beginLine();
+			out.writeLong(getPhoneID(mid));
+			out.write(" LCHILD ");
+			out.writeLong(getPhoneID((lo + mid) >>> 1));
+		}
+		if (mid + 1 < hi) {
+			out.beginLine();
+			out.writeLong(getPhoneID(mid));
+			out.write(" RCHILD ");
+			out.writeLong(getPhoneID((mid + 1 + hi) >>> 1));
+		}
+
+		writeToFileHelper(lo, mid, out);
+		writeToFileHelper(mid + 1, hi, out);
+	}
+
+	/**
+	 * Adds the parent/child lines of this tree to allNodes in preorder, in the same "[PARENT mobile ID] LCHILD/RCHILD [CHILD mobile ID]" format as KDTree.writeToFile
+	 *
+	 * @param allNodes	the list to which we add the output strings
+	 */
+	public void allNodesPreOrder(ArrayList<String> allNodes) {
+		allNodesPreOrderHelper(0, size, allNodes);
+	}
+
+	private void allNodesPreOrderHelper(int lo, int hi, ArrayList<String> allNodes) {
+		if (lo >= hi)
+			return;
+
+		int mid = (lo + hi) >>> 1;
+		if (lo < mid)
+			allNodes.add(getPhoneID(mid) + " LCHILD " + getPhoneID((lo + mid) >>> 1));
+		if (mid + 1 < hi)
+			allNodes.add(getPhoneID(mid) + " RCHILD " + getPhoneID((mid + 1 + hi) >>> 1));
+
+		allNodesPreOrderHelper(lo, mid, allNodes);
+		allNodesPreOrderHelper(mid + 1, hi, allNodes);
+	}
+
+	/**
+	 * Passes the mobileIDs of the records inside the triangle query region at the given time to sink.
+	 * Works the same way as KDTree.triangle.
+	 *
+	 * @param parallel	 true to search subtrees of at least PARALLEL_THRESHOLD records in fork-join tasks (see KDTree.setParallelQueries)
+	 */
+	public void triangle(LongConsumer sink, int time, Triangle tri, boolean parallel) {
+		triangleHelper(0, size, sink, time, tri, false, parallel, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+	}
+
+	private void triangleHelper(int lo, int hi, LongConsumer sink, int time, Triangle tri, boolean inside, boolean parallel,
+			int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		if (lo >= hi)
+			return;
+		if (time < timeMin || time > timeMax)
+			return; // prune
+
+		if (!inside) {
+			int classification = tri.classify(xMin, xMax, yMin, yMax);
+			if (classification == QueryRegion.OUTSIDE)
+				return; // prune
+			inside = classification == QueryRegion.INSIDE;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		int cell = getCell(mid);
+		int xloc = getXloc(cell);
+		int yloc = getYloc(cell);
+
+		if (getTime(cell) == time && (inside || tri.contains(xloc, yloc)) && !isDeleted(mid))
+			sink.accept(getPhoneID(mid));
+
+		int discriminator = getDiscriminator(cell);
+		int leftXMax = xMax, rightXMin = xMin;
+		int leftYMax = yMax, rightYMin = yMin;
+		int leftTimeMax = timeMax, rightTimeMin = timeMin;
+
+		if (discriminator == 0) {
+			leftXMax = xloc;
+			rightXMin = xloc;
+		}
+		else if (discriminator == 1) {
+			leftYMax = yloc;
+			rightYMin = yloc;
+		}
+		else {
+			leftTimeMax = getTime(cell);
+			rightTimeMin = getTime(cell);
+		}
+
+		// for a large subtree, search the left half in a fork-join task while this thread searches the right half
+		if (parallel && hi - lo >= PARALLEL_THRESHOLD) {
+			TriangleTask left = new TriangleTask(this, lo, mid, time, tri, inside, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
+			left.fork();
+			LongList right = new LongList();
+			triangleHelper(mid + 1, hi, right, time, tri, inside, true, rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+			left.join().forEach(sink);
+			right.forEach(sink);
+		}
+		else {
+			triangleHelper(lo, mid, sink, time, tri, inside, parallel, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
+			triangleHelper(mid + 1, hi, sink, time, tri, inside, parallel, rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+		}
+	}
+
+	/**
+	 * A fork-join task that searches one subtree for a triangle query and collects its matches in its own buffer
+	 */
+	private static class TriangleTask extends RecursiveTask<LongList> {
+		private static final long serialVersionUID = 1L;
+
+		private final PackedKDTree tree;
+		private final int lo;
+		private final int hi;
+		private final int time;
+		private final Triangle tri;
+		private final boolean inside;
+		private final int xMin, xMax, yMin, yMax, timeMin, timeMax;
+
+		TriangleTask(PackedKDTree tree, int lo, int hi, int time, Triangle tri, boolean inside, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+			this.tree = tree;
+			this.lo = lo;
+			this.hi = hi;
+			this.time = time;
+			this.tri = tri;
+			this.inside = inside;
+			this.xMin = xMin;
+			this.xMax = xMax;
+			this.yMin = yMin;
+			this.yMax = yMax;
+			this.timeMin = timeMin;
+			this.timeMax = timeMax;
+		}
+
+		@Override
+		protected LongList compute() {
+			LongList ids = new LongList();
+			tree.triangleHelper(lo, hi, ids, time, tri, inside, true, xMin, xMax, yMin, yMax, timeMin, timeMax);
+			return ids;
+		}
+	}
+
+	/**
+	 * Passes the mobileIDs of the records inside the rectangle query region at some time in [start, end] to sink.
+	 * Works the same way as KDTree.timeInt.
+	 *
+	 * @param parallel	 true to search subtrees of at least PARALLEL_THRESHOLD records in fork-join tasks (see KDTree.setParallelQueries)
+	 */
+	public void timeInt(LongConsumer sink, int start, int end, Rectangle qr, boolean parallel) {
+		timeIntHelper(0, size, sink, null, start, end, qr, false, parallel, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+	}
+
+	/**
+	 * Records, for every mobileID inside the rectangle query region at some time in [start, end], the times it was seen there.
+	 * Works the same way as the first step of KDTree.timeAllInt.
+	 */
+	public void timeAllInt(LongBitsetMap hm, int start, int end, Rectangle qr) {
+		timeIntHelper(0, size, null, hm, start, end, qr, false, false, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+	}
+
+	/**
+	 * Shared helper for timeInt and timeAllInt. Exactly one of sink and hm is non-null, and matching records are added to it.
+	 * Since a subtree is one contiguous block of the arrays, a subtree whose region lies entirely inside the query is added with a plain loop.
+	 * Only sink searches run in parallel, since hm is shared.
+	 */
+	private void timeIntHelper(int lo, int hi, LongConsumer sink, LongBitsetMap hm, int start, int end, Rectangle qr, boolean inside, boolean parallel,
+			int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		if (lo >= hi)
+			return;
+		if (end < timeMin || start > timeMax)
+			return; // pruning
+
+		if (!inside) {
+			int classification = qr.classify(xMin, xMax, yMin, yMax);
+			if (classification == QueryRegion.OUTSIDE)
+				return; // pruning
+			inside = classification == QueryRegion.INSIDE;
+		}
+
+		if (inside && start <= timeMin && timeMax <= end) {
+			for (int i = lo; i < hi; i++)
+				add(sink, hm, i);
+			return;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		int cell = getCell(mid);
+		int xloc = getXloc(cell);
+		int yloc = getYloc(cell);
+		int time = getTime(cell);
+
+		if (start <= time && time <= end && (inside || qr.contains(xloc, yloc)))
+			add(sink, hm, mid);
+
+		int discriminator = getDiscriminator(cell);
+		int leftXMax = xMax, rightXMin = xMin;
+		int leftYMax = yMax, rightYMin = yMin;
+		int leftTimeMax = timeMax, rightTimeMin = timeMin;
+
+		if (discriminator == 0) {
+			leftXMax = xloc;
+			rightXMin = xloc;
+		}
+		else if (discriminator == 1) {
+			leftYMax = yloc;
+			rightYMin = yloc;
+		}
+		else {
+			leftTimeMax = time;
+			rightTimeMin = time;
+		}
+
+		// for a large subtree, search the left half in a fork-join task while this thread searches the right half
+		if (parallel && hm == null && hi - lo >= PARALLEL_THRESHOLD) {
+			TimeIntTask left = new TimeIntTask(this, lo, mid, start, end, qr, inside, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
+			left.fork();
+			LongList right = new LongList();
+			timeIntHelper(mid + 1, hi, right, null, start, end, qr, inside, true, rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+			left.join().forEach(sink);
+			right.forEach(sink);
+		}
+		else {
+			timeIntHelper(lo, mid, sink, hm, start, end, qr, inside, parallel, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
+			timeIntHelper(mid + 1, hi, sink, hm, start, end, qr, inside, parallel, rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+		}
+	}
+
+	/**
+	 * A fork-join task that searches one subtree for a timeInt query and collects its matches in its own buffer
+	 */
+	private static class TimeIntTask extends RecursiveTask<LongList> {
+		private static final long serialVersionUID = 1L;
+
+		private final PackedKDTree tree;
+		private final int lo;
+		private final int hi;
+		private final int start;
+		private final int end;
+		private final Rectangle qr;
+		private final boolean inside;
+		private final int xMin, xMax, yMin, yMax, timeMin, timeMax;
+
+		TimeIntTask(PackedKDTree tree, int lo, int hi, int start, int end, Rectangle qr, boolean inside, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+			this.tree = tree;
+			this.lo = lo;
+			this.hi = hi;
+			this.start = start;
+			this.end = end;
+			this.qr = qr;
+			this.inside = inside;
+			this.xMin = xMin;
+			this.xMax = xMax;
+			this.yMin = yMin;
+			this.yMax = yMax;
+			this.timeMin = timeMin;
+			this.timeMax = timeMax;
+		}
+
+		@Override
+		protected LongList compute() {
+			LongList ids = new LongList();
+			tree.timeIntHelper(lo, hi, ids, null, start, end, qr, inside, true, xMin, xMax, yMin, yMax, timeMin, timeMax);
+			return ids;
+		}
+	}
+
+	/**
+	 * Counts the records inside the query region at some time in [start, end] without listing them.
+	 * Works the same way as KDTree.countTimeInt: a subtree whose region lies entirely inside the query is one contiguous block of hi - lo records,
+	 * so it is counted at once, less any of its records that have been deleted.
+	 *
+	 * @param region	the query region
+	 * @param start		the start of the time interval
+	 * @param end		the end of the time interval
+	 * @return the number of matching records
+	 */
+	public long count(QueryRegion region, int start, int end) {
+		return countHelper(0, size, region, start, end, false, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+	}
+
+	private long countHelper(int lo, int hi, QueryRegion region, int start, int end, boolean inside,
+			int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		if (lo >= hi)
+			return 0;
+		if (end < timeMin || start > timeMax)
+			return 0; // pruning
+
+		if (!inside) {
+			int classification = region.classify(xMin, xMax, yMin, yMax);
+			if (classification == QueryRegion.OUTSIDE)
+				return 0; // pruning
+			inside = classification == QueryRegion.INSIDE;
+		}
+
+		if (inside && start <= timeMin && timeMax <= end)
+			return hi - lo - deletedIn(lo, hi);
+
+		int mid = (lo + hi) >>> 1;
+		int cell = getCell(mid);
+		int xloc = getXloc(cell);
+		int yloc = getYloc(cell);
+		int time = getTime(cell);
+		long count = 0;
+
+		if (start <= time && time <= end && (inside || region.contains(xloc, yloc)) && !isDeleted(mid))
+			count++;
+
+		int discriminator = getDiscriminator(cell);
+		int leftXMax = xMax, rightXMin = xMin;
+		int leftYMax = yMax, rightYMin = yMin;
+		int leftTimeMax = timeMax, rightTimeMin = timeMin;
+
+		if (discriminator == 0) {
+			leftXMax = xloc;
+			rightXMin = xloc;
+		}
+		else if (discriminator == 1) {
+			leftYMax = yloc;
+			rightYMin = yloc;
+		}
+		else {
+			leftTimeMax = time;
+			rightTimeMin = time;
+		}
+
+		count += countHelper(lo, mid, region, start, end, inside, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
+		count += countHelper(mid + 1, hi, region, start, end, inside, rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+		return count;
+	}
+
+	/**
+	 * @return the number of deleted records in [lo, hi)
+	 */
+	private int deletedIn(int lo, int hi) {
+		if (deleted == null)
+			return 0;
+
+		int count = 0;
+		for (int i = deleted.nextSetBit(lo); i >= 0 && i < hi; i = deleted.nextSetBit(i + 1))
+			count++;
+
+		return count;
+	}
+
+	/**
+	 * Adds the mobileIDs of the records inside the rectangle query region at some time in [start, end] to sketch,
+	 * for an estimate of the number of distinct phones (see KDTree.estimateDistinctTimeInt).
+	 * A subtree of at least SKETCH_MIN_RECORDS records that lies entirely inside the query and has no deleted records is merged in as a whole
+	 * from its own sketch; the sketches are built the first time they are needed, by merging each subtree's halves.
+	 *
+	 * @param sketch	the sketch to add the mobileIDs to
+	 * @param start		the start of the time interval
+	 * @param end		the end of the time interval
+	 * @param qr		the rectangle query region
+	 */
+	public void sketchTimeInt(DistinctSketch sketch, int start, int end, Rectangle qr) {
+		sketchHelper(ensureSketches(), 1, 0, size, sketch, start, end, qr, false, XLOC_MIN, XLOC_MAX, YLOC_MIN, YLOC_MAX, TIME_MIN, TIME_MAX);
+	}
+
+	private void sketchHelper(DistinctSketch[] sketches, int k, int lo, int hi, DistinctSketch sketch, int start, int end, Rectangle qr, boolean inside,
+			int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		// none of the subtrees below a small one have sketches either, so it is searched like a timeInt query
+		if (hi - lo < SKETCH_MIN_RECORDS) {
+			timeIntHelper(lo, hi, sketch, null, start, end, qr, inside, false, xMin, xMax, yMin, yMax, timeMin, timeMax);
+			return;
+		}
+		if (end < timeMin || start > timeMax)
+			return; // pruning
+
+		if (!inside) {
+			int classification = qr.classify(xMin, xMax, yMin, yMax);
+			if (classification == QueryRegion.OUTSIDE)
+				return; // pruning
+			inside = classification == QueryRegion.INSIDE;
+		}
+
+		// a subtree with deleted records is searched further down, where its halves may still have usable sketches
+		if (inside && start <= timeMin && timeMax <= end && deletedIn(lo, hi) == 0) {
+			sketch.merge(sketches[k]);
+			return;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		int cell = getCell(mid);
+		int xloc = getXloc(cell);
+		int yloc = getYloc(cell);
+		int time = getTime(cell);
+
+		if (start <= time && time <= end && (inside || qr.contains(xloc, yloc)))
+			add(sketch, null, mid);
+
+		int discriminator = getDiscriminator(cell);
+		int leftXMax = xMax, rightXMin = xMin;
+		int leftYMax = yMax, rightYMin = yMin;
+		int leftTimeMax = timeMax, rightTimeMin = timeMin;
+
+		if (discriminator == 0) {
+			leftXMax = xloc;
+			rightXMin = xloc;
+		}
+		else if (discriminator == 1) {
+			leftYMax = yloc;
+			rightYMin = yloc;
+		}
+		else {
+			leftTimeMax = time;
+			rightTimeMin = time;
+		}
+
+		sketchHelper(sketches, 2 * k, lo, mid, sketch, start, end, qr, inside, xMin, leftXMax, yMin, leftYMax, timeMin, leftTimeMax);
+		sketchHelper(sketches, 2 * k + 1, mid + 1, hi, sketch, start, end, qr, inside, rightXMin, xMax, rightYMin, yMax, rightTimeMin, timeMax);
+	}
+
+	/**
+	 * Builds the sketches if they haven't been built yet. Synchronized so that concurrent queries never see them half built.
+	 *
+	 * @return the sketches, by heap number
+	 */
+	private synchronized DistinctSketch[] ensureSketches() {
+		if (sketches == null) {
+			// a subtree at depth d has at most size / 2^d records, so a subtree with a sketch has a heap number below 2 * (size / SKETCH_MIN_RECORDS)
+			DistinctSketch[] built = new DistinctSketch[2 * (size / SKETCH_MIN_RECORDS) + 2];
+			buildSketch(built, 1, 0, size);
+			sketches = built;
+		}
+
+		return sketches;
+	}
+
+	/**
+	 * Builds the sketch of subtree k, which is [lo, hi), and those of the subtrees below it
+	 *
+	 * @return the sketch, or null if the subtree is too small to have one
+	 */
+	private DistinctSketch buildSketch(DistinctSketch[] built, int k, int lo, int hi) {
+		if (hi - lo < SKETCH_MIN_RECORDS)
+			return null;
+
+		int mid = (lo + hi) >>> 1;
+		DistinctSketch sketch = new DistinctSketch();
+		sketchRange(sketch, buildSketch(built, 2 * k, lo, mid), lo, mid);
+		sketchRange(sketch, buildSketch(built, 2 * k + 1, mid + 1, hi), mid + 1, hi);
+		sketch.accept(getPhoneID(mid));
+
+		built[k] = sketch;
+		return sketch;
+	}
+
+	/**
+	 * Adds the mobileIDs of [lo, hi) to sketch, by merging in the subtree's own sketch if it has one
+	 */
+	private void sketchRange(DistinctSketch sketch, DistinctSketch subtree, int lo, int hi) {
+		if (subtree != null) {
+			sketch.merge(subtree);
+			return;
+		}
+
+		for (int i = lo; i < hi; i++)
+			sketch.accept(getPhoneID(i));
+	}
+
+	/**
+	 * Passes record i to sink, or adds its time under its mobileID to hm, whichever one is non-null, unless it has been deleted
+	 */
+	private void add(LongConsumer sink, LongBitsetMap hm, int i) {
+		if (isDeleted(i))
+			return;
+
+		long phoneID = getPhoneID(i);
+
+		if (sink != null)
+			sink.accept(phoneID);
+		else
+			hm.set(phoneID, getTime(getCell(i)));
+	}
+}
@@ -0,0 +1,182 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * The QueryPlanner class keeps the same records in two engines, a tree (normally a KDTree) and a GridIndex,
+ * and runs each query on whichever one it estimates will answer it more cheaply.
+ *
+ * The estimates come from the grid's bucket counts, so they cost a few array reads per query:
+ * <ul>
+ * <li>the grid looks at every bucket the query's bounding box overlaps and at every record in those buckets,
+ *     and the grid knows both numbers exactly;</li>
+ * <li>the tree descends about log2(n) levels and then visits the nodes whose cells overlap the query region.
+ *     Following Friedman, Bentley, and Finkel's analysis, a cell holds about one record, so at the local density d
+ *     (records per location-hour in the overlapped buckets) a cell is a cube of side c = (1/d)^(1/3), and the nodes visited are about
+ *     d * (area + perimeter * c / 2 + c^2) * (window + c): the records in the query region grown by one cell.</li>
+ * </ul>
+ * So the grid wins on small boxes over dense data, where the tree pays for its descent and for the cells along the boundary,
+ * and the tree wins on big boxes over sparse data, where the grid walks many near-empty buckets.
+ * The weights of the two cost models are rough estimates, not measurements: a bucket or a record of the grid is taken to cost about as much as the next one in memory,
+ * and a node of the tree, which is a pointer chase, about five times as much. They only have to be right to within a factor of about two,
+ * and can be tuned for other hardware or data by comparing getTreeQueries and getGridQueries with the run times of a batch of queries.
+ *
+ * Inserts go to both engines, so the planner needs twice the memory of one of them. Both engines find the same mobile IDs, but their order can differ.
+ */
+public class QueryPlanner implements SpatialIndex {
+
+	// the cost of visiting one bucket of the grid and of testing one record in it
+	private static final double GRID_BUCKET_COST = 1.0;
+	private static final double GRID_RECORD_COST = 1.0;
+	// the cost of one level of the tree's descent and of visiting one node
+	private static final double TREE_LEVEL_COST = 10.0;
+	private static final double TREE_NODE_COST = 5.0;
+
+	private final SpatialIndex tree;
+	private final GridIndex grid;
+
+	// the number of queries sent to each engine so far
+	private final AtomicLong treeQueries;
+	private final AtomicLong gridQueries;
+
+	/**
+	 * Constructor, with a new KDTree and a GridIndex with the default bucket size
+	 *
+	 */
+	public QueryPlanner() {
+		this(new KDTree(), new GridIndex());
+	}
+
+	/**
+	 * Constructor. Both engines must start out empty (or hold the same records), and from then on only be filled through the planner.
+	 *
+	 * @param tree	 the tree engine
+	 * @param grid	 the grid engine, whose bucket counts are also used for the estimates
+	 */
+	public QueryPlanner(SpatialIndex tree, GridIndex grid) {
+		this.tree = tree;
+		this.grid = grid;
+		treeQueries = new AtomicLong();
+		gridQueries = new AtomicLong();
+	}
+
+	/**
+	 * Adds a record to both engines. The grid copies its values, and the tree may keep the recordNode itself.
+	 *
+	 * @param r	  the record
+	 */
+	@Override
+	public void insert(recordNode r) {
+		grid.insert(r);
+		tree.insert(r);
+	}
+
+	@Override
+	public void insertFile(String filePath) {
+		grid.insertFile(filePath);
+		tree.insertFile(filePath);
+	}
+
+	@Override
+	public void prepareForQueries() {
+		grid.prepareForQueries();
+		tree.prepareForQueries();
+	}
+
+	public SpatialIndex getTree() {
+		return tree;
+	}
+
+	public GridIndex getGrid() {
+		return grid;
+	}
+
+	/**
+	 * @return the number of queries run on the tree so far
+	 */
+	public long getTreeQueries() {
+		return treeQueries.get();
+	}
+
+	/**
+	 * @return the number of queries run on the grid so far
+	 */
+	public long getGridQueries() {
+		return gridQueries.get();
+	}
+
+	/**
+	 * Picks the engine for a query
+	 *
+	 * @param xMin		  the minimum x value of the query region's bounding box
+	 * @param xMax		  the maximum x value of the query region's bounding box
+	 * @param yMin		  the minimum y value of the query region's bounding box
+	 * @param yMax		  the maximum y value of the query region's bounding box
+	 * @param timeMin	  the start of the query's time window
+	 * @param timeMax	  the end of the query's time window
+	 * @param area		  the area of the query region, in locations
+	 * @param perimeter	  the perimeter of the query region
+	 * @return the engine with the lower estimated cost
+	 */
+	SpatialIndex choose(int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax, double area, double perimeter) {
+		long buckets = grid.bucketsInBox(xMin, xMax, yMin, yMax, timeMin, timeMax);
+		int records = grid.recordsInBox(xMin, xMax, yMin, yMax, timeMin, timeMax);
+		double gridCost = GRID_BUCKET_COST * buckets + GRID_RECORD_COST * records;
+
+		double treeCost = TREE_LEVEL_COST * (32 - Integer.numberOfLeadingZeros(grid.size()));
+		if (records > 0) {
+			double density = (double) records / grid.bucketVolumeInBox(xMin, xMax, yMin, yMax, timeMin, timeMax);
+			double cell = Math.cbrt(1 / density);
+			int window = Math.max(0, Math.min(timeMax, 1023) - Math.max(timeMin, 0) + 1);
+			treeCost += TREE_NODE_COST * density * (area + perimeter * cell / 2 + cell * cell) * (window + cell);
+		}
+
+		if (treeCost < gridCost) {
+			treeQueries.incrementAndGet();
+			return tree;
+		}
+
+		gridQueries.incrementAndGet();
+		return grid;
+	}
+
+	/**
+	 * Picks the engine for a timeInt or timeAllInt query
+	 */
+	private SpatialIndex chooseRectangle(int start, int end, int x1, int y1, int x2, int y2) {
+		int xMin = Math.max(Math.min(x1, x2), 0);
+		int xMax = Math.min(Math.max(x1, x2), 1023);
+		int yMin = Math.max(Math.min(y1, y2), 0);
+		int yMax = Math.min(Math.max(y1, y2), 1023);
+		double width = Math.max(0, xMax - xMin + 1);
+		double height = Math.max(0, yMax - yMin + 1);
+
+		return choose(xMin, xMax, yMin, yMax, start, end, width * height, 2 * (width + height));
+	}
+
+	@Override
+	public void triangle(int time, int x1, int y1, int x2, int y2, int x3, int y3, LongConsumer sink) {
+		chooseTriangle(time, x1, y1, x2, y2, x3, y3).triangle(time, x1, y1, x2, y2, x3, y3, sink);
+	}
+
+	/**
+	 * Picks the engine for a triangle query
+	 */
+	private SpatialIndex chooseTriangle(int time, int x1, int y1, int x2, int y2, int x3, int y3) {
+		// the area of the triangle plus half its boundary, since the integer locations on the boundary count as inside
+		double perimeter = Math.hypot(x2 - x1, y2 - y1) + Math.hypot(x3 - x2, y3 - y2) + Math.hypot(x1 - x3, y1 - y3);
+		double area = Math.abs((double) (x2 - x1) * (y3 - y1) - (double) (x3 - x1) * (y2 - y1)) / 2 + perimeter / 2 + 1;
+
+		return choose(Math.min(x1, Math.min(x2, x3)), Math.max(x1, Math.max(x2, x3)), Math.min(y1, Math.min(y2, y3)), Math.max(y1, Math.max(y2, y3)),
+				time, time, area, perimeter);
+	}
+
+	@Override
+	public void timeInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink) {
+		chooseRectangle(start, end, x1, y1, x2, y2).timeInt(start, end, x1, y1, x2, y2, sink);
+	}
+
+	@Override
+	public void timeAllInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink) {
+		chooseRectangle(start, end, x1, y1, x2, y2).timeAllInt(start, end, x1, y1, x2, y2, sink);
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * A 2-D query region that the tree traversals can test points and node cells against.
+ * Every method works on integer coordinates only, so implementations can answer exactly and without allocating anything.
+ */
+public interface QueryRegion {
+	
+	// the node cell and the query region don't overlap, so the whole subtree can be pruned
+	public static final int OUTSIDE = 0;
+	// the node cell and the query region overlap, so the records in the subtree have to be tested one at a time
+	public static final int PARTIAL = 1;
+	// the node cell lies entirely inside the query region, so every record in the subtree is inside it too
+	public static final int INSIDE = 2;
+	
+	/**
+	 * Checks whether the point (x, y) lies inside the query region (points on the boundary count as inside)
+	 * 
+	 * @param x		the x-coordinate of the point
+	 * @param y		the y-coordinate of the point
+	 * 
+	 * @return true if the point lies inside the query region
+	 */
+	public boolean contains(int x, int y);
+	
+	/**
+	 * Classifies the rectangular node cell [xMin, xMax] x [yMin, yMax] against the query region.
+	 * An empty cell (xMin > xMax or yMin > yMax) is always OUTSIDE.
+	 * 
+	 * @param xMin		the minimum possible x value of the cell
+	 * @param xMax		the maximum possible x value of the cell
+	 * @param yMin		the minimum possible y value of the cell
+	 * @param yMax		the maximum possible y value of the cell
+	 * 
+	 * @return OUTSIDE, PARTIAL, or INSIDE
+	 */
+	public int classify(int xMin, int xMax, int yMin, int yMax);
+}
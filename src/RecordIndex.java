@@ -0,0 +1,16 @@
+/**
+ * A secondary index that KDTree keeps up to date alongside the tree, such as HourIndex or TrajectoryIndex.
+ * KDTree hands every record it stores to each enabled index.
+ */
+public interface RecordIndex {
+	
+	/**
+	 * Adds a record to the index
+	 * 
+	 * @param phoneID	the mobile ID of the record
+	 * @param xloc		the x-coordinate of the record
+	 * @param yloc		the y-coordinate of the record
+	 * @param time		the hour of the record
+	 */
+	public void add(long phoneID, int xloc, int yloc, int time);
+}
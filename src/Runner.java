@@ -1,5 +1,3 @@
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -9,25 +7,31 @@ public class Runner {
 	
 	public static void writeOutput(String filePath, ArrayList<List<Long>> mobileIDs) {	
 		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(filePath));
+			ByteOutput out = new ByteOutput(filePath);
 			
 			for (int i = 0; i < mobileIDs.size(); i++) {
 				for (int j = 0; j < mobileIDs.get(i).size(); j++) {
-					writer.append(mobileIDs.get(i).get(j).toString() + ",");
+					out.writeLong(mobileIDs.get(i).get(j));
+					out.write(',');
 					
 					if (j < mobileIDs.get(i).size() - 1)
-						writer.append(" ");
+						out.write(' ');
 				}
 				
-				writer.append("\n");
+				out.write('\n');
 			}
 			
-			writer.close();
+			out.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	private static String throughput(BatchQueryExecutor executor) {
+		return "(" + executor.getQueryCount() + " queries in " + (executor.getElapsedNanos() / 1000000) + " ms, "
+				+ Math.round(executor.getQueriesPerSecond()) + " queries/s)";
+	}
+
 	public static void main(String[] args) {
 		String workingDir = System.getProperty("user.dir") + "\\";
 		String inputFileName = "points";
@@ -40,25 +44,33 @@ public class Runner {
 		String timeAllIntOutput = "output4";
 		
 		KDTree MyTree = new KDTree();
+		// with "planner" as the first argument, every query goes to whichever of the tree and a GridIndex the QueryPlanner estimates is cheaper
+		SpatialIndex engine = MyTree;
+		if (args.length > 0 && args[0].equals("planner")) {
+			engine = new QueryPlanner(MyTree, new GridIndex());
+			// the grid tests its buckets with LeafFilter, which is only vectorized when built and run as described in src-vector/README.txt
+			System.out.println("Leaf filter: " + (LeafFilter.getInstance().isVectorized() ? "SIMD" : "scalar"));
+		}
+		BatchQueryExecutor executor = new BatchQueryExecutor(engine);
 		
 		// Task 1
-		MyTree.insertFile(workingDir + inputFileName);
+		engine.insertFile(workingDir + inputFileName);
 		MyTree.writeToFile(outputFileName);
 		System.out.println("Done with Task 1!");
 		
 		// Task 2
-		ArrayList<List<Long>> triangleMobileIDs = MyTree.processTriangleQueries(triangleInputFileName);
+		ArrayList<List<Long>> triangleMobileIDs = executor.processTriangleQueries(triangleInputFileName);
 		MyTree.writeToTriangleOutput(triangleOutputFileName, triangleMobileIDs);
-		System.out.println("Done with Task 2!");
+		System.out.println("Done with Task 2! " + throughput(executor));
 		
 		// Task 3
-		ArrayList<List<Long>> timeIntMobileIDs = MyTree.processTimeIntQueries(timeIntInput);
+		ArrayList<List<Long>> timeIntMobileIDs = executor.processTimeIntQueries(timeIntInput);
 		writeOutput(timeIntOutput, timeIntMobileIDs);
-		System.out.println("Done with Task 3!");
+		System.out.println("Done with Task 3! " + throughput(executor));
 		
 		// Task 4
-		ArrayList<List<Long>> timeIntAllMobileIDs = MyTree.processTimeAllIntQueries(timeAllIntInput);
+		ArrayList<List<Long>> timeIntAllMobileIDs = executor.processTimeAllIntQueries(timeAllIntInput);
 		writeOutput(timeAllIntOutput, timeIntAllMobileIDs);
-		System.out.println("Done with Task 4!");
+		System.out.println("Done with Task 4! " + throughput(executor));
 	}
 }
@@ -0,0 +1,94 @@
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * A query engine for the project's records: something that stores (mobileID, XLOC, YLOC, time) records and answers
+ * the triangle, timeInt, and timeAllInt queries over them, such as KDTree, GridIndex, or QueryPlanner, which picks one of several engines for each query.
+ *
+ * Every engine finds the same mobile IDs for a query, but not necessarily in the same order.
+ * The sink versions of the queries pass each mobile ID on as it is found, instead of collecting them into a List;
+ * they are all an engine has to implement, since the List versions collect the sink versions' output by default.
+ */
+public interface SpatialIndex {
+
+	/**
+	 * Adds a record. The engine may keep the recordNode itself, so the caller must not change it afterwards.
+	 *
+	 * @param r	  the record
+	 */
+	public void insert(recordNode r);
+
+	/**
+	 * Adds every record in a file of "mobileID, XLOC, YLOC, time" lines
+	 *
+	 * @param filePath	 the input file
+	 */
+	public void insertFile(String filePath);
+
+	/**
+	 * Finishes any work the engine puts off until the next query, so that queries can then run from several threads at once.
+	 * Nothing may be inserted while queries are running.
+	 */
+	public void prepareForQueries();
+
+	/**
+	 * @return the mobileIDs of the records inside the triangle (x1, y1), (x2, y2), (x3, y3) at the given time
+	 */
+	public default List<Long> triangle(int time, int x1, int y1, int x2, int y2, int x3, int y3) {
+		LongList mobileIDs = new LongList();
+		triangle(time, x1, y1, x2, y2, x3, y3, mobileIDs);
+
+		return mobileIDs.toList();
+	}
+
+	/**
+	 * Passes the mobileIDs of the records inside the triangle (x1, y1), (x2, y2), (x3, y3) at the given time to sink
+	 */
+	public void triangle(int time, int x1, int y1, int x2, int y2, int x3, int y3, LongConsumer sink);
+
+	/**
+	 * @return the mobileIDs of the records inside the rectangle with corners (x1, y1) and (x2, y2) at some time in [start, end]
+	 */
+	public default List<Long> timeInt(int start, int end, int x1, int y1, int x2, int y2) {
+		LongList mobileIDs = new LongList();
+		timeInt(start, end, x1, y1, x2, y2, mobileIDs);
+
+		return mobileIDs.toList();
+	}
+
+	/**
+	 * Passes the mobileIDs of the records inside the rectangle with corners (x1, y1) and (x2, y2) at some time in [start, end] to sink
+	 */
+	public void timeInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink);
+
+	/**
+	 * @return the mobileIDs that are inside the rectangle with corners (x1, y1) and (x2, y2) at every time in [start, end], each once
+	 */
+	public default List<Long> timeAllInt(int start, int end, int x1, int y1, int x2, int y2) {
+		LongList mobileIDs = new LongList();
+		timeAllInt(start, end, x1, y1, x2, y2, mobileIDs);
+
+		return mobileIDs.toList();
+	}
+
+	/**
+	 * Passes the mobileIDs that are inside the rectangle with corners (x1, y1) and (x2, y2) at every time in [start, end] to sink, each once
+	 */
+	public void timeAllInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink);
+
+	/**
+	 * The last step of a timeAllInt query, shared by every engine: once the scan of the query region has set, for every mobileID seen there,
+	 * the hours it was seen, passes on the mobileIDs seen at every hour of [start, end]
+	 *
+	 * @param hours		for every mobileID seen in the query region, a bitset of the hours it was seen there
+	 * @param start		the start of the time interval
+	 * @param end		the end of the time interval
+	 * @param sink		receives the mobileIDs seen at every hour of the interval
+	 */
+	public static void acceptAllHours(LongBitsetMap hours, int start, int end, LongConsumer sink) {
+		for (int slot = hours.nextSlot(0); slot >= 0; slot = hours.nextSlot(slot + 1)) {
+			if (hours.containsRange(slot, start, end))
+				sink.accept(hours.keyAt(slot));
+		}
+	}
+}
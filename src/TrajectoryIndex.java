@@ -0,0 +1,334 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The TrajectoryIndex class maps each mobile ID to its trajectory: every (time, XLOC, YLOC) it was recorded at, sorted by time.
+ * It answers phone-centric questions like "where was phone X between hours S and E?" without a scan of the whole tree,
+ * and lets timeAllInt check a candidate phone's whole time window directly.
+ *
+ * Mobile IDs are looked up in a primitive open-addressing table, and each trajectory is one int array
+ * with the time, XLOC, and YLOC of a record packed into each int (time in the highest bits, so sorting the ints sorts by time).
+ * New records are appended, and a trajectory is re-sorted the next time it is read.
+ */
+public class TrajectoryIndex implements RecordIndex {
+
+	private static final long EMPTY = Long.MIN_VALUE;
+	private static final int BITS = 10;
+	private static final int MASK = (1 << BITS) - 1;
+	private static final int INITIAL_CAPACITY = 4;
+
+	// open-addressing table from mobile ID to the index of its trajectory
+	private long[] keys;
+	private int[] slots;
+	private int mask;
+
+	private int[][] trajectories;
+	private int[] counts;
+	// 0 if records have been appended to the trajectory since it was last sorted, 1 if not;
+	// atomic so that lookups can check it without locking, and see the trajectory as it was when it was set
+	private AtomicIntegerArray sorted;
+	private int phones;
+	private int size;
+
+	/**
+	 * Constructor
+	 *
+	 */
+	public TrajectoryIndex() {
+		keys = new long[16];
+		Arrays.fill(keys, EMPTY);
+		slots = new int[16];
+		mask = 15;
+
+		trajectories = new int[16][];
+		counts = new int[16];
+		sorted = new AtomicIntegerArray(16);
+		phones = 0;
+		size = 0;
+	}
+
+	/**
+	 * Packs a time, XLOC, and YLOC into one int, with the time in the highest bits. All three must be in [0,1023].
+	 */
+	public static int pack(int time, int xloc, int yloc) {
+		return (time << (2 * BITS)) | (xloc << BITS) | yloc;
+	}
+
+	public static int getTime(int entry) {
+		return entry >>> (2 * BITS);
+	}
+
+	public static int getXloc(int entry) {
+		return (entry >>> BITS) & MASK;
+	}
+
+	public static int getYloc(int entry) {
+		return entry & MASK;
+	}
+
+	/**
+	 * Spreads the bits of a mobile ID (the finalizer of MurmurHash3)
+	 */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * @return the index of the phone's trajectory, or -1 if the phone has no records
+	 */
+	private int find(long phoneID) {
+		int slot = hash(phoneID) & mask;
+
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == phoneID)
+				return slots[slot];
+			slot = (slot + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the index of the phone's trajectory, creating an empty one if the phone has no records yet
+	 */
+	private int findOrCreate(long phoneID) {
+		int slot = hash(phoneID) & mask;
+
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == phoneID)
+				return slots[slot];
+			slot = (slot + 1) & mask;
+		}
+
+		if (phones == trajectories.length) {
+			trajectories = Arrays.copyOf(trajectories, 2 * phones);
+			counts = Arrays.copyOf(counts, 2 * phones);
+			AtomicIntegerArray grown = new AtomicIntegerArray(2 * phones);
+			for (int i = 0; i < phones; i++)
+				grown.set(i, sorted.get(i));
+			sorted = grown;
+		}
+
+		keys[slot] = phoneID;
+		slots[slot] = phones;
+		trajectories[phones] = new int[INITIAL_CAPACITY];
+		phones++;
+
+		// keep the table at most half full
+		if (2 * phones > keys.length)
+			rehash();
+
+		return phones - 1;
+	}
+
+	private void rehash() {
+		long[] oldKeys = keys;
+		int[] oldSlots = slots;
+
+		keys = new long[2 * oldKeys.length];
+		Arrays.fill(keys, EMPTY);
+		slots = new int[2 * oldKeys.length];
+		mask = keys.length - 1;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == EMPTY)
+				continue;
+
+			int slot = hash(oldKeys[i]) & mask;
+			while (keys[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+
+			keys[slot] = oldKeys[i];
+			slots[slot] = oldSlots[i];
+		}
+	}
+
+	@Override
+	public void add(long phoneID, int xloc, int yloc, int time) {
+		if ((xloc | yloc | time) < 0 || xloc > MASK || yloc > MASK || time > MASK)
+			throw new IllegalArgumentException("record (" + xloc + ", " + yloc + ", " + time + ") is outside [0," + MASK + "]");
+
+		int index = findOrCreate(phoneID);
+		int count = counts[index];
+
+		if (count == trajectories[index].length)
+			trajectories[index] = Arrays.copyOf(trajectories[index], 2 * count);
+
+		trajectories[index][count] = pack(time, xloc, yloc);
+		counts[index] = count + 1;
+		sorted.set(index, 0);
+		size++;
+	}
+
+	/**
+	 * Removes one record from its phone's trajectory, if the index has it.
+	 * The last entry of the trajectory takes its place, and the trajectory is re-sorted the next time it is read.
+	 * The phone keeps its (possibly empty) trajectory.
+	 *
+	 * @param phoneID	the mobile ID of the record
+	 * @param xloc		the x-coordinate of the record
+	 * @param yloc		the y-coordinate of the record
+	 * @param time		the hour of the record
+	 *
+	 * @return true if the record was found and removed
+	 */
+	public boolean remove(long phoneID, int xloc, int yloc, int time) {
+		if ((xloc | yloc | time) < 0 || xloc > MASK || yloc > MASK || time > MASK)
+			return false;
+
+		int index = find(phoneID);
+		if (index < 0)
+			return false;
+
+		int[] entries = trajectories[index];
+		int entry = pack(time, xloc, yloc);
+		int last = counts[index] - 1;
+
+		for (int i = 0; i <= last; i++) {
+			if (entries[i] == entry) {
+				entries[i] = entries[last];
+				counts[index] = last;
+				sorted.set(index, 0);
+				size--;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the number of records in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of distinct mobile IDs that have been added to the index (including any whose records have all been removed since)
+	 */
+	public int phoneCount() {
+		return phones;
+	}
+
+	/**
+	 * @return the approximate number of bytes of heap used by the index, including unused array capacity and array headers
+	 */
+	public long memoryBytes() {
+		long bytes = 12L * keys.length + 16 + 12L * trajectories.length + 4 * 16;
+
+		for (int i = 0; i < phones; i++)
+			bytes += 16 + 4L * trajectories[i].length;
+
+		return bytes;
+	}
+
+	/**
+	 * Sorts every trajectory that has had records appended since it was last sorted,
+	 * so that later lookups only read the index. Called before running queries from several threads at once.
+	 */
+	public void prepare() {
+		for (int i = 0; i < phones; i++)
+			ensureSorted(i);
+	}
+
+	/**
+	 * Sorts the trajectory by time if anything has been appended since it was last sorted.
+	 * Once it is sorted this is one volatile read, so the lookups of queries running in parallel don't contend for a lock;
+	 * only the sort is synchronized, so that concurrent lookups never see a trajectory half sorted.
+	 */
+	private void ensureSorted(int index) {
+		if (sorted.get(index) == 0)
+			sort(index);
+	}
+
+	private synchronized void sort(int index) {
+		if (sorted.get(index) == 0) {
+			Arrays.sort(trajectories[index], 0, counts[index]);
+			sorted.set(index, 1);
+		}
+	}
+
+	/**
+	 * @return the index of the first entry of the sorted trajectory with time >= start
+	 */
+	private int firstAtOrAfter(int index, int start) {
+		int[] entries = trajectories[index];
+		int lo = 0;
+		int hi = counts[index];
+		int key = pack(start, 0, 0);
+
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (entries[mid] < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		return lo;
+	}
+
+	/**
+	 * Returns the records of a phone between hours start and end, sorted by time.
+	 * Each entry is packed; use getTime, getXloc, and getYloc to read it.
+	 *
+	 * @param phoneID	the mobile ID
+	 * @param start		the first hour
+	 * @param end		the last hour
+	 *
+	 * @return the packed entries, which is an empty array if the phone has no records in [start, end]
+	 */
+	public int[] trajectory(long phoneID, int start, int end) {
+		int index = find(phoneID);
+		if (index < 0 || start > end)
+			return new int[0];
+
+		ensureSorted(index);
+		int from = firstAtOrAfter(index, Math.max(start, 0));
+		int to = firstAtOrAfter(index, Math.min(end, MASK) + 1);
+
+		return Arrays.copyOfRange(trajectories[index], from, to);
+	}
+
+	/**
+	 * Checks whether a phone was inside the query region at every hour in [start, end], by walking its sorted trajectory
+	 * from the first record at or after start.
+	 *
+	 * @param phoneID	the mobile ID
+	 * @param start		the first hour
+	 * @param end		the last hour
+	 * @param qr		the rectangle query region
+	 *
+	 * @return true if for every hour in [start, end], the phone has a record at that hour inside the query region
+	 */
+	public boolean coversRange(long phoneID, int start, int end, Rectangle qr) {
+		int index = find(phoneID);
+		if (index < 0)
+			return start > end;
+
+		ensureSorted(index);
+		int[] entries = trajectories[index];
+		int count = counts[index];
+		// the next hour we still need to see the phone in the query region at
+		int need = start;
+
+		for (int i = firstAtOrAfter(index, Math.max(start, 0)); i < count && need <= end; i++) {
+			int time = getTime(entries[i]);
+
+			// no record inside the region at hour need
+			if (time > need)
+				return false;
+
+			if (time == need && qr.contains(getXloc(entries[i]), getYloc(entries[i])))
+				need++;
+		}
+
+		return need > end;
+	}
+}
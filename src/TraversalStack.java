@@ -0,0 +1,166 @@
+import java.util.Arrays;
+
+/**
+ * The TraversalStack class is the explicit stack that KDTree's traversals use instead of recursion,
+ * so that they work at any depth: a tree built by insert from input sorted by hour, or with one busy phone at one cell,
+ * can be tens of thousands of levels deep, which would overflow the call stack.
+ *
+ * Each entry is a recordNode plus the state a recursive call would have had in its arguments: the node's depth,
+ * whether an ancestor's region already lies inside the query region, and the bounds of the node's region (XLOC, YLOC, and time).
+ * The state is kept in one primitive int array next to the node array, and pop loads the top entry into fields read with the getters,
+ * so a traversal allocates nothing after the stack is created (unless it has to grow).
+ * Traversals that only need the nodes push with push(recordNode) and ignore the rest.
+ * Null nodes are never pushed, so the loop of a traversal doesn't have to check for them.
+ */
+public class TraversalStack {
+
+	// depth, inside, xMin, xMax, yMin, yMax, timeMin, timeMax
+	private static final int FIELDS = 8;
+
+	private recordNode[] nodes;
+	private int[] state;
+	private int size;
+
+	// the entry popped last
+	private recordNode node;
+	private int depth;
+	private boolean inside;
+	private int xMin;
+	private int xMax;
+	private int yMin;
+	private int yMax;
+	private int timeMin;
+	private int timeMax;
+
+	/**
+	 * Constructor
+	 *
+	 */
+	public TraversalStack() {
+		this(64);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity	the number of entries to make room for up front
+	 */
+	public TraversalStack(int capacity) {
+		capacity = Math.max(capacity, 1);
+		nodes = new recordNode[capacity];
+		state = new int[capacity * FIELDS];
+		size = 0;
+	}
+
+	/**
+	 * Pushes a node without any state, for traversals that visit every node
+	 *
+	 * @param node	 the node, which is skipped if it is null
+	 */
+	public void push(recordNode node) {
+		if (node == null)
+			return;
+		if (size == nodes.length)
+			grow();
+
+		nodes[size++] = node;
+	}
+
+	/**
+	 * Pushes a node with the state of a region search
+	 *
+	 * @param node		the node, which is skipped if it is null
+	 * @param depth		the depth of the node in the tree
+	 * @param inside	true if an ancestor's region already lies entirely inside the query region
+	 * @param xMin		the minimum possible x value of the node's region
+	 * @param xMax		the maximum possible x value of the node's region
+	 * @param yMin		the minimum possible y value of the node's region
+	 * @param yMax		the maximum possible y value of the node's region
+	 * @param timeMin	the minimum possible time value of the node's region
+	 * @param timeMax	the maximum possible time value of the node's region
+	 */
+	public void push(recordNode node, int depth, boolean inside, int xMin, int xMax, int yMin, int yMax, int timeMin, int timeMax) {
+		if (node == null)
+			return;
+		if (size == nodes.length)
+			grow();
+
+		int base = size * FIELDS;
+		state[base] = depth;
+		state[base + 1] = inside ? 1 : 0;
+		state[base + 2] = xMin;
+		state[base + 3] = xMax;
+		state[base + 4] = yMin;
+		state[base + 5] = yMax;
+		state[base + 6] = timeMin;
+		state[base + 7] = timeMax;
+		nodes[size++] = node;
+	}
+
+	/**
+	 * Pops the top entry and loads it into the getters
+	 *
+	 * @return false if the stack was empty
+	 */
+	public boolean pop() {
+		if (size == 0)
+			return false;
+
+		size--;
+		node = nodes[size];
+		nodes[size] = null;
+
+		int base = size * FIELDS;
+		depth = state[base];
+		inside = state[base + 1] != 0;
+		xMin = state[base + 2];
+		xMax = state[base + 3];
+		yMin = state[base + 4];
+		yMax = state[base + 5];
+		timeMin = state[base + 6];
+		timeMax = state[base + 7];
+
+		return true;
+	}
+
+	private void grow() {
+		nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+		state = Arrays.copyOf(state, 2 * state.length);
+	}
+
+	public recordNode getNode() {
+		return node;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public boolean isInside() {
+		return inside;
+	}
+
+	public int getXMin() {
+		return xMin;
+	}
+
+	public int getXMax() {
+		return xMax;
+	}
+
+	public int getYMin() {
+		return yMin;
+	}
+
+	public int getYMax() {
+		return yMax;
+	}
+
+	public int getTimeMin() {
+		return timeMin;
+	}
+
+	public int getTimeMax() {
+		return timeMax;
+	}
+}
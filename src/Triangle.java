@@ -0,0 +1,189 @@
+/**
+ * The Triangle class is the query region of a triangle query, with vertices (x1, y1), (x2, y2), and (x3, y3).
+ *
+ * All of its tests are exact integer orientation (cross product) tests, and nothing is allocated after the constructor,
+ * so a triangle query allocates one Triangle and then no garbage at all per node it visits.
+ * Each edge of the triangle is stored as a line equation a*x + b*y + c, oriented so that it is non-negative on the inside of the triangle.
+ * A node cell is tested against the triangle with the separating axis theorem: since both shapes are convex, they are disjoint exactly when
+ * the triangle's bounding box misses the cell or the whole cell lies strictly outside one of the triangle's edges.
+ */
+public class Triangle implements QueryRegion {
+	private final int x1;
+	private final int y1;
+	private final int x2;
+	private final int y2;
+	private final int x3;
+	private final int y3;
+
+	// bounding box of the triangle
+	private final int xMin;
+	private final int xMax;
+	private final int yMin;
+	private final int yMax;
+
+	// true if the three vertices are collinear, in which case the triangle is just the segment between its two farthest vertices
+	private final boolean degenerate;
+
+	// the three edge equations, each non-negative on the inside of the triangle
+	private final long[] a = new long[3];
+	private final long[] b = new long[3];
+	private final long[] c = new long[3];
+
+	/**
+	 * Constructor
+	 *
+	 * @param x1	the x-coordinate of the first vertex of the triangle query region
+	 * @param y1	the y-coordinate of the first vertex of the triangle query region
+	 * @param x2	the x-coordinate of the second vertex of the triangle query region
+	 * @param y2	the y-coordinate of the second vertex of the triangle query region
+	 * @param x3	the x-coordinate of the third vertex of the triangle query region
+	 * @param y3	the y-coordinate of the third vertex of the triangle query region
+	 */
+	public Triangle(int x1, int y1, int x2, int y2, int x3, int y3) {
+		this.x1 = x1;
+		this.y1 = y1;
+		this.x2 = x2;
+		this.y2 = y2;
+		this.x3 = x3;
+		this.y3 = y3;
+
+		xMin = Math.min(x1, Math.min(x2, x3));
+		xMax = Math.max(x1, Math.max(x2, x3));
+		yMin = Math.min(y1, Math.min(y2, y3));
+		yMax = Math.max(y1, Math.max(y2, y3));
+
+		long orientation = orientation(x1, y1, x2, y2, x3, y3);
+		degenerate = orientation == 0;
+
+		// walk the vertices counterclockwise, so the inside of the triangle is to the left of every edge
+		if (orientation >= 0) {
+			setEdge(0, x1, y1, x2, y2);
+			setEdge(1, x2, y2, x3, y3);
+			setEdge(2, x3, y3, x1, y1);
+		}
+		else {
+			setEdge(0, x1, y1, x3, y3);
+			setEdge(1, x3, y3, x2, y2);
+			setEdge(2, x2, y2, x1, y1);
+		}
+	}
+
+	/**
+	 * Stores the equation of the line through (ax, ay) and (bx, by), which is positive to the left of the line and 0 on it.
+	 */
+	private void setEdge(int edge, int ax, int ay, int bx, int by) {
+		a[edge] = -((long) by - ay);
+		b[edge] = (long) bx - ax;
+		c[edge] = -(a[edge] * ax + b[edge] * ay);
+	}
+
+	/**
+	 * Returns twice the signed area of the triangle (ax, ay), (bx, by), (cx, cy):
+	 * positive if the vertices are in counterclockwise order, negative if clockwise, and 0 if they are collinear.
+	 */
+	public static long orientation(int ax, int ay, int bx, int by, int cx, int cy) {
+		return ((long) bx - ax) * ((long) cy - ay) - ((long) by - ay) * ((long) cx - ax);
+	}
+
+	@Override
+	public boolean contains(int x, int y) {
+		if (x < xMin || x > xMax || y < yMin || y > yMax)
+			return false;
+
+		if (degenerate) {
+			// inside the bounding box, a point is on the segment exactly when it is collinear with two distinct vertices
+			// (if all three vertices are the same point, the bounding box test above was enough)
+			if (x1 != x2 || y1 != y2)
+				return orientation(x1, y1, x2, y2, x, y) == 0;
+			return orientation(x1, y1, x3, y3, x, y) == 0;
+		}
+
+		for (int edge = 0; edge < 3; edge++) {
+			if (a[edge] * x + b[edge] * y + c[edge] < 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the three edge equations as ints, for batch filters (see LeafFilter) that test many points with int arithmetic.
+	 * For points in [0,1023] x [0,1023], the equations can only be evaluated in ints without overflow if the coefficients are small enough,
+	 * which they are whenever the vertices are within about 16000 of the grid.
+	 *
+	 * @return {a0, b0, c0, a1, b1, c1, a2, b2, c2}, or null if the triangle is degenerate (so the equations don't describe it) or a coefficient is too big
+	 */
+	int[] intEdges() {
+		if (degenerate)
+			return null;
+
+		int[] edges = new int[9];
+		for (int edge = 0; edge < 3; edge++) {
+			// |a * x + b * y + c| <= 2 * 2^15 * 1023 + 2^29 < 2^31
+			if (Math.abs(a[edge]) > 1 << 15 || Math.abs(b[edge]) > 1 << 15 || Math.abs(c[edge]) > 1 << 29)
+				return null;
+
+			edges[3 * edge] = (int) a[edge];
+			edges[3 * edge + 1] = (int) b[edge];
+			edges[3 * edge + 2] = (int) c[edge];
+		}
+
+		return edges;
+	}
+
+	@Override
+	public int classify(int cellXMin, int cellXMax, int cellYMin, int cellYMax) {
+		if (cellXMin > cellXMax || cellYMin > cellYMax)
+			return OUTSIDE;
+
+		// separating axes x and y: the bounding boxes don't overlap
+		if (cellXMax < xMin || cellXMin > xMax || cellYMax < yMin || cellYMin > yMax)
+			return OUTSIDE;
+
+		if (degenerate) {
+			if (cellXMin == cellXMax && cellYMin == cellYMax)
+				return contains(cellXMin, cellYMin) ? INSIDE : OUTSIDE;
+			return PARTIAL;
+		}
+
+		boolean inside = true;
+
+		for (int edge = 0; edge < 3; edge++) {
+			// the corners of the cell where the edge equation is largest and smallest
+			long max = a[edge] * (a[edge] > 0 ? cellXMax : cellXMin) + b[edge] * (b[edge] > 0 ? cellYMax : cellYMin) + c[edge];
+			long min = a[edge] * (a[edge] > 0 ? cellXMin : cellXMax) + b[edge] * (b[edge] > 0 ? cellYMin : cellYMax) + c[edge];
+
+			// separating axis: the whole cell is strictly outside this edge
+			if (max < 0)
+				return OUTSIDE;
+			if (min < 0)
+				inside = false;
+		}
+
+		return inside ? INSIDE : PARTIAL;
+	}
+
+	public int getX1() {
+		return x1;
+	}
+
+	public int getY1() {
+		return y1;
+	}
+
+	public int getX2() {
+		return x2;
+	}
+
+	public int getY2() {
+		return y2;
+	}
+
+	public int getX3() {
+		return x3;
+	}
+
+	public int getY3() {
+		return y3;
+	}
+}
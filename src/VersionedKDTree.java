@@ -0,0 +1,198 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * The VersionedKDTree class lets queries keep running while records are loaded, deleted, or moved.
+ * A KDTree changes its recordNodes in place, so on its own it can't be queried while a writer is working on it.
+ * Here the current version of the tree is published through an AtomicReference and never changed again once published:
+ * a writer makes a copy of the current version (see KDTree.copy), applies its changes to the copy, and then swaps the copy in.
+ *
+ * Readers never lock. Each query reads the current version once and runs entirely against it, so it sees either all of a write or none of it,
+ * and a query that started before a swap finishes against the version it started with. To run several queries against one consistent version,
+ * take a snapshot and query it directly.
+ *
+ * Writers are serialized with each other. Every write copies the pointer tree and rebuilds the secondary indexes,
+ * so writes should be batched (insertFile, insertAll, or update), and compacting the tree keeps copies cheap,
+ * since compact storage is shared between versions.
+ */
+public class VersionedKDTree {
+
+	private final AtomicReference<KDTree> current;
+	private volatile long version;
+
+	/**
+	 * Constructor
+	 *
+	 */
+	public VersionedKDTree() {
+		this(new KDTree());
+	}
+
+	/**
+	 * Constructor
+	 * Publishes an existing tree as the first version. The tree must not be changed directly afterwards.
+	 *
+	 * @param tree	 the first version of the tree
+	 */
+	public VersionedKDTree(KDTree tree) {
+		tree.prepareForQueries();
+		current = new AtomicReference<KDTree>(tree);
+		version = 0;
+	}
+
+	/**
+	 * Returns the current version of the tree, to run several queries against the same records.
+	 * The snapshot stays valid (and unchanged) however many writes happen after it is taken, but it must only be queried, never changed.
+	 * It can be written out with writeToFile, which only reads it; writeSnapshot compacts the tree it is called on, so call that on a copy.
+	 *
+	 * @return the current version of the tree
+	 */
+	public KDTree snapshot() {
+		return current.get();
+	}
+
+	/**
+	 * @return the number of writes published so far
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Applies any changes to a copy of the current version and publishes the copy as the new version.
+	 * This is the way to batch several changes into one version.
+	 *
+	 * @param changes	 changes the tree it is given; it must not keep a reference to the tree
+	 */
+	public synchronized void update(Consumer<KDTree> changes) {
+		KDTree next = current.get().copy();
+		changes.accept(next);
+		publish(next);
+	}
+
+	/**
+	 * Loads a file of records into a new version (see KDTree.insertFile)
+	 *
+	 * @param filePath	 the input file
+	 */
+	public synchronized void insertFile(String filePath) {
+		KDTree next = current.get().copy();
+		next.insertFile(filePath);
+		publish(next);
+	}
+
+	/**
+	 * Inserts a batch of records into a new version
+	 *
+	 * @param records	the records to insert, which must not be used again by the caller
+	 */
+	public synchronized void insertAll(List<recordNode> records) {
+		KDTree next = current.get().copy();
+		for (recordNode r : records)
+			next.insert(r);
+		publish(next);
+	}
+
+	/**
+	 * Deletes one record in a new version (see KDTree.delete)
+	 *
+	 * @return true if the record was found and deleted; if not, no new version is published
+	 */
+	public synchronized boolean delete(long phoneID, int xloc, int yloc, int time) {
+		KDTree next = current.get().copy();
+		if (!next.delete(phoneID, xloc, yloc, time))
+			return false;
+		publish(next);
+		return true;
+	}
+
+	/**
+	 * Deletes every record of a phone in a new version (see KDTree.deletePhone)
+	 *
+	 * @return the number of records deleted; if there were none, no new version is published
+	 */
+	public synchronized int deletePhone(long phoneID) {
+		KDTree next = current.get().copy();
+		int count = next.deletePhone(phoneID);
+		if (count > 0)
+			publish(next);
+		return count;
+	}
+
+	/**
+	 * Moves one record in a new version (see KDTree.move)
+	 *
+	 * @return true if the record was found and moved; if not, no new version is published
+	 */
+	public synchronized boolean move(long phoneID, int xloc, int yloc, int time, int newXloc, int newYloc, int newTime) {
+		KDTree next = current.get().copy();
+		if (!next.move(phoneID, xloc, yloc, time, newXloc, newYloc, newTime))
+			return false;
+		publish(next);
+		return true;
+	}
+
+	/**
+	 * Publishes a compacted version (see KDTree.compact), which later writes can copy cheaply
+	 */
+	public synchronized void compact() {
+		KDTree next = current.get().copy();
+		next.compact();
+		publish(next);
+	}
+
+	/**
+	 * Finishes the lazy work of the new version's indexes before any reader can see it, and swaps it in
+	 */
+	private void publish(KDTree next) {
+		next.prepareForQueries();
+		current.set(next);
+		version++;
+	}
+
+	public List<Long> triangle(int time, int x1, int y1, int x2, int y2, int x3, int y3) {
+		return current.get().triangle(time, x1, y1, x2, y2, x3, y3);
+	}
+
+	public void triangle(int time, int x1, int y1, int x2, int y2, int x3, int y3, LongConsumer sink) {
+		current.get().triangle(time, x1, y1, x2, y2, x3, y3, sink);
+	}
+
+	public List<Long> timeInt(int start, int end, int x1, int y1, int x2, int y2) {
+		return current.get().timeInt(start, end, x1, y1, x2, y2);
+	}
+
+	public void timeInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink) {
+		current.get().timeInt(start, end, x1, y1, x2, y2, sink);
+	}
+
+	public List<Long> timeAllInt(int start, int end, int x1, int y1, int x2, int y2) {
+		return current.get().timeAllInt(start, end, x1, y1, x2, y2);
+	}
+
+	public void timeAllInt(int start, int end, int x1, int y1, int x2, int y2, LongConsumer sink) {
+		current.get().timeAllInt(start, end, x1, y1, x2, y2, sink);
+	}
+
+	public long countTimeInt(int start, int end, int x1, int y1, int x2, int y2) {
+		return current.get().countTimeInt(start, end, x1, y1, x2, y2);
+	}
+
+	public long countTriangle(int time, int x1, int y1, int x2, int y2, int x3, int y3) {
+		return current.get().countTriangle(time, x1, y1, x2, y2, x3, y3);
+	}
+
+	public long estimateDistinctTimeInt(int start, int end, int x1, int y1, int x2, int y2) {
+		return current.get().estimateDistinctTimeInt(start, end, x1, y1, x2, y2);
+	}
+
+	public List<Long> nearest(int x, int y, int start, int end, int k, boolean distinctPhones) {
+		return current.get().nearest(x, y, start, end, k, distinctPhones);
+	}
+
+	public List<recordNode> trajectory(long phoneID, int start, int end) {
+		return current.get().trajectory(phoneID, start, end);
+	}
+}
@@ -15,6 +15,15 @@ public class recordNode {
 	private int yloc;
 	private int time;
 	
+	// the dimension this node splits on: 0 for XLOC, 1 for YLOC, 2 for time
+	private int discriminator;
+	// true once the record has been deleted; the node stays in the tree to keep its split until the tree is compacted
+	private boolean deleted;
+	// the number of records in the subtree rooted at this node (deleted ones included), kept up to date by insert and the tree builders
+	private int size;
+	// the number of deleted records in the subtree rooted at this node, so that size - tombstones records in it are live
+	private int tombstones;
+	
 	private recordNode left;
 	private recordNode right;
 	
@@ -32,6 +41,10 @@ public class recordNode {
 		this.yloc = yloc;
 		this.time = time;
 		
+		discriminator = 0;
+		deleted = false;
+		size = 1;
+		tombstones = 0;
 		left = null;
 		right = null;
 	}
@@ -68,6 +81,53 @@ public class recordNode {
 		this.time = time;
 	}
 
+	public int getDiscriminator() {
+		return discriminator;
+	}
+
+	public void setDiscriminator(int discriminator) {
+		this.discriminator = discriminator;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	public void setDeleted(boolean deleted) {
+		this.deleted = deleted;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public void setSize(int size) {
+		this.size = size;
+	}
+
+	public int getTombstones() {
+		return tombstones;
+	}
+
+	public void setTombstones(int tombstones) {
+		this.tombstones = tombstones;
+	}
+
+	/**
+	 * Returns the value of this record on the given dimension
+	 * 
+	 * @param dimension		0 for XLOC, 1 for YLOC, 2 for time
+	 * @return the XLOC, YLOC, or time of this record
+	 */
+	public int getKey(int dimension) {
+		if (dimension == 0)
+			return xloc;
+		else if (dimension == 1)
+			return yloc;
+		else
+			return time;
+	}
+
 	public recordNode getLeft() {
 		return left;
 	}